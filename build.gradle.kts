@@ -42,6 +42,8 @@ dependencies {
   compileOnly("com.google.code.findbugs:annotations")
 
   testImplementation(project(":testing"))
+  testImplementation("com.fasterxml.jackson.dataformat:jackson-dataformat-cbor")
+  testImplementation("com.fasterxml.jackson.dataformat:jackson-dataformat-smile")
   testImplementation("com.google.guava:guava")
   testImplementation("com.google.protobuf:protobuf-java-util")
 }
@@ -0,0 +1,108 @@
+/*
+ * Copyright (c) Choko (choko@curioswitch.org)
+ * SPDX-License-Identifier: MIT
+ */
+
+package org.curioswitch.common.protobuf.json;
+
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import com.google.common.io.Resources;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import org.curioswitch.common.protobuf.json.GithubApi.SearchResponse;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Compares marshalling to the binary JSON formats Smile and CBOR with {@link
+ * MessageMarshaller.Builder#jsonFactory} to text JSON and binary protobuf.
+ */
+public class BinaryFormatBenchmark {
+
+  private static final MessageMarshaller JSON_MARSHALLER = newBuilder().build();
+  private static final MessageMarshaller SMILE_MARSHALLER =
+      newBuilder().jsonFactory(new SmileFactory()).build();
+  private static final MessageMarshaller CBOR_MARSHALLER =
+      newBuilder().jsonFactory(new CBORFactory()).build();
+
+  private static final SearchResponse SEARCH_RESPONSE;
+
+  private static final byte[] SEARCH_RESPONSE_JSON;
+  private static final byte[] SEARCH_RESPONSE_SMILE;
+  private static final byte[] SEARCH_RESPONSE_CBOR;
+  private static final byte[] SEARCH_RESPONSE_PROTOBUF_BINARY;
+
+  static {
+    try {
+      String json =
+          Resources.toString(
+              Resources.getResource("github_search_response.json"), StandardCharsets.UTF_8);
+      SearchResponse.Builder builder = SearchResponse.newBuilder();
+      JSON_MARSHALLER.mergeValue(json, builder);
+      SEARCH_RESPONSE = builder.build();
+
+      SEARCH_RESPONSE_JSON = JSON_MARSHALLER.writeValueAsBytes(SEARCH_RESPONSE);
+      SEARCH_RESPONSE_SMILE = SMILE_MARSHALLER.writeValueAsBytes(SEARCH_RESPONSE);
+      SEARCH_RESPONSE_CBOR = CBOR_MARSHALLER.writeValueAsBytes(SEARCH_RESPONSE);
+      SEARCH_RESPONSE_PROTOBUF_BINARY = SEARCH_RESPONSE.toByteArray();
+    } catch (IOException e) {
+      throw new Error(e);
+    }
+  }
+
+  private static MessageMarshaller.Builder newBuilder() {
+    return MessageMarshaller.builder()
+        .register(SearchResponse.getDefaultInstance())
+        .omittingInsignificantWhitespace(true)
+        .preservingProtoFieldNames(true);
+  }
+
+  @Benchmark
+  public void jsonParseBytes(Blackhole bh) throws Exception {
+    SearchResponse.Builder builder = SearchResponse.newBuilder();
+    JSON_MARSHALLER.mergeValue(SEARCH_RESPONSE_JSON, builder);
+    bh.consume(builder);
+  }
+
+  @Benchmark
+  public void jsonWriteBytes(Blackhole bh) throws Exception {
+    bh.consume(JSON_MARSHALLER.writeValueAsBytes(SEARCH_RESPONSE));
+  }
+
+  @Benchmark
+  public void smileParseBytes(Blackhole bh) throws Exception {
+    SearchResponse.Builder builder = SearchResponse.newBuilder();
+    SMILE_MARSHALLER.mergeValue(SEARCH_RESPONSE_SMILE, builder);
+    bh.consume(builder);
+  }
+
+  @Benchmark
+  public void smileWriteBytes(Blackhole bh) throws Exception {
+    bh.consume(SMILE_MARSHALLER.writeValueAsBytes(SEARCH_RESPONSE));
+  }
+
+  @Benchmark
+  public void cborParseBytes(Blackhole bh) throws Exception {
+    SearchResponse.Builder builder = SearchResponse.newBuilder();
+    CBOR_MARSHALLER.mergeValue(SEARCH_RESPONSE_CBOR, builder);
+    bh.consume(builder);
+  }
+
+  @Benchmark
+  public void cborWriteBytes(Blackhole bh) throws Exception {
+    bh.consume(CBOR_MARSHALLER.writeValueAsBytes(SEARCH_RESPONSE));
+  }
+
+  @Benchmark
+  public void protobufParseBytes(Blackhole bh) throws Exception {
+    SearchResponse.Builder builder = SearchResponse.newBuilder();
+    builder.mergeFrom(SEARCH_RESPONSE_PROTOBUF_BINARY);
+    bh.consume(builder);
+  }
+
+  @Benchmark
+  public void protobufToBytes(Blackhole bh) throws Exception {
+    bh.consume(SEARCH_RESPONSE.toByteArray());
+  }
+}
@@ -24,6 +24,22 @@ public class GithubApiBenchmark {
           .preservingProtoFieldNames(true)
           .build();
 
+  private static final MessageMarshaller STRICT_MARSHALLER =
+      MessageMarshaller.builder()
+          .register(SearchResponse.getDefaultInstance())
+          .omittingInsignificantWhitespace(true)
+          .preservingProtoFieldNames(true)
+          .parsingStrictly(true)
+          .escapingHtml(false)
+          .build();
+
+  private static final MessageMarshaller POSITIONAL_MARSHALLER =
+      MessageMarshaller.builder()
+          .register(SearchResponse.getDefaultInstance())
+          .usingPositionalArrays(true)
+          .omittingInsignificantWhitespace(true)
+          .build();
+
   private static final Parser UPSTREAM_PARSER = JsonFormat.parser();
   private static final Printer UPSTREAM_PRINTER =
       JsonFormat.printer().preservingProtoFieldNames().omittingInsignificantWhitespace();
@@ -31,6 +47,7 @@ public class GithubApiBenchmark {
   private static final String SEARCH_RESPONSE_JSON;
   private static final SearchResponse SEARCH_RESPONSE;
 
+  private static final String SEARCH_RESPONSE_POSITIONAL;
   private static final byte[] SEARCH_RESPONSE_PROTOBUF_BINARY;
 
   static {
@@ -42,6 +59,7 @@ public class GithubApiBenchmark {
       SearchResponse.Builder builder = SearchResponse.newBuilder();
       UPSTREAM_PARSER.merge(SEARCH_RESPONSE_JSON, builder);
       SEARCH_RESPONSE = builder.build();
+      SEARCH_RESPONSE_POSITIONAL = POSITIONAL_MARSHALLER.writeValueAsString(SEARCH_RESPONSE);
       SEARCH_RESPONSE_PROTOBUF_BINARY = SEARCH_RESPONSE.toByteArray();
     } catch (IOException e) {
       throw new Error(e);
@@ -60,6 +78,30 @@ public class GithubApiBenchmark {
     bh.consume(MARSHALLER.writeValueAsString(SEARCH_RESPONSE));
   }
 
+  @Benchmark
+  public void marshallerStrictParseString(Blackhole bh) throws Exception {
+    SearchResponse.Builder builder = SearchResponse.newBuilder();
+    STRICT_MARSHALLER.mergeValue(SEARCH_RESPONSE_JSON, builder);
+    bh.consume(builder);
+  }
+
+  @Benchmark
+  public void marshallerStrictWriteString(Blackhole bh) throws Exception {
+    bh.consume(STRICT_MARSHALLER.writeValueAsString(SEARCH_RESPONSE));
+  }
+
+  @Benchmark
+  public void marshallerPositionalParseString(Blackhole bh) throws Exception {
+    SearchResponse.Builder builder = SearchResponse.newBuilder();
+    POSITIONAL_MARSHALLER.mergeValue(SEARCH_RESPONSE_POSITIONAL, builder);
+    bh.consume(builder);
+  }
+
+  @Benchmark
+  public void marshallerPositionalWriteString(Blackhole bh) throws Exception {
+    bh.consume(POSITIONAL_MARSHALLER.writeValueAsString(SEARCH_RESPONSE));
+  }
+
   @Benchmark
   public void upstreamParseString(Blackhole bh) throws Exception {
     SearchResponse.Builder builder = SearchResponse.newBuilder();
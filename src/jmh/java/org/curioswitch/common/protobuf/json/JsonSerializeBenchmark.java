@@ -10,6 +10,8 @@ import com.google.protobuf.util.JsonFormat.Printer;
 import com.google.protobuf.util.JsonTestProto.TestAllTypes;
 import java.nio.charset.StandardCharsets;
 import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
 import org.openjdk.jmh.infra.Blackhole;
 
 public class JsonSerializeBenchmark {
@@ -31,8 +33,18 @@ public class JsonSerializeBenchmark {
     bh.consume(SERIALIZER.writeValueAsBytes(MESSAGE));
   }
 
+  @Benchmark
+  public void codegenJsonSession(SessionState state, Blackhole bh) throws Exception {
+    bh.consume(state.session.writeValueAsBytes(MESSAGE));
+  }
+
   @Benchmark
   public void toBytes(Blackhole bh) throws Exception {
     bh.consume(MESSAGE.toByteArray());
   }
+
+  @State(Scope.Thread)
+  public static class SessionState {
+    private final MarshallerSession session = SERIALIZER.newSession();
+  }
 }
@@ -0,0 +1,70 @@
+/*
+ * Copyright (c) Choko (choko@curioswitch.org)
+ * SPDX-License-Identifier: MIT
+ */
+
+package org.curioswitch.common.protobuf.json;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.io.Resources;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import org.curioswitch.common.protobuf.json.GithubApi.SearchResponse;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Compares marshalling through an {@link ObjectMapper} with {@link MessageMarshallerModule} to
+ * calling {@link MessageMarshaller} directly, to measure the overhead of the databind bridge.
+ */
+public class ObjectMapperBenchmark {
+
+  private static final MessageMarshaller MARSHALLER =
+      MessageMarshaller.builder()
+          .register(SearchResponse.getDefaultInstance())
+          .omittingInsignificantWhitespace(true)
+          .preservingProtoFieldNames(true)
+          .build();
+
+  private static final ObjectMapper OBJECT_MAPPER =
+      new ObjectMapper().registerModule(MessageMarshallerModule.of(MARSHALLER));
+
+  private static final String SEARCH_RESPONSE_JSON;
+  private static final SearchResponse SEARCH_RESPONSE;
+
+  static {
+    try {
+      SEARCH_RESPONSE_JSON =
+          Resources.toString(
+              Resources.getResource("github_search_response.json"), StandardCharsets.UTF_8);
+
+      SearchResponse.Builder builder = SearchResponse.newBuilder();
+      MARSHALLER.mergeValue(SEARCH_RESPONSE_JSON, builder);
+      SEARCH_RESPONSE = builder.build();
+    } catch (IOException e) {
+      throw new Error(e);
+    }
+  }
+
+  @Benchmark
+  public void marshallerParseString(Blackhole bh) throws Exception {
+    SearchResponse.Builder builder = SearchResponse.newBuilder();
+    MARSHALLER.mergeValue(SEARCH_RESPONSE_JSON, builder);
+    bh.consume(builder.build());
+  }
+
+  @Benchmark
+  public void marshallerWriteString(Blackhole bh) throws Exception {
+    bh.consume(MARSHALLER.writeValueAsString(SEARCH_RESPONSE));
+  }
+
+  @Benchmark
+  public void objectMapperParseString(Blackhole bh) throws Exception {
+    bh.consume(OBJECT_MAPPER.readValue(SEARCH_RESPONSE_JSON, SearchResponse.class));
+  }
+
+  @Benchmark
+  public void objectMapperWriteString(Blackhole bh) throws Exception {
+    bh.consume(OBJECT_MAPPER.writeValueAsString(SEARCH_RESPONSE));
+  }
+}
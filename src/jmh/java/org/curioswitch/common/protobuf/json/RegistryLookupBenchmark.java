@@ -0,0 +1,64 @@
+/*
+ * Copyright (c) 2019-2022 Choko (choko@curioswitch.org)
+ * SPDX-License-Identifier: MIT
+ */
+
+package org.curioswitch.common.protobuf.json;
+
+import com.google.protobuf.Descriptors.Descriptor;
+import com.google.protobuf.Message;
+import com.google.protobuf.util.JsonTestProto.TestAllTypes;
+import com.google.protobuf.util.JsonTestProto.TestAllTypes.NestedMessage;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Microbenchmark isolating the lookup of the marshaller for a message, which is a significant part
+ * of marshalling small messages. Compares looking up by {@link Descriptor}, which was used
+ * previously, with the {@link ClassValue} based lookup of {@link MarshallerRegistry}.
+ */
+public class RegistryLookupBenchmark {
+
+  private static final Map<Descriptor, TypeSpecificMarshaller<?>> MARSHALLERS = new HashMap<>();
+
+  static {
+    TypeSpecificMarshaller.buildAllAndAdd(
+        Collections.singletonList(
+            new MarshallerOptions(
+                TestAllTypes.getDefaultInstance(),
+                false,
+                Collections.emptySet(),
+                false,
+                false,
+                false,
+                false)),
+        MARSHALLERS,
+        Runnable::run);
+  }
+
+  private static final MarshallerRegistry REGISTRY = new MarshallerRegistry(MARSHALLERS);
+
+  private static final MessageMarshaller MARSHALLER =
+      MessageMarshaller.builder().register(TestAllTypes.getDefaultInstance()).build();
+
+  // Declared as Message to keep the call to getDescriptorForType() virtual like in the library.
+  private static final Message MESSAGE = NestedMessage.newBuilder().setValue(100).build();
+
+  @Benchmark
+  public void descriptorLookup(Blackhole bh) {
+    bh.consume(MARSHALLERS.get(MESSAGE.getDescriptorForType()));
+  }
+
+  @Benchmark
+  public void classValueLookup(Blackhole bh) {
+    bh.consume(REGISTRY.findForPrototype(MESSAGE));
+  }
+
+  @Benchmark
+  public void writeSmallMessage(Blackhole bh) throws Exception {
+    bh.consume(MARSHALLER.writeValueAsBytes(MESSAGE));
+  }
+}
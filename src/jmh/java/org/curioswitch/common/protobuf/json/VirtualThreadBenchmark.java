@@ -0,0 +1,105 @@
+/*
+ * Copyright (c) Choko (choko@curioswitch.org)
+ * SPDX-License-Identifier: MIT
+ */
+
+package org.curioswitch.common.protobuf.json;
+
+import com.fasterxml.jackson.core.util.JsonRecyclerPools;
+import com.google.common.io.Resources;
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import org.curioswitch.common.protobuf.json.GithubApi.SearchResponse;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Serializes and parses on a new thread for every operation, as happens when serving each request
+ * on its own virtual thread. Run with {@code -prof gc} to compare allocation of the default
+ * thread-local buffer recycling with a shared recycler pool. Virtual threads are used when running
+ * on Java 21+, otherwise a new platform thread is started for each operation.
+ */
+@State(Scope.Benchmark)
+public class VirtualThreadBenchmark {
+
+  private static final MessageMarshaller DEFAULT_MARSHALLER =
+      MessageMarshaller.builder()
+          .register(SearchResponse.getDefaultInstance())
+          .omittingInsignificantWhitespace(true)
+          .build();
+
+  private static final MessageMarshaller POOLED_MARSHALLER =
+      DEFAULT_MARSHALLER.toBuilder().recyclerPool(JsonRecyclerPools.newLockFreePool()).build();
+
+  private static final byte[] SEARCH_RESPONSE_JSON;
+  private static final SearchResponse SEARCH_RESPONSE;
+
+  static {
+    try {
+      SEARCH_RESPONSE_JSON =
+          Resources.toByteArray(Resources.getResource("github_search_response.json"));
+      SearchResponse.Builder builder = SearchResponse.newBuilder();
+      DEFAULT_MARSHALLER.mergeValue(SEARCH_RESPONSE_JSON, builder);
+      SEARCH_RESPONSE = builder.build();
+    } catch (IOException e) {
+      throw new Error(e);
+    }
+  }
+
+  private ExecutorService executor;
+
+  @Setup
+  public void setUp() {
+    executor = newThreadPerTaskExecutor();
+  }
+
+  @TearDown
+  public void tearDown() {
+    executor.shutdown();
+  }
+
+  @Benchmark
+  public byte[] defaultRecyclerWrite() throws Exception {
+    return executor.submit(() -> DEFAULT_MARSHALLER.writeValueAsBytes(SEARCH_RESPONSE)).get();
+  }
+
+  @Benchmark
+  public byte[] pooledRecyclerWrite() throws Exception {
+    return executor.submit(() -> POOLED_MARSHALLER.writeValueAsBytes(SEARCH_RESPONSE)).get();
+  }
+
+  @Benchmark
+  public SearchResponse defaultRecyclerParse() throws Exception {
+    return executor.submit(() -> parse(DEFAULT_MARSHALLER)).get();
+  }
+
+  @Benchmark
+  public SearchResponse pooledRecyclerParse() throws Exception {
+    return executor.submit(() -> parse(POOLED_MARSHALLER)).get();
+  }
+
+  private static SearchResponse parse(MessageMarshaller marshaller) throws IOException {
+    SearchResponse.Builder builder = SearchResponse.newBuilder();
+    marshaller.mergeValue(SEARCH_RESPONSE_JSON, builder);
+    return builder.build();
+  }
+
+  private static ExecutorService newThreadPerTaskExecutor() {
+    try {
+      return (ExecutorService)
+          Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+    } catch (ReflectiveOperationException e) {
+      // Not running on Java 21+, fall back to a platform thread per task. With no keep-alive and
+      // no queue, idle threads exit immediately and every task is started on a new thread.
+      return new ThreadPoolExecutor(
+          0, Integer.MAX_VALUE, 0, TimeUnit.SECONDS, new SynchronousQueue<Runnable>());
+    }
+  }
+}
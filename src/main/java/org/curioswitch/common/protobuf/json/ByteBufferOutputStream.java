@@ -0,0 +1,86 @@
+/*
+ * Copyright (c) Choko (choko@curioswitch.org)
+ * SPDX-License-Identifier: MIT
+ */
+
+package org.curioswitch.common.protobuf.json;
+
+import static java.util.Objects.requireNonNull;
+
+import java.io.OutputStream;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * An {@link OutputStream} that writes into a {@link ByteBuffer}, starting at its current position.
+ * When the buffer runs out of space, it is replaced with one of twice the capacity, of the same
+ * kind (heap or direct), so the written bytes must always be read from {@link #buffer()} rather
+ * than the buffer originally passed in. Can be passed to {@link MessageMarshaller#writeValue(
+ * com.google.protobuf.Message, OutputStream)} to serialize directly into NIO buffers, including
+ * direct buffers, without an intermediate {@code byte[]}.
+ */
+public final class ByteBufferOutputStream extends OutputStream {
+
+  private final boolean growable;
+
+  private ByteBuffer buffer;
+  private int bytesWritten;
+
+  /**
+   * Creates a {@link ByteBufferOutputStream} which writes into {@code buffer} starting at its
+   * current position, growing it as needed.
+   */
+  public ByteBufferOutputStream(ByteBuffer buffer) {
+    this(buffer, true);
+  }
+
+  ByteBufferOutputStream(ByteBuffer buffer, boolean growable) {
+    this.buffer = requireNonNull(buffer, "buffer");
+    this.growable = growable;
+  }
+
+  /**
+   * Returns the buffer containing the written bytes, with its position just after the last byte
+   * written. This is the buffer originally passed in unless it had to be grown.
+   */
+  public ByteBuffer buffer() {
+    return buffer;
+  }
+
+  /** Returns the number of bytes written to this stream. */
+  public int bytesWritten() {
+    return bytesWritten;
+  }
+
+  @Override
+  public void write(int b) {
+    ensureCapacity(1);
+    buffer.put((byte) b);
+    bytesWritten++;
+  }
+
+  @Override
+  public void write(byte[] b, int off, int len) {
+    ensureCapacity(len);
+    buffer.put(b, off, len);
+    bytesWritten += len;
+  }
+
+  private void ensureCapacity(int len) {
+    if (buffer.remaining() >= len) {
+      return;
+    }
+    if (!growable) {
+      throw new BufferOverflowException();
+    }
+    int newCapacity = Math.max(buffer.capacity() * 2, buffer.position() + len);
+    ByteBuffer newBuffer =
+        buffer.isDirect()
+            ? ByteBuffer.allocateDirect(newCapacity)
+            : ByteBuffer.allocate(newCapacity);
+    newBuffer.order(buffer.order());
+    buffer.flip();
+    newBuffer.put(buffer);
+    buffer = newBuffer;
+  }
+}
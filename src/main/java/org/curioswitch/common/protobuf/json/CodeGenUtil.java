@@ -7,12 +7,21 @@ package org.curioswitch.common.protobuf.json;
 
 import com.google.protobuf.Descriptors.Descriptor;
 import com.google.protobuf.Descriptors.FieldDescriptor;
+import com.google.protobuf.Descriptors.FieldDescriptor.JavaType;
 import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Comparator;
+import java.util.Deque;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import net.bytebuddy.description.field.FieldDescription;
 import net.bytebuddy.description.method.MethodDescription;
 import net.bytebuddy.implementation.Implementation.Context;
@@ -28,6 +37,8 @@ final class CodeGenUtil {
   private static final Comparator<FieldDescriptor> FIELD_DESCRIPTOR_COMPARATOR =
       Comparator.comparing(FieldDescriptor::getNumber);
 
+  private static final String PRECOMPILED_PACKAGE = "org.curioswitch.common.protobuf.json.aot";
+
   /**
    * Returns the fields sorted in order of field number. By default, they are sorted in order of
    * definition in the proto file.
@@ -54,6 +65,75 @@ final class CodeGenUtil {
     return "FIELD_NAME_" + field.descriptor().getNumber();
   }
 
+  /**
+   * Returns the name of the class of the precompiled marshaller for the type and options of {@code
+   * options}. The name is derived from the name of the message class, so it can be recognized in
+   * stack traces and profiles, and a suffix encoding the options which affect generated code. A
+   * precompiled class is shared by every {@link MessageMarshaller} in the JVM, including the
+   * marshallers of nested types it is wired to, so the suffix includes a digest of the fields that
+   * are always output of all types reachable from the type, not only of the type itself.
+   */
+  static String precompiledClassName(MarshallerOptions options) {
+    int flags =
+        (options.isIncludingDefaultValueFields() ? 1 : 0)
+            | (options.isPreservingProtoFieldNames() ? 1 << 1 : 0)
+            | (options.isIgnoringUnknownFields() ? 1 << 2 : 0)
+            | (options.isPrintingEnumsAsInts() ? 1 << 3 : 0)
+            | (options.isSortingMapKeys() ? 1 << 4 : 0);
+    StringBuilder name =
+        new StringBuilder(PRECOMPILED_PACKAGE)
+            .append('.')
+            .append(options.getPrototype().getClass().getName())
+            .append("$$JsonMarshaller_")
+            .append(Integer.toHexString(flags));
+    if (options.getFieldsToAlwaysOutput().isEmpty()) {
+      return name.toString();
+    }
+    Set<Descriptor> reachable = new HashSet<>();
+    Deque<Descriptor> pending = new ArrayDeque<>();
+    pending.add(options.getPrototype().getDescriptorForType());
+    while (!pending.isEmpty()) {
+      Descriptor type = pending.removeFirst();
+      if (!reachable.add(type)) {
+        continue;
+      }
+      for (FieldDescriptor field : type.getFields()) {
+        if (field.getJavaType() == JavaType.MESSAGE) {
+          pending.addLast(field.getMessageType());
+        }
+      }
+    }
+    List<String> fieldsToAlwaysOutput = new ArrayList<>();
+    for (FieldDescriptor field : options.getFieldsToAlwaysOutput()) {
+      if (reachable.contains(field.getContainingType())) {
+        fieldsToAlwaysOutput.add(field.getFullName());
+      }
+    }
+    if (fieldsToAlwaysOutput.isEmpty()) {
+      return name.toString();
+    }
+    Collections.sort(fieldsToAlwaysOutput);
+    MessageDigest digest;
+    try {
+      digest = MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("SHA-256 is always supported.", e);
+    }
+    for (String field : fieldsToAlwaysOutput) {
+      digest.update(field.getBytes(StandardCharsets.UTF_8));
+      // Separator, which can't appear in field names.
+      digest.update((byte) 0);
+    }
+    // 64 bits are plenty to tell apart the sets of fields of a type.
+    byte[] hash = digest.digest();
+    name.append('_');
+    for (int i = 0; i < 8; i++) {
+      name.append(Character.forDigit((hash[i] >> 4) & 0xF, 16))
+          .append(Character.forDigit(hash[i] & 0xF, 16));
+    }
+    return name.toString();
+  }
+
   /** Returns a {@link StackManipulation} that invokes the given {@link Method}. */
   static StackManipulation invoke(Method method) {
     return MethodInvocation.invoke(new MethodDescription.ForLoadedMethod(method));
@@ -0,0 +1,145 @@
+/*
+ * Copyright (c) Choko (choko@curioswitch.org)
+ * SPDX-License-Identifier: MIT
+ */
+
+package org.curioswitch.common.protobuf.json;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.google.protobuf.Descriptors.EnumDescriptor;
+import com.google.protobuf.Descriptors.EnumValueDescriptor;
+import com.google.protobuf.Descriptors.FieldDescriptor;
+import com.google.protobuf.Descriptors.OneofDescriptor;
+import com.google.protobuf.DynamicMessage;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.Message;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import javax.annotation.Nullable;
+
+/**
+ * A {@link FieldAccessor} for {@link DynamicMessage}s, which have no generated code to call. Fields
+ * are accessed through the reflection API of {@link Message}, converting enums and maps from and to
+ * the representation of generated code.
+ */
+final class DynamicFieldAccessor implements FieldAccessor {
+
+  private final FieldDescriptor descriptor;
+  @Nullable private final FieldDescriptor mapKeyField;
+  @Nullable private final FieldDescriptor mapValueField;
+  @Nullable private final EnumDescriptor enumType;
+  @Nullable private final OneofDescriptor oneof;
+
+  DynamicFieldAccessor(ProtoFieldInfo field) {
+    descriptor = field.descriptor();
+    if (field.isMapField()) {
+      mapKeyField = field.mapKeyField().descriptor();
+      mapValueField = field.valueField().descriptor();
+    } else {
+      mapKeyField = null;
+      mapValueField = null;
+    }
+    enumType =
+        field.valueType() == FieldDescriptor.Type.ENUM
+            ? field.valueField().descriptor().getEnumType()
+            : null;
+    oneof = field.isInOneof() ? descriptor.getContainingOneof() : null;
+  }
+
+  @Override
+  public Object get(Message message) {
+    Object value = message.getField(descriptor);
+    FieldDescriptor mapKeyField = this.mapKeyField;
+    FieldDescriptor mapValueField = this.mapValueField;
+    if (mapKeyField != null && mapValueField != null) {
+      // Map fields of a DynamicMessage are lists of entries, where later entries replace earlier
+      // ones with the same key.
+      Map<Object, Object> map = new LinkedHashMap<>();
+      for (Object entry : (List<?>) value) {
+        Message entryMessage = (Message) entry;
+        map.put(entryMessage.getField(mapKeyField), fromEnum(entryMessage.getField(mapValueField)));
+      }
+      return map;
+    }
+    if (enumType == null) {
+      return value;
+    }
+    if (descriptor.isRepeated()) {
+      List<?> values = (List<?>) value;
+      List<Object> numbers = new ArrayList<>(values.size());
+      for (Object element : values) {
+        numbers.add(fromEnum(element));
+      }
+      return numbers;
+    }
+    return fromEnum(value);
+  }
+
+  @Override
+  public boolean has(Message message) {
+    OneofDescriptor oneof = this.oneof;
+    if (oneof != null) {
+      return message.getOneofFieldDescriptor(oneof) == descriptor;
+    }
+    return message.hasField(descriptor);
+  }
+
+  @Override
+  public void set(Message.Builder builder, Object value) {
+    if (descriptor.isRepeated()) {
+      builder.addRepeatedField(descriptor, toEnum(value));
+    } else {
+      builder.setField(descriptor, toEnum(value));
+    }
+  }
+
+  @Override
+  public void put(Message.Builder builder, Object key, Object value) {
+    FieldDescriptor mapKeyField = this.mapKeyField;
+    FieldDescriptor mapValueField = this.mapValueField;
+    if (mapKeyField == null || mapValueField == null) {
+      throw new IllegalStateException("Not a map field: " + descriptor.getFullName());
+    }
+    builder.addRepeatedField(
+        descriptor,
+        DynamicMessage.newBuilder(mapKeyField.getContainingType())
+            .setField(mapKeyField, key)
+            .setField(mapValueField, toEnum(value))
+            .build());
+  }
+
+  /** The check of {@link ParseSupport#throwIfOneofAlreadyWritten} for {@link DynamicMessage}. */
+  @Override
+  public void throwIfOneofAlreadyWritten(
+      JsonParser parser, Message.Builder builder, boolean ignoreNull)
+      throws InvalidProtocolBufferException {
+    OneofDescriptor oneof = this.oneof;
+    if (oneof == null) {
+      throw new IllegalStateException("Field is not in a oneof: " + descriptor.getFullName());
+    }
+    if (ignoreNull && parser.currentToken() == JsonToken.VALUE_NULL) {
+      return;
+    }
+    FieldDescriptor alreadySet = builder.getOneofFieldDescriptor(oneof);
+    if (alreadySet != null) {
+      throw new InvalidProtocolBufferException(
+          "Cannot set field "
+              + descriptor.getFullName()
+              + " because another field "
+              + alreadySet.getName()
+              + " belonging to the same oneof has already been set.");
+    }
+  }
+
+  private static Object fromEnum(Object value) {
+    return value instanceof EnumValueDescriptor ? ((EnumValueDescriptor) value).getNumber() : value;
+  }
+
+  private Object toEnum(Object value) {
+    EnumDescriptor enumType = this.enumType;
+    return enumType != null ? enumType.findValueByNumberCreatingIfUnknown((int) value) : value;
+  }
+}
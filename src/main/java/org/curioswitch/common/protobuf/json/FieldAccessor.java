@@ -0,0 +1,45 @@
+/*
+ * Copyright (c) Choko (choko@curioswitch.org)
+ * SPDX-License-Identifier: MIT
+ */
+
+package org.curioswitch.common.protobuf.json;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.Message;
+
+/**
+ * Reads and writes the value of one field of a message for {@link InterpretedMarshaller}. Values
+ * are in the representation of generated code, whatever the kind of message: enums are their
+ * numbers, maps are {@link java.util.Map}s and repeated fields are {@link java.util.List}s of their
+ * elements.
+ */
+interface FieldAccessor {
+
+  /** Returns the value of the field in {@code message}. */
+  Object get(Message message);
+
+  /**
+   * Returns whether the field is present in {@code message}. Only called for fields which track
+   * presence, i.e., fields in a oneof, with the {@code optional} keyword or of a message type.
+   */
+  boolean has(Message message);
+
+  /**
+   * Sets the field to {@code value} in {@code builder}, or adds {@code value} to it if it is
+   * repeated.
+   */
+  void set(Message.Builder builder, Object value);
+
+  /** Puts the entry of {@code key} and {@code value} into the map field in {@code builder}. */
+  void put(Message.Builder builder, Object key, Object value);
+
+  /**
+   * Throws if another field of the oneof of the field has already been set in {@code builder},
+   * unless the current value is {@code null} and {@code ignoreNull} is set. Only called for fields
+   * in a oneof.
+   */
+  void throwIfOneofAlreadyWritten(JsonParser parser, Message.Builder builder, boolean ignoreNull)
+      throws InvalidProtocolBufferException;
+}
@@ -0,0 +1,55 @@
+/*
+ * Copyright (c) Choko (choko@curioswitch.org)
+ * SPDX-License-Identifier: MIT
+ */
+
+package org.curioswitch.common.protobuf.json;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import net.bytebuddy.description.type.TypeDescription;
+import net.bytebuddy.dynamic.loading.ClassLoadingStrategy;
+
+/**
+ * A {@link ClassLoader} for generated marshallers. All marshallers generated when building a
+ * {@link MessageMarshaller} are defined in a single {@link GeneratedClassLoader}, instead of the
+ * default of ByteBuddy of a new {@link ClassLoader} for every class, which adds up to a lot of
+ * metaspace when registering many types. The loader can be garbage collected once none of its
+ * marshallers are used anymore.
+ */
+final class GeneratedClassLoader extends ClassLoader {
+
+  static {
+    registerAsParallelCapable();
+  }
+
+  /** A {@link ClassLoadingStrategy} which defines the classes in a {@link GeneratedClassLoader}. */
+  static final ClassLoadingStrategy<GeneratedClassLoader> STRATEGY =
+      (classLoader, types) -> {
+        Map<TypeDescription, Class<?>> loaded = new LinkedHashMap<>();
+        for (Map.Entry<TypeDescription, byte[]> entry : types.entrySet()) {
+          loaded.put(
+              entry.getKey(), classLoader.define(entry.getKey().getName(), entry.getValue()));
+        }
+        return loaded;
+      };
+
+  GeneratedClassLoader(ClassLoader parent) {
+    super(parent);
+  }
+
+  /**
+   * Defines the class {@code name} from {@code bytes}, or returns it if it has already been
+   * defined, which happens when defining the same class file read from the {@link
+   * MarshallerClassFileCache} again.
+   */
+  Class<?> define(String name, byte[] bytes) {
+    synchronized (getClassLoadingLock(name)) {
+      Class<?> loaded = findLoadedClass(name);
+      if (loaded != null) {
+        return loaded;
+      }
+      return defineClass(name, bytes, 0, bytes.length);
+    }
+  }
+}
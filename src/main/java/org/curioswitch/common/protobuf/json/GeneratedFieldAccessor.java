@@ -0,0 +1,165 @@
+/*
+ * Copyright (c) Choko (choko@curioswitch.org)
+ * SPDX-License-Identifier: MIT
+ */
+
+package org.curioswitch.common.protobuf.json;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.google.protobuf.Descriptors.FieldDescriptor;
+import com.google.protobuf.Descriptors.FieldDescriptor.JavaType;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.Internal.EnumLite;
+import com.google.protobuf.Message;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import javax.annotation.Nullable;
+
+/**
+ * A {@link FieldAccessor} which calls the accessors of the generated class of a message through
+ * {@link MethodHandle}s, the same methods as called by the marshallers generated by {@link DoWrite}
+ * and {@link DoParse}.
+ */
+final class GeneratedFieldAccessor implements FieldAccessor {
+
+  private static final MethodType GETTER_TYPE = MethodType.methodType(Object.class, Message.class);
+  private static final MethodType HAS_TYPE = MethodType.methodType(boolean.class, Message.class);
+  private static final MethodType BUILDER_GETTER_TYPE =
+      MethodType.methodType(Object.class, Message.Builder.class);
+  private static final MethodType SETTER_TYPE =
+      MethodType.methodType(void.class, Message.Builder.class, Object.class);
+  private static final MethodType PUT_TYPE =
+      MethodType.methodType(void.class, Message.Builder.class, Object.class, Object.class);
+
+  private final String fullName;
+  private final int number;
+
+  private final MethodHandle getValue;
+  // The adder for repeated fields and the putter for maps.
+  private final MethodHandle setValue;
+
+  // Only one of the presence checks is set, depending on the kind of field.
+  @Nullable private final MethodHandle getMessageOneofCase;
+  @Nullable private final MethodHandle hasValue;
+  @Nullable private final MethodHandle getBuilderOneofCase;
+
+  GeneratedFieldAccessor(ProtoFieldInfo field, Message prototype) {
+    FieldDescriptor f = field.descriptor();
+    fullName = f.getFullName();
+    number = f.getNumber();
+    getValue = unreflect(field.getValueMethod(), GETTER_TYPE);
+    setValue = unreflect(field.setValueMethod(), field.isMapField() ? PUT_TYPE : SETTER_TYPE);
+    if (field.isInOneof()) {
+      getMessageOneofCase = unreflect(field.oneOfCaseMethod(), GETTER_TYPE);
+      hasValue = null;
+      try {
+        getBuilderOneofCase =
+            unreflect(
+                prototype
+                    .newBuilderForType()
+                    .getClass()
+                    .getDeclaredMethod(field.getOneOfCaseMethodName()),
+                BUILDER_GETTER_TYPE);
+      } catch (NoSuchMethodException e) {
+        throw new IllegalStateException("Could not find oneof case method.", e);
+      }
+    } else {
+      getMessageOneofCase = null;
+      getBuilderOneofCase = null;
+      if (ProtobufUtil.hasOptionalKeyword(f)
+          || (!f.isRepeated() && field.valueJavaType() == JavaType.MESSAGE)) {
+        hasValue = unreflect(field.hasValueMethod(), HAS_TYPE);
+      } else {
+        hasValue = null;
+      }
+    }
+  }
+
+  @Override
+  public Object get(Message message) {
+    try {
+      return getValue.invokeExact(message);
+    } catch (Throwable t) {
+      throw propagate(t);
+    }
+  }
+
+  @Override
+  public boolean has(Message message) {
+    try {
+      MethodHandle getMessageOneofCase = this.getMessageOneofCase;
+      if (getMessageOneofCase != null) {
+        // invokeExact needs the exact return type of the handle, so cast separately.
+        Object oneofCase = getMessageOneofCase.invokeExact(message);
+        return ((EnumLite) oneofCase).getNumber() == number;
+      }
+      MethodHandle hasValue = this.hasValue;
+      if (hasValue == null) {
+        throw new IllegalStateException("Field does not track presence: " + fullName);
+      }
+      return (boolean) hasValue.invokeExact(message);
+    } catch (Throwable t) {
+      throw propagate(t);
+    }
+  }
+
+  @Override
+  public void set(Message.Builder builder, Object value) {
+    try {
+      setValue.invokeExact(builder, value);
+    } catch (Throwable t) {
+      throw propagate(t);
+    }
+  }
+
+  @Override
+  public void put(Message.Builder builder, Object key, Object value) {
+    try {
+      setValue.invokeExact(builder, key, value);
+    } catch (Throwable t) {
+      throw propagate(t);
+    }
+  }
+
+  @Override
+  public void throwIfOneofAlreadyWritten(
+      JsonParser parser, Message.Builder builder, boolean ignoreNull)
+      throws InvalidProtocolBufferException {
+    Object oneofCase;
+    try {
+      oneofCase = getBuilderOneofCase().invokeExact(builder);
+    } catch (Throwable t) {
+      throw propagate(t);
+    }
+    ParseSupport.throwIfOneofAlreadyWritten(parser, oneofCase, fullName, ignoreNull);
+  }
+
+  private MethodHandle getBuilderOneofCase() {
+    MethodHandle getBuilderOneofCase = this.getBuilderOneofCase;
+    if (getBuilderOneofCase == null) {
+      throw new IllegalStateException("Field is not in a oneof: " + fullName);
+    }
+    return getBuilderOneofCase;
+  }
+
+  // Generated accessors don't throw checked exceptions.
+  private static RuntimeException propagate(Throwable t) {
+    if (t instanceof RuntimeException) {
+      return (RuntimeException) t;
+    }
+    if (t instanceof Error) {
+      throw (Error) t;
+    }
+    return new IllegalStateException("Unexpected exception from generated accessor.", t);
+  }
+
+  private static MethodHandle unreflect(Method method, MethodType type) {
+    try {
+      return MethodHandles.publicLookup().unreflect(method).asType(type);
+    } catch (IllegalAccessException e) {
+      throw new IllegalStateException("Could not access generated accessor: " + method, e);
+    }
+  }
+}
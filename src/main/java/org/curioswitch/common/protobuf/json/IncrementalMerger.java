@@ -0,0 +1,318 @@
+/*
+ * Copyright (c) Choko (choko@curioswitch.org)
+ * SPDX-License-Identifier: MIT
+ */
+
+package org.curioswitch.common.protobuf.json;
+
+import static java.util.Objects.requireNonNull;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.async.ByteArrayFeeder;
+import com.fasterxml.jackson.core.util.ByteArrayBuilder;
+import com.google.protobuf.Descriptors.FieldDescriptor;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.Message;
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import javax.annotation.Nullable;
+
+/**
+ * Merges JSON into a {@link Message.Builder} as it arrives in chunks, without blocking for more
+ * input. Obtain one from {@link MessageMarshaller#newIncrementalMerger(Message.Builder)}, call
+ * {@link #feed(byte[])} with each chunk of UTF-8 bytes as it is received, and {@link #endOfInput()}
+ * once there is no more input. Not thread-safe, but chunks may be fed from different threads as
+ * long as calls are not concurrent, as is the case on event loops.
+ *
+ * <p>Input is tokenized with Jackson's non-blocking parser. Generated parsing code is a blocking
+ * loop over a {@link JsonParser} so can't be suspended in the middle of a message, instead complete
+ * top-level fields are collected into small segments which are merged into the builder as soon as
+ * they grow past a threshold. Large repeated fields are split between their elements, so only about
+ * one element needs to be buffered at a time. The content of other top-level fields, including
+ * arrays of well-known types such as {@code ListValue}, and the entire value for well-known types,
+ * which have special JSON representations, are buffered until complete.
+ *
+ * <p>The parser is closed, returning its buffers, once the end of the message is reached or the
+ * input is found to be invalid. A merger abandoned before then should be {@link #close() closed}.
+ */
+public final class IncrementalMerger implements Closeable {
+
+  // Segments are merged once they grow past this size, at the next boundary between top-level
+  // fields or elements of a repeated field.
+  private static final int SEGMENT_FLUSH_THRESHOLD = 8 * 1024;
+
+  private final JsonFactory jsonFactory;
+  private final TypeSpecificMarshaller<?> marshaller;
+  private final Message.Builder builder;
+  private final JsonParser input;
+  private final ByteArrayFeeder feeder;
+  private final ByteArrayBuilder segment = new ByteArrayBuilder();
+
+  // Null for well-known types, which are merged in one piece.
+  @Nullable private final Map<String, FieldDescriptor> fieldsByName;
+  private final Set<FieldDescriptor> seenFields = new HashSet<>();
+
+  @Nullable private JsonGenerator segmentWriter;
+  @Nullable private String currentFieldName;
+  private boolean inTopLevelArray;
+  private int depth;
+  private boolean done;
+  private boolean closed;
+
+  IncrementalMerger(
+      JsonFactory jsonFactory, TypeSpecificMarshaller<?> marshaller, Message.Builder builder)
+      throws IOException {
+    this.jsonFactory = jsonFactory;
+    this.marshaller = marshaller;
+    this.builder = builder;
+    input = jsonFactory.createNonBlockingByteArrayParser();
+    feeder = (ByteArrayFeeder) input.getNonBlockingInputFeeder();
+    if (marshaller instanceof WellKnownTypeMarshaller) {
+      fieldsByName = null;
+    } else {
+      fieldsByName = new HashMap<>();
+      for (FieldDescriptor field : builder.getDescriptorForType().getFields()) {
+        fieldsByName.put(field.getName(), field);
+        fieldsByName.put(field.getJsonName(), field);
+      }
+    }
+  }
+
+  /**
+   * Feeds the next chunk of JSON UTF-8 bytes, merging any complete content into the builder.
+   * Returns {@code true} if the end of the message has been reached, in which case the builder is
+   * fully populated and no more input should be fed. The chunk is not retained after returning.
+   *
+   * @throws InvalidProtocolBufferException if the input is not valid JSON format or there are
+   *     unknown fields in the input.
+   */
+  public boolean feed(byte[] chunk) throws IOException {
+    requireNonNull(chunk, "chunk");
+    return feed(chunk, 0, chunk.length);
+  }
+
+  /**
+   * Feeds {@code length} bytes of {@code chunk} starting at {@code offset} as the next chunk of
+   * JSON UTF-8 bytes, merging any complete content into the builder. Returns {@code true} if the
+   * end of the message has been reached, in which case the builder is fully populated and no more
+   * input should be fed. The chunk is not retained after returning.
+   *
+   * @throws InvalidProtocolBufferException if the input is not valid JSON format or there are
+   *     unknown fields in the input.
+   */
+  public boolean feed(byte[] chunk, int offset, int length) throws IOException {
+    requireNonNull(chunk, "chunk");
+    if (done) {
+      throw new IllegalStateException("The message has already been completely parsed.");
+    }
+    checkNotClosed();
+    try {
+      feeder.feedInput(chunk, offset, offset + length);
+      advance();
+    } catch (InvalidProtocolBufferException e) {
+      throw e;
+    } catch (IOException e) {
+      throw new InvalidProtocolBufferException(e);
+    }
+    return done;
+  }
+
+  /**
+   * Signals that there is no more input. Does nothing if the end of the message has already been
+   * reached.
+   *
+   * @throws InvalidProtocolBufferException if the input ended before the end of the message.
+   */
+  public void endOfInput() throws IOException {
+    if (done) {
+      return;
+    }
+    checkNotClosed();
+    feeder.endOfInput();
+    try {
+      advance();
+    } catch (InvalidProtocolBufferException e) {
+      throw e;
+    } catch (IOException e) {
+      throw new InvalidProtocolBufferException(e);
+    }
+    if (!done) {
+      close();
+      throw new InvalidProtocolBufferException("Unexpected end of input.");
+    }
+  }
+
+  /** Returns whether the end of the message has been reached and the builder is fully populated. */
+  public boolean isDone() {
+    return done;
+  }
+
+  /**
+   * Releases resources used for parsing. It is only necessary to call this if the merger is
+   * abandoned before the end of the message is reached and without the input failing to parse.
+   */
+  @Override
+  public void close() throws IOException {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    JsonGenerator writer = segmentWriter;
+    if (writer != null) {
+      segmentWriter = null;
+      writer.close();
+    }
+    input.close();
+  }
+
+  private void checkNotClosed() {
+    if (closed) {
+      throw new IllegalStateException("The merger has been closed.");
+    }
+  }
+
+  private void advance() throws IOException {
+    boolean failed = true;
+    try {
+      while (!done) {
+        JsonToken token = input.nextToken();
+        if (token == null || token == JsonToken.NOT_AVAILABLE) {
+          break;
+        }
+        if (fieldsByName == null) {
+          copyWellKnownTypeToken(token);
+        } else {
+          handleToken(token, fieldsByName);
+        }
+      }
+      failed = false;
+    } finally {
+      // The merger can't continue after a failure, so release the parser in that case too.
+      if (failed || done) {
+        close();
+      }
+    }
+  }
+
+  private void copyWellKnownTypeToken(JsonToken token) throws IOException {
+    JsonGenerator writer = segmentWriter;
+    if (writer == null) {
+      writer = segmentWriter = jsonFactory.createGenerator(segment);
+    }
+    writer.copyCurrentEventExact(input);
+    if (token.isStructStart()) {
+      depth++;
+    } else if (token.isStructEnd()) {
+      depth--;
+    }
+    if (depth == 0) {
+      mergeSegment();
+      done = true;
+    }
+  }
+
+  private void handleToken(JsonToken token, Map<String, FieldDescriptor> fieldsByName)
+      throws IOException {
+    if (depth == 0) {
+      if (token != JsonToken.START_OBJECT) {
+        throw new InvalidProtocolBufferException(
+            "Expected start of object, got: " + input.getText());
+      }
+      depth++;
+      return;
+    }
+
+    if (depth == 1) {
+      if (token == JsonToken.END_OBJECT) {
+        depth--;
+        mergeSegment();
+        done = true;
+        return;
+      }
+      if (token == JsonToken.FIELD_NAME) {
+        String name = input.currentName();
+        FieldDescriptor field = fieldsByName.get(name);
+        if (field != null && !seenFields.add(field)) {
+          throw new InvalidProtocolBufferException(
+              "Field " + field.getFullName() + " has already been set.");
+        }
+        if (bufferedSize() >= SEGMENT_FLUSH_THRESHOLD) {
+          mergeSegment();
+        }
+        currentFieldName = name;
+        startSegment().writeFieldName(name);
+        return;
+      }
+    }
+
+    JsonGenerator writer = startSegment();
+    writer.copyCurrentEventExact(input);
+    if (token.isStructStart()) {
+      if (depth == 1 && token == JsonToken.START_ARRAY) {
+        // Only the elements of repeated fields are merged by adding to the field. Arrays of other
+        // fields, such as a ListValue, replace the field when merged, so must stay in one piece.
+        FieldDescriptor field = fieldsByName.get(requireNonNull(currentFieldName));
+        inTopLevelArray = field != null && field.isRepeated() && !field.isMapField();
+      }
+      depth++;
+    } else if (token.isStructEnd()) {
+      depth--;
+      if (depth == 1) {
+        inTopLevelArray = false;
+      }
+    }
+
+    if (inTopLevelArray
+        && depth == 2
+        && token != JsonToken.START_ARRAY
+        && bufferedSize() >= SEGMENT_FLUSH_THRESHOLD) {
+      // Finished an element of a large top-level array, merge what we have so far and continue
+      // the array in a new segment.
+      String fieldName = requireNonNull(currentFieldName);
+      mergeSegment();
+      JsonGenerator newWriter = startSegment();
+      newWriter.writeFieldName(fieldName);
+      newWriter.writeStartArray();
+    }
+  }
+
+  private JsonGenerator startSegment() throws IOException {
+    JsonGenerator writer = segmentWriter;
+    if (writer == null) {
+      writer = segmentWriter = jsonFactory.createGenerator(segment);
+      writer.writeStartObject();
+    }
+    return writer;
+  }
+
+  private int bufferedSize() {
+    JsonGenerator writer = segmentWriter;
+    return writer == null ? 0 : segment.size() + writer.getOutputBuffered();
+  }
+
+  private void mergeSegment() throws IOException {
+    JsonGenerator writer = segmentWriter;
+    if (writer == null) {
+      return;
+    }
+    if (fieldsByName != null) {
+      if (inTopLevelArray) {
+        writer.writeEndArray();
+      }
+      writer.writeEndObject();
+    }
+    writer.close();
+    segmentWriter = null;
+    try (JsonParser parser = jsonFactory.createParser(segment.toByteArray())) {
+      marshaller.mergeValue(parser, 0, builder);
+    }
+    segment.reset();
+  }
+}
@@ -0,0 +1,571 @@
+/*
+ * Copyright (c) Choko (choko@curioswitch.org)
+ * SPDX-License-Identifier: MIT
+ */
+
+package org.curioswitch.common.protobuf.json;
+
+import static java.util.Objects.requireNonNull;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.io.SerializedString;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.Descriptors.Descriptor;
+import com.google.protobuf.Descriptors.EnumDescriptor;
+import com.google.protobuf.Descriptors.EnumValueDescriptor;
+import com.google.protobuf.Descriptors.FieldDescriptor;
+import com.google.protobuf.Descriptors.FieldDescriptor.JavaType;
+import com.google.protobuf.DynamicMessage;
+import com.google.protobuf.Message;
+import com.google.protobuf.NullValue;
+import com.google.protobuf.Value;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import javax.annotation.Nullable;
+
+/**
+ * A {@link TypeSpecificMarshaller} which marshals its type by interpreting a table of the fields of
+ * the type instead of generating code. Each entry of the table reads and writes its field through a
+ * {@link FieldAccessor}, calling the generated accessors of the field through {@link
+ * java.lang.invoke.MethodHandle}s with {@link GeneratedFieldAccessor}, or the reflection API of
+ * {@link DynamicMessage} with {@link DynamicFieldAccessor}. Building the table is much cheaper than
+ * generating a marshaller, but marshalling is slower. The output and accepted input are the same as
+ * for the marshallers generated by {@link DoWrite} and {@link DoParse}, which this mirrors field by
+ * field.
+ *
+ * <p>Used by {@link TieredMarshaller} until a type has been used often enough to generate its
+ * marshaller, and for {@link DynamicMessage}s of a type known only by its {@link Descriptor}, for
+ * example one built at runtime from a {@code FileDescriptorSet}, which have no generated code to
+ * call. Fields of well-known types of a {@link DynamicMessage} are marshalled by the standard
+ * marshallers of the types, matched by name since descriptors built at runtime are different from
+ * the ones of the generated classes.
+ */
+final class InterpretedMarshaller<T extends Message> extends TypeSpecificMarshaller<T> {
+
+  /**
+   * Adds an {@link InterpretedMarshaller} for the type of {@code options}, which must be a {@link
+   * DynamicMessage}, and all message types reachable from it to {@code marshallers}, skipping types
+   * that are already present, including well-known types which have a standard marshaller.
+   *
+   * @throws IllegalArgumentException if the type is already registered as a generated class
+   */
+  static void addDynamic(
+      MarshallerOptions options, Map<Descriptor, TypeSpecificMarshaller<?>> marshallers) {
+    Descriptor descriptor = options.getPrototype().getDescriptorForType();
+    Set<String> registeredNames = new HashSet<>();
+    for (TypeSpecificMarshaller<?> marshaller : marshallers.values()) {
+      String name = marshaller.getDescriptorForMarshalledType().getFullName();
+      registeredNames.add(name);
+      if (name.equals(descriptor.getFullName())
+          && !(marshaller.getMarshalledPrototype() instanceof DynamicMessage)) {
+        throw new IllegalArgumentException(
+            "Type "
+                + name
+                + " is already registered as a generated class, it cannot also be registered as "
+                + "DynamicMessage.");
+      }
+    }
+    addDynamic(descriptor, options, marshallers, registeredNames);
+  }
+
+  private static void addDynamic(
+      Descriptor descriptor,
+      MarshallerOptions options,
+      Map<Descriptor, TypeSpecificMarshaller<?>> marshallers,
+      Set<String> registeredNames) {
+    if (!registeredNames.add(descriptor.getFullName())) {
+      return;
+    }
+    marshallers.put(
+        descriptor,
+        new InterpretedMarshaller<DynamicMessage>(
+            options.forPrototype(DynamicMessage.getDefaultInstance(descriptor)), marshallers));
+    for (FieldDescriptor field : descriptor.getFields()) {
+      FieldDescriptor valueField =
+          field.isMapField() ? field.getMessageType().findFieldByName("value") : field;
+      if (valueField.getJavaType() == JavaType.MESSAGE) {
+        addDynamic(valueField.getMessageType(), options, marshallers, registeredNames);
+      }
+    }
+  }
+
+  private final String fullName;
+  private final boolean ignoringUnknownFields;
+  private final boolean printingEnumsAsInts;
+  private final boolean sortingMapKeys;
+
+  // In field number order, the order of the output.
+  private final FieldEntry[] fields;
+  private final Map<String, FieldEntry> fieldsByName;
+
+  /**
+   * Creates the {@link InterpretedMarshaller} for the type of {@code options}. {@code marshallers}
+   * must contain the marshallers of all message types reachable from it.
+   */
+  // The prototype of the options is always of type T.
+  @SuppressWarnings("unchecked")
+  InterpretedMarshaller(
+      MarshallerOptions options, Map<Descriptor, TypeSpecificMarshaller<?>> marshallers) {
+    super((T) options.getPrototype());
+    Message prototype = options.getPrototype();
+    Descriptor descriptor = prototype.getDescriptorForType();
+    fullName = descriptor.getFullName();
+    ignoringUnknownFields = options.isIgnoringUnknownFields();
+    printingEnumsAsInts = options.isPrintingEnumsAsInts();
+    sortingMapKeys = options.isSortingMapKeys();
+
+    List<FieldDescriptor> sortedFields = CodeGenUtil.sorted(descriptor.getFields());
+    fields = new FieldEntry[sortedFields.size()];
+    fieldsByName = new HashMap<>();
+    for (int i = 0; i < fields.length; i++) {
+      FieldDescriptor f = sortedFields.get(i);
+      FieldEntry field = new FieldEntry(i, new ProtoFieldInfo(f, prototype), options, marshallers);
+      fields[i] = field;
+      // Names are matched in field order, the JSON name first, like generated code.
+      fieldsByName.putIfAbsent(f.getJsonName(), field);
+      fieldsByName.putIfAbsent(f.getName(), field);
+    }
+  }
+
+  @Override
+  protected void doWrite(T message, JsonGenerator gen) throws IOException {
+    for (FieldEntry field : fields) {
+      Object value = field.accessor.get(message);
+      if (field.skipDefault && field.isDefault(message, value)) {
+        continue;
+      }
+      gen.writeFieldName(field.serializedName);
+      FieldDescriptor.Type mapKeyType = field.mapKeyType;
+      if (mapKeyType != null) {
+        writeMap(field, mapKeyType, (Map<?, ?>) value, gen);
+      } else if (field.repeated) {
+        List<?> values = (List<?>) value;
+        int numElements = values.size();
+        gen.writeStartArray();
+        for (int i = 0; i < numElements; i++) {
+          writeSingle(field, values.get(i), gen);
+        }
+        gen.writeEndArray();
+      } else {
+        writeSingle(field, value, gen);
+      }
+    }
+  }
+
+  @Override
+  protected void doMerge(JsonParser parser, int currentDepth, Message.Builder messageBuilder)
+      throws IOException {
+    int[] setFieldBits = new int[(fields.length + Integer.SIZE - 1) / Integer.SIZE];
+    while (!ParseSupport.checkObjectEnd(parser.nextValue())) {
+      String fieldName = parser.currentName();
+      FieldEntry field = fieldsByName.get(fieldName);
+      if (field == null) {
+        if (ignoringUnknownFields) {
+          continue;
+        }
+        ParseSupport.throwIfUnknownField(fieldName, fullName);
+        return;
+      }
+      int bitsIndex = field.index / Integer.SIZE;
+      setFieldBits[bitsIndex] =
+          ParseSupport.throwIfFieldAlreadyWritten(
+              setFieldBits[bitsIndex], 0x1 << (field.index % Integer.SIZE), field.fullName);
+      if (field.inOneof) {
+        field.accessor.throwIfOneofAlreadyWritten(parser, messageBuilder, field.mustSkipNull);
+      }
+      if (field.mustSkipNull && ParseSupport.checkNull(parser)) {
+        continue;
+      }
+      FieldDescriptor.Type mapKeyType = field.mapKeyType;
+      if (mapKeyType != null) {
+        mergeMap(field, mapKeyType, parser, currentDepth, messageBuilder);
+      } else if (field.repeated) {
+        mergeRepeated(field, parser, currentDepth, messageBuilder);
+      } else {
+        Object value = readSingle(field, parser, currentDepth);
+        if (field.valueType == FieldDescriptor.Type.ENUM) {
+          // For non-repeated enums, we treat unknown as the default value.
+          value = ParseSupport.mapUnknownEnumValue((int) value);
+        }
+        field.accessor.set(messageBuilder, value);
+      }
+    }
+  }
+
+  private void writeMap(
+      FieldEntry field, FieldDescriptor.Type keyType, Map<?, ?> map, JsonGenerator gen)
+      throws IOException {
+    gen.writeStartObject();
+    Iterator<? extends Entry<?, ?>> entries =
+        SerializeSupport.mapIterator(map, sortingMapKeys, keyType == FieldDescriptor.Type.STRING);
+    while (entries.hasNext()) {
+      Entry<?, ?> entry = entries.next();
+      gen.writeFieldName(mapKeyToString(keyType, entry.getKey()));
+      writeSingle(field, entry.getValue(), gen);
+    }
+    gen.writeEndObject();
+  }
+
+  private void writeSingle(FieldEntry field, Object value, JsonGenerator gen) throws IOException {
+    switch (field.valueType) {
+      case ENUM:
+        EnumDescriptor enumType = requireNonNull(field.enumType);
+        if (field.isNullValue) {
+          SerializeSupport.printNull((int) value, gen);
+        } else if (printingEnumsAsInts) {
+          SerializeSupport.printUnsignedInt32((int) value, gen);
+        } else {
+          SerializeSupport.printEnum((int) value, gen, enumType);
+        }
+        return;
+      case MESSAGE:
+      case GROUP:
+        TypeSpecificMarshaller<Message> nested = field.nestedMarshaller();
+        Message message = (Message) value;
+        Message prototype = nested.getMarshalledPrototype();
+        if (!prototype.getClass().isInstance(message)) {
+          // A well-known type in a DynamicMessage, which its marshaller only accepts as the
+          // generated class.
+          message = prototype.getParserForType().parseFrom(message.toByteString());
+        }
+        SerializeSupport.printMessage(message, gen, nested);
+        return;
+      default:
+        writeScalar(field.valueType, value, gen);
+    }
+  }
+
+  private void mergeRepeated(
+      FieldEntry field, JsonParser parser, int currentDepth, Message.Builder builder)
+      throws IOException {
+    ParseSupport.parseArrayStart(parser);
+    while (true) {
+      ParseSupport.throwIfRepeatedValueNull(parser);
+      if (ParseSupport.checkArrayEnd(parser)) {
+        return;
+      }
+      Object value = readSingle(field, parser, currentDepth);
+      // Unknown enum values are skipped.
+      if (field.valueType != FieldDescriptor.Type.ENUM || (int) value != -1) {
+        field.accessor.set(builder, value);
+      }
+      parser.nextValue();
+    }
+  }
+
+  private void mergeMap(
+      FieldEntry field,
+      FieldDescriptor.Type keyType,
+      JsonParser parser,
+      int currentDepth,
+      Message.Builder builder)
+      throws IOException {
+    ParseSupport.parseObjectStart(parser);
+    while (!ParseSupport.checkObjectEnd(parser.currentToken())) {
+      Object key = readScalar(keyType, parser);
+      parser.nextToken();
+      Object value = readSingle(field, parser, currentDepth);
+      // Unknown enum values and nulls are skipped.
+      if (field.valueType != FieldDescriptor.Type.ENUM || (int) value != -1) {
+        field.accessor.put(builder, key, value);
+      }
+      parser.nextToken();
+    }
+  }
+
+  private Object readSingle(FieldEntry field, JsonParser parser, int currentDepth)
+      throws IOException {
+    switch (field.valueType) {
+      case ENUM:
+        if (field.isNullValue && parser.currentToken() == JsonToken.VALUE_NULL) {
+          // parseEnum only recognizes the descriptor of the generated NullValue.
+          return NullValue.NULL_VALUE_VALUE;
+        }
+        return ParseSupport.parseEnum(
+            parser, requireNonNull(field.enumType), ignoringUnknownFields);
+      case MESSAGE:
+      case GROUP:
+        Message parsed =
+            ParseSupport.parseMessage(parser, field.nestedMarshaller(), currentDepth);
+        Descriptor type = requireNonNull(field.nestedType);
+        if (parsed.getDescriptorForType() != type) {
+          // A well-known type in a DynamicMessage, parsed as the generated class.
+          return DynamicMessage.parseFrom(type, parsed.toByteString());
+        }
+        return parsed;
+      default:
+        return readScalar(field.valueType, parser);
+    }
+  }
+
+  /**
+   * Writes {@code value} of a field of {@code type}, which must not be an enum or message, boxed as
+   * returned by the generated and {@link DynamicMessage} getters.
+   */
+  static void writeScalar(FieldDescriptor.Type type, Object value, JsonGenerator gen)
+      throws IOException {
+    switch (type) {
+      case INT32:
+      case SINT32:
+      case SFIXED32:
+        SerializeSupport.printSignedInt32((int) value, gen);
+        return;
+      case INT64:
+      case SINT64:
+      case SFIXED64:
+        SerializeSupport.printSignedInt64((long) value, gen);
+        return;
+      case BOOL:
+        SerializeSupport.printBool((boolean) value, gen);
+        return;
+      case FLOAT:
+        SerializeSupport.printFloat((float) value, gen);
+        return;
+      case DOUBLE:
+        SerializeSupport.printDouble((double) value, gen);
+        return;
+      case UINT32:
+      case FIXED32:
+        SerializeSupport.printUnsignedInt32((int) value, gen);
+        return;
+      case UINT64:
+      case FIXED64:
+        SerializeSupport.printUnsignedInt64((long) value, gen);
+        return;
+      case STRING:
+        SerializeSupport.printString((String) value, gen);
+        return;
+      case BYTES:
+        SerializeSupport.printBytes((ByteString) value, gen);
+        return;
+      default:
+        throw new IllegalStateException("Not a scalar field type: " + type);
+    }
+  }
+
+  /**
+   * Reads a value of a field of {@code type}, which must not be an enum or message, boxed as
+   * accepted by the generated and {@link DynamicMessage} setters. Also used for map keys.
+   */
+  static Object readScalar(FieldDescriptor.Type type, JsonParser parser) throws IOException {
+    switch (type) {
+      case INT32:
+      case SINT32:
+      case SFIXED32:
+        return ParseSupport.parseInt32(parser);
+      case INT64:
+      case SINT64:
+      case SFIXED64:
+        return ParseSupport.parseInt64(parser);
+      case BOOL:
+        return ParseSupport.parseBool(parser);
+      case FLOAT:
+        return ParseSupport.parseFloat(parser);
+      case DOUBLE:
+        return ParseSupport.parseDouble(parser);
+      case UINT32:
+      case FIXED32:
+        return ParseSupport.parseUInt32(parser);
+      case UINT64:
+      case FIXED64:
+        return ParseSupport.parseUInt64(parser);
+      case STRING:
+        return ParseSupport.parseString(parser);
+      case BYTES:
+        return ParseSupport.parseBytes(parser);
+      default:
+        throw new IllegalStateException("Not a scalar field type: " + type);
+    }
+  }
+
+  /** Returns the JSON object key for the map {@code key} of {@code keyType}. */
+  static String mapKeyToString(FieldDescriptor.Type keyType, Object key) {
+    switch (keyType) {
+      case INT32:
+      case SINT32:
+      case SFIXED32:
+        return Integer.toString((int) key);
+      case INT64:
+      case SINT64:
+      case SFIXED64:
+        return Long.toString((long) key);
+      case BOOL:
+        return Boolean.toString((boolean) key);
+      case UINT32:
+      case FIXED32:
+        return Long.toString(SerializeSupport.normalizeUnsignedInt32((int) key));
+      case UINT64:
+      case FIXED64:
+        return SerializeSupport.normalizeUnsignedInt64((long) key);
+      case STRING:
+        return (String) key;
+      default:
+        throw new IllegalStateException("Unexpected map key type: " + keyType);
+    }
+  }
+
+  /**
+   * An entry of the field table, with everything needed to marshal the field precomputed. Also
+   * used by {@link PositionalMarshaller}.
+   */
+  static final class FieldEntry {
+    private final int index;
+    final String fullName;
+    private final SerializedString serializedName;
+    final boolean repeated;
+    final FieldDescriptor.Type valueType;
+    @Nullable final FieldDescriptor.Type mapKeyType;
+    @Nullable final EnumDescriptor enumType;
+    private final boolean isNullValue;
+    final boolean inOneof;
+    private final boolean mustSkipNull;
+    final int number;
+
+    // Whether the field is skipped in the output when it has its default value, and how to check
+    // it, by presence if the field tracks it, or else by comparing to the default value.
+    final boolean skipDefault;
+    private final boolean checkPresence;
+    @Nullable private final Object defaultValue;
+
+    final FieldAccessor accessor;
+
+    @Nullable private final Descriptor nestedType;
+    private final Map<Descriptor, TypeSpecificMarshaller<?>> marshallers;
+    @Nullable private TypeSpecificMarshaller<Message> nestedMarshaller;
+
+    FieldEntry(
+        int index,
+        ProtoFieldInfo field,
+        MarshallerOptions options,
+        Map<Descriptor, TypeSpecificMarshaller<?>> marshallers) {
+      FieldDescriptor f = field.descriptor();
+      this.index = index;
+      this.marshallers = marshallers;
+      fullName = f.getFullName();
+      serializedName =
+          SerializeSupport.serializeString(
+              options.isPreservingProtoFieldNames() ? f.getName() : f.getJsonName());
+      repeated = f.isRepeated();
+      valueType = field.valueType();
+      mapKeyType = field.isMapField() ? field.mapKeyField().valueType() : null;
+      enumType =
+          valueType == FieldDescriptor.Type.ENUM
+              ? field.valueField().descriptor().getEnumType()
+              : null;
+      // Matched by name to also match descriptors built at runtime.
+      isNullValue =
+          enumType != null
+              && enumType.getFullName().equals(NullValue.getDescriptor().getFullName());
+      nestedType =
+          field.valueJavaType() == JavaType.MESSAGE
+              ? field.valueField().descriptor().getMessageType()
+              : null;
+      inOneof = field.isInOneof();
+      mustSkipNull = mustSkipNull(f);
+      number = f.getNumber();
+
+      accessor =
+          options.getPrototype() instanceof DynamicMessage
+              ? new DynamicFieldAccessor(field)
+              : new GeneratedFieldAccessor(field, options.getPrototype());
+
+      // Same conditions as DoWrite.
+      skipDefault =
+          (!options.isIncludingDefaultValueFields()
+                  && !options.getFieldsToAlwaysOutput().contains(f))
+              || inOneof
+              || ProtobufUtil.hasOptionalKeyword(f)
+              || (!f.isRequired() && !f.isRepeated() && field.valueJavaType() == JavaType.MESSAGE);
+      checkPresence =
+          inOneof
+              || ProtobufUtil.hasOptionalKeyword(f)
+              || (!f.isRepeated() && field.valueJavaType() == JavaType.MESSAGE);
+      if (!checkPresence && !f.isRepeated()) {
+        defaultValue =
+            field.valueJavaType() == JavaType.ENUM
+                ? ((EnumValueDescriptor) f.getDefaultValue()).getNumber()
+                : f.getDefaultValue();
+      } else {
+        defaultValue = null;
+      }
+    }
+
+    /**
+     * Returns whether {@code value} of this field in {@code message}, as returned by the {@link
+     * #accessor}, is the default.
+     */
+    boolean isDefault(Message message, Object value) {
+      if (checkPresence) {
+        return !accessor.has(message);
+      }
+      if (repeated) {
+        return value instanceof Map ? ((Map<?, ?>) value).isEmpty() : ((List<?>) value).isEmpty();
+      }
+      Object defaultValue = requireNonNull(this.defaultValue);
+      // Compare primitives like generated code, e.g., -0.0 is the default but NaN never is.
+      switch (valueType.getJavaType()) {
+        case FLOAT:
+          return (float) value == (float) defaultValue;
+        case DOUBLE:
+          return (double) value == (double) defaultValue;
+        default:
+          return value.equals(defaultValue);
+      }
+    }
+
+    TypeSpecificMarshaller<Message> nestedMarshaller() {
+      TypeSpecificMarshaller<Message> nestedMarshaller = this.nestedMarshaller;
+      if (nestedMarshaller == null) {
+        // Looked up on first use since the registry is still being populated when the table is
+        // created. Racing threads find the same marshaller.
+        Descriptor type = requireNonNull(nestedType);
+        TypeSpecificMarshaller<?> found = marshallers.get(type);
+        if (found == null) {
+          // A well-known type in a DynamicMessage, from a different descriptor than its standard
+          // marshaller.
+          for (TypeSpecificMarshaller<?> marshaller : marshallers.values()) {
+            String name = marshaller.getDescriptorForMarshalledType().getFullName();
+            if (name.equals(type.getFullName())) {
+              found = marshaller;
+              break;
+            }
+          }
+        }
+        if (found == null) {
+          throw new IllegalStateException(
+              "nested marshaller could not be found for field: " + fullName);
+        }
+        // The marshaller for a type is always TypeSpecificMarshaller of the type.
+        @SuppressWarnings("unchecked")
+        TypeSpecificMarshaller<Message> resolved = (TypeSpecificMarshaller<Message>) found;
+        nestedMarshaller = resolved;
+        this.nestedMarshaller = resolved;
+      }
+      return nestedMarshaller;
+    }
+
+    /**
+     * Determines whether we skip processing of the field if it is null, the same as {@link
+     * DoParse}. Types are matched by name to also match descriptors built at runtime.
+     */
+    private static boolean mustSkipNull(FieldDescriptor field) {
+      if (field.isRepeated()) {
+        return true;
+      }
+      if (field.getJavaType() == JavaType.MESSAGE
+          && field.getMessageType().getFullName().equals(Value.getDescriptor().getFullName())) {
+        return false;
+      }
+      return field.getJavaType() != JavaType.ENUM
+          || !field.getEnumType().getFullName().equals(NullValue.getDescriptor().getFullName());
+    }
+  }
+}
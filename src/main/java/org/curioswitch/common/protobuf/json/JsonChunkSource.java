@@ -0,0 +1,277 @@
+/*
+ * Copyright (c) Choko (choko@curioswitch.org)
+ * SPDX-License-Identifier: MIT
+ */
+
+package org.curioswitch.common.protobuf.json;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.google.protobuf.Descriptors.FieldDescriptor;
+import com.google.protobuf.Descriptors.FieldDescriptor.JavaType;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.Message;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import javax.annotation.Nullable;
+
+/**
+ * A source of the JSON serialization of a {@link Message} as chunks of UTF-8 bytes, produced on
+ * demand as they are pulled with {@link #nextChunk()}. Obtain one with {@link
+ * MessageMarshaller#writeValueAsChunks(Message, int)}. This allows event loop servers to respect
+ * backpressure when writing very large messages, only serializing more of the message when the
+ * client is ready to receive it. Not thread-safe.
+ *
+ * <p>Serialization only advances by whole units of work, so a single chunk request may serialize
+ * more than one chunk's worth of output, which is buffered until pulled. Each element of a
+ * non-empty top-level repeated message field is a unit, and runs of other top-level fields between
+ * them are also a unit, so for the common case of a response that contains a large list of items,
+ * only about one item's worth of output is buffered at a time. When including default value fields,
+ * or for well-known types, the whole message is a single unit.
+ */
+public final class JsonChunkSource implements Closeable {
+
+  private interface Step {
+    /** Writes the next unit of output, returning whether this step is complete. */
+    boolean write(JsonGenerator gen) throws IOException;
+  }
+
+  private final JsonGenerator gen;
+  private final ChunkOutputStream out;
+  private final int maxChunkSize;
+  private final List<Step> steps;
+
+  private int currentStep;
+
+  private JsonChunkSource(
+      JsonGenerator gen, ChunkOutputStream out, int maxChunkSize, List<Step> steps) {
+    this.gen = gen;
+    this.out = out;
+    this.maxChunkSize = maxChunkSize;
+    this.steps = steps;
+  }
+
+  /**
+   * Returns the next chunk of output, at most the max chunk size specified when creating this
+   * {@link JsonChunkSource}, or {@code null} if the entire message has been returned. The returned
+   * buffer is owned by the caller.
+   *
+   * @throws InvalidProtocolBufferException if there are unknown Any types in the message.
+   */
+  @Nullable
+  public ByteBuffer nextChunk() throws IOException {
+    try {
+      while (out.size() < maxChunkSize && currentStep < steps.size()) {
+        if (steps.get(currentStep).write(gen)) {
+          currentStep++;
+        }
+        if (currentStep == steps.size()) {
+          gen.close();
+        } else {
+          gen.flush();
+        }
+      }
+    } catch (InvalidProtocolBufferException e) {
+      throw e;
+    } catch (IOException e) {
+      throw new InvalidProtocolBufferException(e);
+    }
+    if (out.size() == 0) {
+      return null;
+    }
+    return ByteBuffer.wrap(out.take(Math.min(maxChunkSize, out.size())));
+  }
+
+  /**
+   * Releases resources used for serialization. It is only necessary to call this if the source is
+   * abandoned before {@link #nextChunk()} returns {@code null}.
+   */
+  @Override
+  public void close() throws IOException {
+    currentStep = steps.size();
+    gen.close();
+  }
+
+  static <T extends Message> JsonChunkSource create(
+      T message,
+      TypeSpecificMarshaller<T> marshaller,
+      MarshallerRegistry registry,
+      JsonGenerator gen,
+      ChunkOutputStream out,
+      int maxChunkSize,
+      boolean serializeAsSingleStep,
+      boolean preservingProtoFieldNames) {
+    if (serializeAsSingleStep || marshaller instanceof WellKnownTypeMarshaller) {
+      return new JsonChunkSource(
+          gen,
+          out,
+          maxChunkSize,
+          singletonStep(
+              g -> {
+                marshaller.writeValue(message, g);
+                return true;
+              }));
+    }
+
+    List<FieldDescriptor> fields = CodeGenUtil.sorted(message.getDescriptorForType().getFields());
+    List<Step> steps = new ArrayList<>();
+    steps.add(
+        g -> {
+          g.writeStartObject();
+          return true;
+        });
+    List<FieldDescriptor> pendingFields = new ArrayList<>();
+    for (FieldDescriptor field : fields) {
+      if (!field.isRepeated()
+          || field.isMapField()
+          || field.getJavaType() != JavaType.MESSAGE
+          || message.getRepeatedFieldCount(field) == 0) {
+        pendingFields.add(field);
+        continue;
+      }
+      if (!pendingFields.isEmpty()) {
+        steps.add(partialFieldsStep(message, marshaller, fields, pendingFields));
+        pendingFields = new ArrayList<>();
+      }
+      steps.add(
+          repeatedMessageStep(
+              message,
+              field,
+              registry,
+              preservingProtoFieldNames ? field.getName() : field.getJsonName()));
+    }
+    if (steps.size() == 1) {
+      // No fields to stream, just serialize the message at once.
+      return create(
+          message, marshaller, registry, gen, out, maxChunkSize, true, preservingProtoFieldNames);
+    }
+    if (!pendingFields.isEmpty()) {
+      steps.add(partialFieldsStep(message, marshaller, fields, pendingFields));
+    }
+    steps.add(
+        g -> {
+          g.writeEndObject();
+          return true;
+        });
+    return new JsonChunkSource(gen, out, maxChunkSize, steps);
+  }
+
+  private static <T extends Message> Step partialFieldsStep(
+      T message,
+      TypeSpecificMarshaller<T> marshaller,
+      List<FieldDescriptor> allFields,
+      List<FieldDescriptor> includedFields) {
+    Message.Builder builder = message.toBuilder();
+    for (FieldDescriptor field : allFields) {
+      if (!includedFields.contains(field)) {
+        builder.clearField(field);
+      }
+    }
+    // T.toBuilder().buildPartial() is T
+    @SuppressWarnings("unchecked")
+    T partial = (T) builder.buildPartial();
+    return gen -> {
+      marshaller.doWrite(partial, gen);
+      return true;
+    };
+  }
+
+  private static Step repeatedMessageStep(
+      Message message, FieldDescriptor field, MarshallerRegistry registry, String fieldName) {
+    int numElements = message.getRepeatedFieldCount(field);
+    TypeSpecificMarshaller<?> elementMarshaller =
+        registry.findForPrototype(
+            ((Message) message.getRepeatedField(field, 0)).getDefaultInstanceForType());
+    return new Step() {
+      private int nextElement;
+
+      @Override
+      public boolean write(JsonGenerator gen) throws IOException {
+        if (nextElement == 0) {
+          gen.writeFieldName(fieldName);
+          gen.writeStartArray();
+        }
+        writeElement(
+            elementMarshaller, (Message) message.getRepeatedField(field, nextElement++), gen);
+        if (nextElement == numElements) {
+          gen.writeEndArray();
+          return true;
+        }
+        return false;
+      }
+    };
+  }
+
+  private static <T extends Message> void writeElement(
+      TypeSpecificMarshaller<T> marshaller, Message element, JsonGenerator gen)
+      throws IOException {
+    // The marshaller was found for the element's type.
+    @SuppressWarnings("unchecked")
+    T value = (T) element;
+    marshaller.writeValue(value, gen);
+  }
+
+  private static List<Step> singletonStep(Step step) {
+    List<Step> steps = new ArrayList<>(1);
+    steps.add(step);
+    return steps;
+  }
+
+  /**
+   * An {@link OutputStream} which buffers written bytes until they are taken as a chunk. The buffer
+   * is compacted as chunks are taken so it only grows to the size of one unit of output.
+   */
+  static final class ChunkOutputStream extends OutputStream {
+
+    private byte[] buf = new byte[8192];
+    private int start;
+    private int end;
+
+    int size() {
+      return end - start;
+    }
+
+    byte[] take(int length) {
+      byte[] chunk = Arrays.copyOfRange(buf, start, start + length);
+      start += length;
+      if (start == end) {
+        start = 0;
+        end = 0;
+      }
+      return chunk;
+    }
+
+    @Override
+    public void write(int b) {
+      ensureCapacity(1);
+      buf[end++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+      ensureCapacity(len);
+      System.arraycopy(b, off, buf, end, len);
+      end += len;
+    }
+
+    private void ensureCapacity(int len) {
+      if (end + len <= buf.length) {
+        return;
+      }
+      int size = size();
+      if (size + len <= buf.length) {
+        System.arraycopy(buf, start, buf, 0, size);
+      } else {
+        byte[] newBuf = new byte[Math.max(buf.length * 2, size + len)];
+        System.arraycopy(buf, start, newBuf, 0, size);
+        buf = newBuf;
+      }
+      start = 0;
+      end = size;
+    }
+  }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright (c) Choko (choko@curioswitch.org)
+ * SPDX-License-Identifier: MIT
+ */
+
+package org.curioswitch.common.protobuf.json;
+
+import java.io.Closeable;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The JSON serialization of a {@link com.google.protobuf.Message} as a list of segments of UTF-8
+ * bytes, as returned by {@link
+ * MessageMarshaller#writeValueAsSegments(com.google.protobuf.Message)}. The segments are not copied
+ * into a single array, so they can be passed as is to gathering writes such as {@link
+ * java.nio.channels.GatheringByteChannel#write(ByteBuffer[])} or wrapped into a composite buffer.
+ * Once the bytes have been written, {@link #close()} must be called to return the segments to the
+ * pool for reuse by later serializations, after which the buffers must not be accessed anymore. Not
+ * thread-safe.
+ */
+public final class JsonSegments implements Closeable {
+
+  private final SegmentPool pool;
+  private final List<byte[]> segments;
+  private final ByteBuffer[] buffers;
+  private final int length;
+
+  private boolean closed;
+
+  private JsonSegments(SegmentPool pool, List<byte[]> segments, int lastSegmentLength) {
+    this.pool = pool;
+    this.segments = segments;
+    buffers = new ByteBuffer[segments.size()];
+    int length = 0;
+    for (int i = 0; i < buffers.length; i++) {
+      int segmentLength = i == buffers.length - 1 ? lastSegmentLength : SegmentPool.SEGMENT_SIZE;
+      buffers[i] = ByteBuffer.wrap(segments.get(i), 0, segmentLength);
+      length += segmentLength;
+    }
+    this.length = length;
+  }
+
+  /**
+   * Returns the segments as {@link ByteBuffer}s, each positioned at its first byte with its limit
+   * after its last byte. Reading from the buffers, e.g. by writing them to a channel, advances
+   * their positions as usual.
+   */
+  public ByteBuffer[] buffers() {
+    if (closed) {
+      throw new IllegalStateException("Segments have already been released.");
+    }
+    return buffers;
+  }
+
+  /** Returns the total number of bytes in all segments. */
+  public int length() {
+    return length;
+  }
+
+  /** Returns the segments to the pool. Does nothing if already closed. */
+  @Override
+  public void close() {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    for (byte[] segment : segments) {
+      pool.release(segment);
+    }
+  }
+
+  /** An {@link OutputStream} which writes into segments acquired from a {@link SegmentPool}. */
+  static final class SegmentOutputStream extends OutputStream {
+
+    private final SegmentPool pool;
+    private final List<byte[]> segments = new ArrayList<>();
+
+    private byte[] current;
+    private int position;
+
+    SegmentOutputStream(SegmentPool pool) {
+      this.pool = pool;
+      current = pool.acquire();
+      segments.add(current);
+    }
+
+    @Override
+    public void write(int b) {
+      if (position == current.length) {
+        nextSegment();
+      }
+      current[position++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+      while (len > 0) {
+        if (position == current.length) {
+          nextSegment();
+        }
+        int toCopy = Math.min(len, current.length - position);
+        System.arraycopy(b, off, current, position, toCopy);
+        position += toCopy;
+        off += toCopy;
+        len -= toCopy;
+      }
+    }
+
+    /** Returns the written segments. The stream must not be used afterwards. */
+    JsonSegments toSegments() {
+      return new JsonSegments(pool, segments, position);
+    }
+
+    /** Returns all segments to the pool, used when serialization fails. */
+    void release() {
+      for (byte[] segment : segments) {
+        pool.release(segment);
+      }
+      segments.clear();
+    }
+
+    private void nextSegment() {
+      current = pool.acquire();
+      segments.add(current);
+      position = 0;
+    }
+  }
+}
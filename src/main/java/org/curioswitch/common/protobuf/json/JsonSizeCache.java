@@ -0,0 +1,49 @@
+/*
+ * Copyright (c) Choko (choko@curioswitch.org)
+ * SPDX-License-Identifier: MIT
+ */
+
+package org.curioswitch.common.protobuf.json;
+
+import com.google.protobuf.Message;
+import java.lang.ref.WeakReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A small cache of computed JSON sizes keyed by {@link Message} identity, similar to the memoized
+ * serialized size of protobuf messages. Messages are immutable, so a size never goes stale. Entries
+ * only weakly reference their message and each slot holds a single entry, newer entries replacing
+ * older ones, so the cache neither keeps messages alive nor grows unbounded.
+ */
+final class JsonSizeCache {
+
+  private static final int NUM_SLOTS = 256;
+
+  private final AtomicReferenceArray<Entry> slots = new AtomicReferenceArray<>(NUM_SLOTS);
+
+  /** Returns the cached size of {@code message}, or {@code -1} if not cached. */
+  int get(Message message) {
+    Entry entry = slots.get(slot(message));
+    if (entry != null && entry.get() == message) {
+      return entry.size;
+    }
+    return -1;
+  }
+
+  void put(Message message, int size) {
+    slots.set(slot(message), new Entry(message, size));
+  }
+
+  private static int slot(Message message) {
+    return System.identityHashCode(message) & (NUM_SLOTS - 1);
+  }
+
+  private static final class Entry extends WeakReference<Message> {
+    private final int size;
+
+    private Entry(Message message, int size) {
+      super(message);
+      this.size = size;
+    }
+  }
+}
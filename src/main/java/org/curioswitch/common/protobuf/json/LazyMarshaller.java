@@ -0,0 +1,133 @@
+/*
+ * Copyright (c) Choko (choko@curioswitch.org)
+ * SPDX-License-Identifier: MIT
+ */
+
+package org.curioswitch.common.protobuf.json;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.Descriptors.Descriptor;
+import com.google.protobuf.Message;
+import java.io.IOException;
+import java.util.Map;
+import javax.annotation.Nullable;
+
+/**
+ * A {@link TypeSpecificMarshaller} which only generates the marshaller for its type when first
+ * used, delegating to it afterwards. Used when a {@link MessageMarshaller} is built with {@link
+ * MessageMarshaller.Builder#generatingLazily(boolean)}, in which case the registry and the nested
+ * marshaller fields of generated marshallers all refer to {@link LazyMarshaller}s.
+ *
+ * <p>Resolution only takes a lock on the {@link LazyMarshaller} until the marshaller has been
+ * generated, so concurrent first uses of the same type wait for a single generation, while other
+ * types can be generated at the same time.
+ */
+final class LazyMarshaller<T extends Message> extends TypeSpecificMarshaller<T> {
+
+  /**
+   * Adds a {@link LazyMarshaller} for the type of {@code options} and all message types reachable
+   * from it to {@code marshallers}, skipping types that are already present. No code is generated.
+   */
+  static void addLazy(
+      MarshallerOptions options,
+      Map<Descriptor, TypeSpecificMarshaller<?>> marshallers,
+      GeneratedClassLoader classLoader) {
+    Descriptor descriptor = options.getPrototype().getDescriptorForType();
+    if (marshallers.containsKey(descriptor)) {
+      return;
+    }
+    marshallers.put(descriptor, new LazyMarshaller<>(options, marshallers, classLoader));
+    for (Message nestedPrototype :
+        TypeSpecificMarshaller.nestedMessagePrototypes(options.getPrototype())) {
+      addLazy(options.forPrototype(nestedPrototype), marshallers, classLoader);
+    }
+  }
+
+  private final MarshallerOptions options;
+  private final Map<Descriptor, TypeSpecificMarshaller<?>> marshallers;
+  private final GeneratedClassLoader classLoader;
+
+  @Nullable private volatile TypeSpecificMarshaller<T> resolved;
+
+  // The prototype of the options is always of type T.
+  @SuppressWarnings("unchecked")
+  private LazyMarshaller(
+      MarshallerOptions options,
+      Map<Descriptor, TypeSpecificMarshaller<?>> marshallers,
+      GeneratedClassLoader classLoader) {
+    super((T) options.getPrototype());
+    this.options = options;
+    this.marshallers = marshallers;
+    this.classLoader = classLoader;
+  }
+
+  MarshallerOptions getOptions() {
+    return options;
+  }
+
+  /** Returns whether the marshaller for the type has been generated. */
+  boolean isGenerated() {
+    return resolved != null;
+  }
+
+  @Override
+  TypeSpecificMarshaller<T> resolve() {
+    TypeSpecificMarshaller<T> resolved = this.resolved;
+    if (resolved == null) {
+      resolved = generate();
+    }
+    return resolved;
+  }
+
+  private synchronized TypeSpecificMarshaller<T> generate() {
+    TypeSpecificMarshaller<T> resolved = this.resolved;
+    if (resolved == null) {
+      // Marshaller for options of T is TypeSpecificMarshaller<T>
+      @SuppressWarnings("unchecked")
+      TypeSpecificMarshaller<T> built =
+          (TypeSpecificMarshaller<T>)
+              TypeSpecificMarshaller.buildSingle(options, marshallers, classLoader);
+      resolved = built;
+      this.resolved = built;
+    }
+    return resolved;
+  }
+
+  @Override
+  T readValue(JsonParser parser, int currentDepth) throws IOException {
+    return resolve().readValue(parser, currentDepth);
+  }
+
+  @Override
+  void mergeValue(JsonParser parser, int currentDepth, Message.Builder builder) throws IOException {
+    resolve().mergeValue(parser, currentDepth, builder);
+  }
+
+  @Override
+  void writeValue(T message, JsonGenerator gen) throws IOException {
+    resolve().writeValue(message, gen);
+  }
+
+  @Override
+  void writeValue(ByteString encodedMessage, JsonGenerator gen) throws IOException {
+    resolve().writeValue(encodedMessage, gen);
+  }
+
+  @Override
+  void doWrite(ByteString encodedMessage, JsonGenerator gen) throws IOException {
+    resolve().doWrite(encodedMessage, gen);
+  }
+
+  @Override
+  protected void doWrite(T message, JsonGenerator gen) throws IOException {
+    resolve().doWrite(message, gen);
+  }
+
+  @Override
+  protected void doMerge(JsonParser parser, int currentDepth, Message.Builder messageBuilder)
+      throws IOException {
+    resolve().doMerge(parser, currentDepth, messageBuilder);
+  }
+}
@@ -5,64 +5,178 @@
 
 package org.curioswitch.common.protobuf.json;
 
+import com.google.protobuf.Descriptors.Descriptor;
+import com.google.protobuf.Descriptors.FieldDescriptor;
 import java.lang.ref.ReferenceQueue;
 import java.lang.ref.WeakReference;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
 import javax.annotation.Nullable;
 
 // Because it is fairly expensive to build a TypeSpecificMarshaller, we go ahead
 // and cache to save time across different MessageMarshaller instances. We still
 // want to make sure they can be garbage collected, so we use weak references.
+// Lookups don't lock, and concurrent requests for the same marshaller wait for
+// a single build instead of each generating their own class. Keys only contain
+// the Descriptor and options, not the prototype, so that the cache doesn't keep
+// the class loader of the prototype alive.
 final class MarshallerCache {
 
-  private final Map<MarshallerOptions, MarshallerReference> cache = new HashMap<>();
+  private final ConcurrentMap<Key, MarshallerReference> cache = new ConcurrentHashMap<>();
+  private final ConcurrentMap<Key, CompletableFuture<TypeSpecificMarshaller<?>>> inFlight =
+      new ConcurrentHashMap<>();
   private final ReferenceQueue<TypeSpecificMarshaller<?>> queue = new ReferenceQueue<>();
-  private final ReentrantLock lock = new ReentrantLock();
 
-  @Nullable
-  TypeSpecificMarshaller<?> get(MarshallerOptions key) {
-    lock.lock();
-    try {
-      clean();
-      MarshallerReference ref = cache.get(key);
-      return ref != null ? ref.get() : null;
-    } finally {
-      lock.unlock();
+  private final LongAdder hitCount = new LongAdder();
+  private final LongAdder missCount = new LongAdder();
+  private final LongAdder evictionCount = new LongAdder();
+
+  /**
+   * Returns the cached marshaller for {@code key}, building it with {@code factory} if not present.
+   * If another thread is already building the same marshaller, waits for it to finish instead.
+   */
+  TypeSpecificMarshaller<?> getOrCreate(
+      MarshallerOptions options, Supplier<TypeSpecificMarshaller<?>> factory) {
+    Key key = new Key(options);
+    TypeSpecificMarshaller<?> cached = get(key);
+    if (cached != null) {
+      hitCount.increment();
+      return cached;
     }
-  }
 
-  void put(MarshallerOptions key, TypeSpecificMarshaller<?> value) {
-    lock.lock();
+    CompletableFuture<TypeSpecificMarshaller<?>> future = new CompletableFuture<>();
+    CompletableFuture<TypeSpecificMarshaller<?>> existing = inFlight.putIfAbsent(key, future);
+    if (existing != null) {
+      hitCount.increment();
+      return join(existing);
+    }
     try {
-      clean();
-      cache.put(key, new MarshallerReference(key, value, queue));
+      // Another thread may have finished building between our lookup and claiming the build.
+      TypeSpecificMarshaller<?> marshaller = get(key);
+      if (marshaller != null) {
+        hitCount.increment();
+      } else {
+        missCount.increment();
+        marshaller = factory.get();
+        clean();
+        cache.put(key, new MarshallerReference(key, marshaller, queue));
+      }
+      future.complete(marshaller);
+      return marshaller;
+    } catch (RuntimeException | Error e) {
+      future.completeExceptionally(e);
+      throw e;
     } finally {
-      lock.unlock();
+      inFlight.remove(key, future);
     }
   }
 
+  MarshallerCacheStats stats() {
+    return new MarshallerCacheStats(hitCount.sum(), missCount.sum(), evictionCount.sum());
+  }
+
+  @Nullable
+  private TypeSpecificMarshaller<?> get(Key key) {
+    MarshallerReference ref = cache.get(key);
+    return ref != null ? ref.get() : null;
+  }
+
+  // Only called when adding entries, lookups can ignore cleared references.
   private void clean() {
     MarshallerReference ref;
     while ((ref = (MarshallerReference) queue.poll()) != null) {
-      cache.remove(ref.getKey());
+      if (cache.remove(ref.getKey(), ref)) {
+        evictionCount.increment();
+      }
+    }
+  }
+
+  /** Waits for {@code future}, rethrowing a failure as is instead of wrapped. */
+  static TypeSpecificMarshaller<?> join(
+      CompletableFuture<TypeSpecificMarshaller<?>> future) {
+    try {
+      return future.join();
+    } catch (CompletionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      throw e;
     }
   }
 
   private static class MarshallerReference extends WeakReference<TypeSpecificMarshaller<?>> {
-    private final MarshallerOptions key;
+    private final Key key;
 
     MarshallerReference(
-        MarshallerOptions key,
+        Key key,
         TypeSpecificMarshaller<?> value,
         ReferenceQueue<TypeSpecificMarshaller<?>> queue) {
       super(value, queue);
       this.key = key;
     }
 
-    MarshallerOptions getKey() {
+    Key getKey() {
       return key;
     }
   }
+
+  private static final class Key {
+    private final Descriptor descriptor;
+    private final boolean includingDefaultValueFields;
+    private final Set<FieldDescriptor> fieldsToAlwaysOutput;
+    private final boolean preservingProtoFieldNames;
+    private final boolean ignoringUnknownFields;
+    private final boolean printingEnumsAsInts;
+    private final boolean sortingMapKeys;
+
+    private Key(MarshallerOptions options) {
+      descriptor = options.getPrototype().getDescriptorForType();
+      includingDefaultValueFields = options.isIncludingDefaultValueFields();
+      fieldsToAlwaysOutput = options.getFieldsToAlwaysOutput();
+      preservingProtoFieldNames = options.isPreservingProtoFieldNames();
+      ignoringUnknownFields = options.isIgnoringUnknownFields();
+      printingEnumsAsInts = options.isPrintingEnumsAsInts();
+      sortingMapKeys = options.isSortingMapKeys();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) {
+        return true;
+      }
+      if (!(o instanceof Key)) {
+        return false;
+      }
+      Key that = (Key) o;
+      return includingDefaultValueFields == that.includingDefaultValueFields
+          && preservingProtoFieldNames == that.preservingProtoFieldNames
+          && ignoringUnknownFields == that.ignoringUnknownFields
+          && printingEnumsAsInts == that.printingEnumsAsInts
+          && sortingMapKeys == that.sortingMapKeys
+          && descriptor.equals(that.descriptor)
+          && fieldsToAlwaysOutput.equals(that.fieldsToAlwaysOutput);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(
+          descriptor,
+          includingDefaultValueFields,
+          fieldsToAlwaysOutput,
+          preservingProtoFieldNames,
+          ignoringUnknownFields,
+          printingEnumsAsInts,
+          sortingMapKeys);
+    }
+  }
 }
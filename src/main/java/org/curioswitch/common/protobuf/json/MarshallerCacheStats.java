@@ -0,0 +1,54 @@
+/*
+ * Copyright (c) Choko (choko@curioswitch.org)
+ * SPDX-License-Identifier: MIT
+ */
+
+package org.curioswitch.common.protobuf.json;
+
+/**
+ * Statistics of the cache of generated marshallers shared by all {@link MessageMarshaller}s in the
+ * JVM, as returned by {@link MessageMarshaller#cacheStats()}. Counts are cumulative since the cache
+ * was created.
+ */
+public final class MarshallerCacheStats {
+
+  private final long hitCount;
+  private final long missCount;
+  private final long evictionCount;
+
+  MarshallerCacheStats(long hitCount, long missCount, long evictionCount) {
+    this.hitCount = hitCount;
+    this.missCount = missCount;
+    this.evictionCount = evictionCount;
+  }
+
+  /**
+   * Returns the number of times a marshaller was found in the cache, including when waiting for
+   * another thread that was already generating it.
+   */
+  public long hitCount() {
+    return hitCount;
+  }
+
+  /** Returns the number of times a marshaller had to be generated. */
+  public long missCount() {
+    return missCount;
+  }
+
+  /** Returns the number of marshallers removed from the cache after being garbage collected. */
+  public long evictionCount() {
+    return evictionCount;
+  }
+
+  @Override
+  public String toString() {
+    return "MarshallerCacheStats{"
+        + "hitCount="
+        + hitCount
+        + ", missCount="
+        + missCount
+        + ", evictionCount="
+        + evictionCount
+        + '}';
+  }
+}
@@ -0,0 +1,243 @@
+/*
+ * Copyright (c) Choko (choko@curioswitch.org)
+ * SPDX-License-Identifier: MIT
+ */
+
+package org.curioswitch.common.protobuf.json;
+
+import com.google.protobuf.Descriptors.FieldDescriptor;
+import com.google.protobuf.Descriptors.FileDescriptor;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import javax.annotation.Nullable;
+import net.bytebuddy.ByteBuddy;
+import net.bytebuddy.ClassFileVersion;
+import net.bytebuddy.jar.asm.ClassReader;
+
+/**
+ * A cache of the bytecode of generated marshallers in a directory, so that JVMs started later with
+ * the same directory can define the classes without generating them again. Entries are keyed by a
+ * SHA-256 hash of everything the generated code depends on: the proto files of the type and their
+ * dependencies, the message class name, the {@link MarshallerOptions}, the class file version of
+ * the running JVM, and a fingerprint of the code generator itself. The cache is best-effort: any
+ * failure to read or write an entry only means the marshaller is generated as if there were no
+ * cache.
+ *
+ * <p>Entries are written to a temporary file and moved into place, so concurrent writers, such as
+ * multiple processes sharing the directory, never expose partially written entries to readers.
+ */
+final class MarshallerClassFileCache {
+
+  // Classes whose code determines the generated bytecode. If any of them change, for example when
+  // upgrading this library or ByteBuddy, entries written by the previous version are not used.
+  private static final Class<?>[] GENERATOR_CLASSES = {
+    TypeSpecificMarshaller.class,
+    DoParse.class,
+    DoWrite.class,
+    CodeGenUtil.class,
+    ProtoFieldInfo.class,
+    LocalVariables.class,
+    SetSerializedFieldName.class,
+    ParseSupport.class,
+    SerializeSupport.class,
+    ByteBuddy.class,
+  };
+
+  private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+  // Keyed by identity, weakly so that descriptors built at runtime can be collected.
+  private static final Map<FileDescriptor, byte[]> FILE_DIGESTS =
+      Collections.synchronizedMap(new WeakHashMap<>());
+
+  @Nullable private static volatile byte[] generatorFingerprint;
+
+  private MarshallerClassFileCache() {}
+
+  /**
+   * Returns the cached class file named {@code fileName} in {@code directory}, or {@code null} if
+   * there is none or it could not be read.
+   */
+  @Nullable
+  static CachedClass read(Path directory, String fileName) {
+    byte[] bytes;
+    try {
+      bytes = Files.readAllBytes(directory.resolve(fileName));
+    } catch (IOException e) {
+      return null;
+    }
+    String className;
+    try {
+      className = new ClassReader(bytes).getClassName().replace('/', '.');
+    } catch (RuntimeException e) {
+      // Not a valid class file, it will be regenerated and overwritten.
+      return null;
+    }
+    return new CachedClass(className, bytes);
+  }
+
+  /** Writes the class file named {@code fileName} to {@code directory}. */
+  static void write(Path directory, String fileName, byte[] bytes) {
+    try {
+      Files.createDirectories(directory);
+      Path target = directory.resolve(fileName);
+      Path temp = Files.createTempFile(directory, target.getFileName().toString(), ".tmp");
+      try {
+        Files.write(temp, bytes);
+        try {
+          Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+          Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+      } finally {
+        Files.deleteIfExists(temp);
+      }
+    } catch (IOException e) {
+      // Caching is best-effort, the marshaller has already been generated.
+    }
+  }
+
+  /** Deletes the cached class file named {@code fileName}, for example when it is corrupt. */
+  static void delete(Path directory, String fileName) {
+    try {
+      Files.deleteIfExists(directory.resolve(fileName));
+    } catch (IOException e) {
+      // Best-effort, a later write will replace it.
+    }
+  }
+
+  /** Returns the name of the file caching the class of the marshaller for {@code options}. */
+  static String fileName(MarshallerOptions options) {
+    MessageDigest digest = sha256();
+    digest.update(generatorFingerprint());
+    digest.update((byte) ClassFileVersion.ofThisVm().getMajorVersion());
+    update(digest, options.getPrototype().getClass().getName());
+    digest.update(
+        new byte[] {
+          (byte) (options.isIncludingDefaultValueFields() ? 1 : 0),
+          (byte) (options.isPreservingProtoFieldNames() ? 1 : 0),
+          (byte) (options.isIgnoringUnknownFields() ? 1 : 0),
+          (byte) (options.isPrintingEnumsAsInts() ? 1 : 0),
+          (byte) (options.isSortingMapKeys() ? 1 : 0),
+        });
+    List<String> fieldsToAlwaysOutput = new ArrayList<>();
+    for (FieldDescriptor field : options.getFieldsToAlwaysOutput()) {
+      fieldsToAlwaysOutput.add(field.getFullName());
+    }
+    Collections.sort(fieldsToAlwaysOutput);
+    fieldsToAlwaysOutput.forEach(name -> update(digest, name));
+    update(digest, options.getPrototype().getDescriptorForType().getFullName());
+
+    // The generated code depends on nested types, which may be defined in other files, so include
+    // all files reachable from the one defining the type.
+    Set<String> visited = new HashSet<>();
+    Deque<FileDescriptor> files = new ArrayDeque<>();
+    files.add(options.getPrototype().getDescriptorForType().getFile());
+    while (!files.isEmpty()) {
+      FileDescriptor file = files.removeFirst();
+      if (!visited.add(file.getName())) {
+        continue;
+      }
+      digest.update(fileDigest(file));
+      files.addAll(file.getDependencies());
+    }
+    return toHex(digest.digest()) + ".class";
+  }
+
+  /**
+   * Returns the digest of the content of {@code file}, computed once per file since many types
+   * share the same files.
+   */
+  private static byte[] fileDigest(FileDescriptor file) {
+    byte[] cached = FILE_DIGESTS.get(file);
+    if (cached == null) {
+      cached = sha256().digest(file.toProto().toByteArray());
+      FILE_DIGESTS.put(file, cached);
+    }
+    return cached;
+  }
+
+  private static byte[] generatorFingerprint() {
+    byte[] fingerprint = generatorFingerprint;
+    if (fingerprint == null) {
+      MessageDigest digest = sha256();
+      byte[] buffer = new byte[8192];
+      for (Class<?> cls : GENERATOR_CLASSES) {
+        update(digest, cls.getName());
+        try (InputStream is = cls.getResourceAsStream(cls.getSimpleName() + ".class")) {
+          if (is == null) {
+            throw new IOException("Could not find class file of " + cls.getName());
+          }
+          int read;
+          while ((read = is.read(buffer)) != -1) {
+            digest.update(buffer, 0, read);
+          }
+        } catch (IOException e) {
+          // Without the code of the generator, entries of other versions can't be told apart, so
+          // make the fingerprint unique to this process to never use them.
+          update(digest, Long.toString(System.nanoTime()));
+        }
+      }
+      fingerprint = digest.digest();
+      generatorFingerprint = fingerprint;
+    }
+    return fingerprint;
+  }
+
+  private static void update(MessageDigest digest, String value) {
+    digest.update(value.getBytes(StandardCharsets.UTF_8));
+    // Separator, which can't appear in any of the strings.
+    digest.update((byte) 0);
+  }
+
+  private static MessageDigest sha256() {
+    try {
+      return MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("SHA-256 is always supported.", e);
+    }
+  }
+
+  private static String toHex(byte[] bytes) {
+    char[] hex = new char[bytes.length * 2];
+    for (int i = 0; i < bytes.length; i++) {
+      hex[i * 2] = HEX_DIGITS[(bytes[i] >> 4) & 0xF];
+      hex[i * 2 + 1] = HEX_DIGITS[bytes[i] & 0xF];
+    }
+    return new String(hex);
+  }
+
+  /** A class file read from the cache. */
+  static final class CachedClass {
+    private final String className;
+    private final byte[] bytes;
+
+    private CachedClass(String className, byte[] bytes) {
+      this.className = className;
+      this.bytes = bytes;
+    }
+
+    String getClassName() {
+      return className;
+    }
+
+    byte[] getBytes() {
+      return bytes;
+    }
+  }
+}
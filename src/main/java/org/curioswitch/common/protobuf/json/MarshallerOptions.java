@@ -7,8 +7,10 @@ package org.curioswitch.common.protobuf.json;
 
 import com.google.protobuf.Descriptors.FieldDescriptor;
 import com.google.protobuf.Message;
+import java.nio.file.Path;
 import java.util.Objects;
 import java.util.Set;
+import javax.annotation.Nullable;
 
 class MarshallerOptions {
 
@@ -19,6 +21,8 @@ class MarshallerOptions {
   private final boolean ignoringUnknownFields;
   private final boolean printingEnumsAsInts;
   private final boolean sortingMapKeys;
+  private final boolean usingPrecompiledMarshallers;
+  @Nullable private final Path classCacheDirectory;
 
   MarshallerOptions(
       Message prototype,
@@ -28,6 +32,28 @@ class MarshallerOptions {
       boolean ignoringUnknownFields,
       boolean printingEnumsAsInts,
       boolean sortingMapKeys) {
+    this(
+        prototype,
+        includingDefaultValueFields,
+        fieldsToAlwaysOutput,
+        preservingProtoFieldNames,
+        ignoringUnknownFields,
+        printingEnumsAsInts,
+        sortingMapKeys,
+        false,
+        null);
+  }
+
+  MarshallerOptions(
+      Message prototype,
+      boolean includingDefaultValueFields,
+      Set<FieldDescriptor> fieldsToAlwaysOutput,
+      boolean preservingProtoFieldNames,
+      boolean ignoringUnknownFields,
+      boolean printingEnumsAsInts,
+      boolean sortingMapKeys,
+      boolean usingPrecompiledMarshallers,
+      @Nullable Path classCacheDirectory) {
     this.prototype = prototype;
     this.includingDefaultValueFields = includingDefaultValueFields;
     this.fieldsToAlwaysOutput = fieldsToAlwaysOutput;
@@ -35,12 +61,28 @@ class MarshallerOptions {
     this.ignoringUnknownFields = ignoringUnknownFields;
     this.printingEnumsAsInts = printingEnumsAsInts;
     this.sortingMapKeys = sortingMapKeys;
+    this.usingPrecompiledMarshallers = usingPrecompiledMarshallers;
+    this.classCacheDirectory = classCacheDirectory;
   }
 
   Message getPrototype() {
     return prototype;
   }
 
+  /** Returns {@link MarshallerOptions} with the same options for a different type. */
+  MarshallerOptions forPrototype(Message prototype) {
+    return new MarshallerOptions(
+        prototype,
+        includingDefaultValueFields,
+        fieldsToAlwaysOutput,
+        preservingProtoFieldNames,
+        ignoringUnknownFields,
+        printingEnumsAsInts,
+        sortingMapKeys,
+        usingPrecompiledMarshallers,
+        classCacheDirectory);
+  }
+
   public boolean isIncludingDefaultValueFields() {
     return includingDefaultValueFields;
   }
@@ -65,6 +107,23 @@ class MarshallerOptions {
     return sortingMapKeys;
   }
 
+  /**
+   * Returns whether precompiled marshallers should be used when available. Not part of equality
+   * since precompiled and generated marshallers are equivalent.
+   */
+  boolean isUsingPrecompiledMarshallers() {
+    return usingPrecompiledMarshallers;
+  }
+
+  /**
+   * Returns the directory to cache class files of generated marshallers in, or {@code null} if
+   * they should not be cached. Not part of equality, like {@link #isUsingPrecompiledMarshallers()}.
+   */
+  @Nullable
+  Path getClassCacheDirectory() {
+    return classCacheDirectory;
+  }
+
   @Override
   public boolean equals(Object o) {
     if (this == o) {
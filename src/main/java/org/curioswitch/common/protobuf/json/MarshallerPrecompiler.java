@@ -0,0 +1,145 @@
+/*
+ * Copyright (c) Choko (choko@curioswitch.org)
+ * SPDX-License-Identifier: MIT
+ */
+
+package org.curioswitch.common.protobuf.json;
+
+import static java.util.Objects.requireNonNull;
+
+import com.google.protobuf.DynamicMessage;
+import com.google.protobuf.Message;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * Writes the marshallers for registered {@link Message} types as class files ahead of time, for
+ * example in a build step, so that they don't need to be generated at runtime. This reduces startup
+ * time, allows the marshallers to be used where classes cannot be defined at runtime such as in a
+ * GraalVM native image, and gives them stable names in stack traces and profiles. The written
+ * classes should be packaged with the message classes and are used by {@link MessageMarshaller}s
+ * built with {@link MessageMarshaller.Builder#usingPrecompiledMarshallers(boolean)}, with the same
+ * options as the ones they were precompiled with.
+ *
+ * <p>For use from a build tool, {@link #main(String[])} takes the output directory, options, and
+ * names of message classes to register. For example, with Gradle:
+ *
+ * <pre>{@code
+ * val precompileMarshallers by tasks.registering(JavaExec::class) {
+ *   classpath = sourceSets.main.get().runtimeClasspath
+ *   mainClass.set("org.curioswitch.common.protobuf.json.MarshallerPrecompiler")
+ *   args(
+ *       layout.buildDirectory.dir("precompiled-marshallers").get().asFile,
+ *       "--preservingProtoFieldNames",
+ *       "com.example.MyRequest",
+ *       "com.example.MyResponse")
+ * }
+ * }</pre>
+ */
+public final class MarshallerPrecompiler {
+
+  /**
+   * Writes the marshallers for the types registered in {@code builder}, and all types reachable
+   * from them, as class files into {@code outputDirectory}, using the options of {@code builder}.
+   * Types which have already been registered if the builder was created by {@link
+   * MessageMarshaller#toBuilder()} and well-known types are not written. Sets {@link
+   * MessageMarshaller.Builder#generatingLazily(boolean)} and resets {@link
+   * MessageMarshaller.Builder#generationThreshold(int)} on {@code builder} so that no code is
+   * generated in this process.
+   *
+   * @throws IllegalArgumentException if {@code builder} uses positional arrays or registers {@link
+   *     DynamicMessage} types, which are not marshalled by generated code.
+   */
+  public static void precompile(MessageMarshaller.Builder builder, Path outputDirectory)
+      throws IOException {
+    requireNonNull(builder, "builder");
+    requireNonNull(outputDirectory, "outputDirectory");
+    MessageMarshaller marshaller = builder.generatingLazily(true).generationThreshold(0).build();
+    for (TypeSpecificMarshaller<?> registered : marshaller.registeredMarshallers()) {
+      if (registered instanceof PositionalMarshaller) {
+        throw new IllegalArgumentException(
+            "Marshallers using positional arrays can't be precompiled.");
+      }
+      if (registered.getMarshalledPrototype() instanceof DynamicMessage) {
+        throw new IllegalArgumentException(
+            "Marshallers of DynamicMessage can't be precompiled: "
+                + registered.getDescriptorForMarshalledType().getFullName());
+      }
+    }
+    Files.createDirectories(outputDirectory);
+    for (TypeSpecificMarshaller<?> registered : marshaller.registeredMarshallers()) {
+      if (registered instanceof LazyMarshaller) {
+        MarshallerOptions options = ((LazyMarshaller<?>) registered).getOptions();
+        TypeSpecificMarshaller.makePrecompiledMarshaller(options).saveIn(outputDirectory.toFile());
+      }
+    }
+  }
+
+  /**
+   * Writes marshallers as class files. The first argument is the output directory, followed by
+   * any of {@code --includingDefaultValueFields}, {@code --preservingProtoFieldNames}, {@code
+   * --ignoringUnknownFields}, {@code --printingEnumsAsInts} and {@code --sortingMapKeys} to set the
+   * corresponding option of {@link MessageMarshaller.Builder}, and the fully qualified names of the
+   * message classes to register. {@code --omittingInsignificantWhitespace} is also accepted for
+   * convenience but doesn't affect the marshallers.
+   */
+  public static void main(String[] args) throws IOException {
+    if (args.length < 2) {
+      throw new IllegalArgumentException(
+          "Usage: MarshallerPrecompiler <outputDirectory> [--option...] <messageClass>...");
+    }
+    Path outputDirectory = Paths.get(args[0]);
+    MessageMarshaller.Builder builder = MessageMarshaller.builder();
+    ClassLoader classLoader = Thread.currentThread().getContextClassLoader();
+    if (classLoader == null) {
+      classLoader = MarshallerPrecompiler.class.getClassLoader();
+    }
+    for (int i = 1; i < args.length; i++) {
+      String arg = args[i];
+      switch (arg) {
+        case "--includingDefaultValueFields":
+          builder.includingDefaultValueFields(true);
+          break;
+        case "--preservingProtoFieldNames":
+          builder.preservingProtoFieldNames(true);
+          break;
+        case "--ignoringUnknownFields":
+          builder.ignoringUnknownFields(true);
+          break;
+        case "--printingEnumsAsInts":
+          builder.printingEnumsAsInts(true);
+          break;
+        case "--sortingMapKeys":
+          builder.sortingMapKeys(true);
+          break;
+        case "--omittingInsignificantWhitespace":
+          builder.omittingInsignificantWhitespace(true);
+          break;
+        default:
+          if (arg.startsWith("--")) {
+            throw new IllegalArgumentException("Unknown option: " + arg);
+          }
+          builder.register(loadMessageClass(arg, classLoader));
+      }
+    }
+    precompile(builder, outputDirectory);
+  }
+
+  private static Class<? extends Message> loadMessageClass(
+      String className, ClassLoader classLoader) {
+    Class<?> messageClass;
+    try {
+      messageClass = Class.forName(className, false, classLoader);
+    } catch (ClassNotFoundException e) {
+      throw new IllegalArgumentException("Could not find message class: " + className, e);
+    }
+    if (!Message.class.isAssignableFrom(messageClass)) {
+      throw new IllegalArgumentException("Not a message class: " + className);
+    }
+    return messageClass.asSubclass(Message.class);
+  }
+
+  private MarshallerPrecompiler() {}
+}
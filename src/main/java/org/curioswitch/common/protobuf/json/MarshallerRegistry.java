@@ -6,10 +6,13 @@
 package org.curioswitch.common.protobuf.json;
 
 import com.google.protobuf.Descriptors.Descriptor;
+import com.google.protobuf.DynamicMessage;
 import com.google.protobuf.InvalidProtocolBufferException;
 import com.google.protobuf.Message;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.annotation.Nullable;
 
 /**
  * A registry for looking up {@link TypeSpecificMarshaller} for a given protobuf {@link Descriptor}
@@ -17,6 +20,20 @@ import java.util.Map;
  */
 final class MarshallerRegistry {
 
+  private static final AtomicInteger NEXT_CLASS_INDEX = new AtomicInteger();
+
+  // A small index assigned to each message class once per JVM. A ClassValue caches it in the class
+  // itself, making the lookup close to a field load. Only the index is stored, so registries, which
+  // are created by every MessageMarshaller.Builder, are not kept alive by the classes of their
+  // types.
+  private static final ClassValue<Integer> CLASS_INDEX =
+      new ClassValue<Integer>() {
+        @Override
+        protected Integer computeValue(Class<?> type) {
+          return NEXT_CLASS_INDEX.getAndIncrement();
+        }
+      };
+
   // Optimize for the common case of finding a serializer by Descriptor, which hashes much faster
   // than String. We create a map from String as well for use when resolving by type variableName
   // for serialization of Any. Iterating over the descriptors instead of creating a parallel map
@@ -24,6 +41,20 @@ final class MarshallerRegistry {
   private final Map<Descriptor, TypeSpecificMarshaller<?>> descriptorRegistry;
   private final Map<String, TypeSpecificMarshaller<?>> typeNameRegistry;
 
+  // Registries index their classes from the smallest index of their types and for at most this
+  // many indices, so the arrays of a registry stay small however many classes have been indexed in
+  // the JVM. Types outside of the range are found through the maps.
+  private static final int MAX_INDEXED_CLASSES = 4096;
+
+  // Most lookups are for top-level messages of generated types, where the class identifies the
+  // type. Indexing by the index of the class skips the virtual getDescriptorForType() call and
+  // hashing of Descriptor.
+  private final int minClassIndex;
+  private final TypeSpecificMarshaller<?>[] classRegistry;
+  private final OutputSizeEstimate[] outputSizeEstimates;
+  // Estimates of types that are not in the arrays.
+  private final Map<Descriptor, OutputSizeEstimate> descriptorOutputSizeEstimates;
+
   MarshallerRegistry(Map<Descriptor, TypeSpecificMarshaller<?>> descriptorRegistry) {
     this.descriptorRegistry = new HashMap<>(descriptorRegistry);
     Map<String, TypeSpecificMarshaller<?>> typeNameRegistry = new HashMap<>();
@@ -31,13 +62,50 @@ final class MarshallerRegistry {
       typeNameRegistry.put(entry.getKey().getFullName(), entry.getValue());
     }
     this.typeNameRegistry = typeNameRegistry;
+
+    Map<Integer, TypeSpecificMarshaller<?>> byClassIndex = new HashMap<>();
+    int minClassIndex = Integer.MAX_VALUE;
+    int maxClassIndex = -1;
+    for (TypeSpecificMarshaller<?> marshaller : descriptorRegistry.values()) {
+      Class<?> messageClass = marshaller.getMarshalledPrototype().getClass();
+      // DynamicMessage is used for any type so can't be used for lookup.
+      if (messageClass != DynamicMessage.class) {
+        int classIndex = CLASS_INDEX.get(messageClass);
+        byClassIndex.put(classIndex, marshaller);
+        minClassIndex = Math.min(minClassIndex, classIndex);
+        maxClassIndex = Math.max(maxClassIndex, classIndex);
+      }
+    }
+    this.minClassIndex = minClassIndex;
+    int size =
+        maxClassIndex < 0 ? 0 : Math.min(maxClassIndex - minClassIndex + 1, MAX_INDEXED_CLASSES);
+    classRegistry = new TypeSpecificMarshaller<?>[size];
+    outputSizeEstimates = new OutputSizeEstimate[size];
+    descriptorOutputSizeEstimates = new HashMap<>();
+    for (Map.Entry<Integer, TypeSpecificMarshaller<?>> entry : byClassIndex.entrySet()) {
+      int offset = entry.getKey() - minClassIndex;
+      if (offset < size) {
+        classRegistry[offset] = entry.getValue();
+        outputSizeEstimates[offset] = new OutputSizeEstimate();
+      } else {
+        descriptorOutputSizeEstimates.put(
+            entry.getValue().getDescriptorForMarshalledType(), new OutputSizeEstimate());
+      }
+    }
   }
 
   /**
    * Returns the {@link TypeSpecificMarshaller} that can marshall protobufs with the same type as
-   * {@code prototype}.
+   * {@code prototype}. If the marshaller is generated lazily, it is generated now if needed.
    */
   TypeSpecificMarshaller<?> findForPrototype(Message prototype) {
+    int offset = CLASS_INDEX.get(prototype.getClass()) - minClassIndex;
+    if (offset >= 0 && offset < classRegistry.length) {
+      TypeSpecificMarshaller<?> marshaller = classRegistry[offset];
+      if (marshaller != null) {
+        return marshaller.resolve();
+      }
+    }
     TypeSpecificMarshaller<?> marshaller = descriptorRegistry.get(prototype.getDescriptorForType());
     if (marshaller == null) {
       throw new IllegalArgumentException(
@@ -45,7 +113,24 @@ final class MarshallerRegistry {
               + prototype.getDescriptorForType().getFullName()
               + ". Has it been registered?");
     }
-    return marshaller;
+    return marshaller.resolve();
+  }
+
+  /**
+   * Returns the {@link OutputSizeEstimate} for the type of {@code message}, or {@code null} if the
+   * type is not registered or can't be identified by its class, as for {@link DynamicMessage}.
+   */
+  @Nullable
+  OutputSizeEstimate findOutputSizeEstimate(Message message) {
+    int offset = CLASS_INDEX.get(message.getClass()) - minClassIndex;
+    if (offset >= 0 && offset < outputSizeEstimates.length) {
+      return outputSizeEstimates[offset];
+    }
+    if (descriptorOutputSizeEstimates.isEmpty()) {
+      return null;
+    }
+    // Types that can't be identified by class, like DynamicMessage, are never in the map.
+    return descriptorOutputSizeEstimates.get(message.getDescriptorForType());
   }
 
   /**
@@ -59,7 +144,7 @@ final class MarshallerRegistry {
     if (marshaller == null) {
       throw new InvalidProtocolBufferException("Cannot find type for url: " + typeUrl);
     }
-    return marshaller;
+    return marshaller.resolve();
   }
 
   /** Returns the built parsers in this registry. */
@@ -0,0 +1,147 @@
+/*
+ * Copyright (c) Choko (choko@curioswitch.org)
+ * SPDX-License-Identifier: MIT
+ */
+
+package org.curioswitch.common.protobuf.json;
+
+import static java.util.Objects.requireNonNull;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.io.SegmentedStringWriter;
+import com.fasterxml.jackson.core.util.BufferRecycler;
+import com.fasterxml.jackson.core.util.ByteArrayBuilder;
+import com.fasterxml.jackson.core.util.RecyclerPool;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.Message;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * A reusable handle for marshalling many messages with a {@link MessageMarshaller} from a single
+ * thread, as returned by {@link MessageMarshaller#newSession()}. The session owns its buffers, so
+ * unlike the methods on {@link MessageMarshaller}, no buffers need to be acquired from a pool or
+ * thread-local for each call, and the output buffer for {@link #writeValueAsBytes(Message)} is
+ * kept between calls. This mostly matters for small messages, where this fixed overhead is a large
+ * part of the cost.
+ *
+ * <p>A {@link MarshallerSession} is not thread-safe. A common pattern is to create one per worker
+ * thread or per connection.
+ */
+public final class MarshallerSession {
+
+  private final MessageMarshaller marshaller;
+  private final JsonFactory jsonFactory;
+  private final ByteArrayBuilder bytesOutput;
+
+  MarshallerSession(MessageMarshaller marshaller, JsonFactory jsonFactory) {
+    this.marshaller = marshaller;
+    BufferRecycler recycler = new BufferRecycler();
+    // Copy the factory of the marshaller so custom formats like Smile are kept.
+    this.jsonFactory = jsonFactory.copy().setRecyclerPool(new SessionRecyclerPool(recycler));
+    bytesOutput = new ByteArrayBuilder(recycler);
+  }
+
+  /**
+   * Merges the JSON UTF-8 bytes into the provided {@link Message.Builder}.
+   *
+   * @throws InvalidProtocolBufferException if the input is not valid JSON format or there are
+   *     unknown fields in the input.
+   */
+  public void mergeValue(byte[] json, Message.Builder builder) throws IOException {
+    requireNonNull(json, "json");
+    requireNonNull(builder, "builder");
+    try (JsonParser parser = jsonFactory.createParser(json)) {
+      marshaller.mergeValue(parser, builder);
+    }
+  }
+
+  /**
+   * Merges the JSON {@link String} into the provided {@link Message.Builder}.
+   *
+   * @throws InvalidProtocolBufferException if the input is not valid JSON format or there are
+   *     unknown fields in the input.
+   */
+  public void mergeValue(String json, Message.Builder builder) throws IOException {
+    requireNonNull(json, "json");
+    requireNonNull(builder, "builder");
+    try (JsonParser parser = jsonFactory.createParser(json)) {
+      marshaller.mergeValue(parser, builder);
+    }
+  }
+
+  /**
+   * Converts a {@link Message} into JSON as UTF-8 encoded bytes.
+   *
+   * @throws InvalidProtocolBufferException if there are unknown Any types in the message.
+   */
+  public <T extends Message> byte[] writeValueAsBytes(T message) throws IOException {
+    requireNonNull(message, "message");
+    try {
+      try (JsonGenerator gen = jsonFactory.createGenerator(bytesOutput)) {
+        marshaller.writeValue(message, gen);
+      }
+      return bytesOutput.toByteArray();
+    } finally {
+      bytesOutput.reset();
+    }
+  }
+
+  /**
+   * Converts a {@link Message} into a JSON {@link String}.
+   *
+   * @throws InvalidProtocolBufferException if there are unknown Any types in the message.
+   */
+  public <T extends Message> String writeValueAsString(T message) throws IOException {
+    requireNonNull(message, "message");
+    SegmentedStringWriter sw = new SegmentedStringWriter(jsonFactory._getBufferRecycler());
+    try (JsonGenerator gen = jsonFactory.createGenerator(sw)) {
+      marshaller.writeValue(message, gen);
+    }
+    return sw.getAndClear();
+  }
+
+  /**
+   * Converts a {@link Message} into JSON, writing to the provided {@link OutputStream}. Does not
+   * close the {@link OutputStream}.
+   *
+   * @throws InvalidProtocolBufferException if there are unknown Any types in the message.
+   */
+  public <T extends Message> void writeValue(T message, OutputStream out) throws IOException {
+    requireNonNull(message, "message");
+    requireNonNull(out, "out");
+    try (JsonGenerator gen = jsonFactory.createGenerator(out)) {
+      marshaller.writeValue(message, gen);
+    }
+  }
+
+  /**
+   * A {@link RecyclerPool} which always returns the same {@link BufferRecycler}. The recycler is
+   * not linked to the pool, so parsers and generators return their buffers to it when closed and
+   * the next one created picks them up again.
+   */
+  private static final class SessionRecyclerPool implements RecyclerPool<BufferRecycler> {
+    private static final long serialVersionUID = 1L;
+
+    private final transient BufferRecycler recycler;
+
+    private SessionRecyclerPool(BufferRecycler recycler) {
+      this.recycler = recycler;
+    }
+
+    @Override
+    public BufferRecycler acquirePooled() {
+      return recycler;
+    }
+
+    @Override
+    public BufferRecycler acquireAndLinkPooled() {
+      return recycler;
+    }
+
+    @Override
+    public void releasePooled(BufferRecycler pooled) {}
+  }
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright (c) Choko (choko@curioswitch.org)
+ * SPDX-License-Identifier: MIT
+ */
+
+package org.curioswitch.common.protobuf.json;
+
+import static java.util.Objects.requireNonNull;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.Descriptors.Descriptor;
+import com.google.protobuf.Descriptors.EnumDescriptor;
+import com.google.protobuf.Descriptors.EnumValueDescriptor;
+import com.google.protobuf.Descriptors.FieldDescriptor;
+import com.google.protobuf.Descriptors.OneofDescriptor;
+import com.google.protobuf.Int32Value;
+import com.google.protobuf.Message;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import javax.annotation.Nullable;
+
+/**
+ * Warms up the marshallers of a {@link MessageMarshaller} by round tripping a sample message of
+ * each registered type through JSON, so the JIT compiles the marshalling code before real traffic
+ * arrives. Samples are synthesized from descriptors with every field set to a non-default value,
+ * including nested, repeated, map and well-known type fields, and the first field of each oneof.
+ */
+final class MarshallerWarmUp {
+
+  // Deep enough to exercise nested messages, while bounding recursive types.
+  private static final int MAX_SAMPLE_DEPTH = 3;
+
+  private static final int REPEATED_SAMPLE_SIZE = 2;
+
+  /**
+   * Round trips samples of all types registered in {@code marshaller} for up to {@code
+   * maxIterations} rounds or until {@code maxDuration} has elapsed, whichever comes first, and
+   * returns the number of completed rounds.
+   */
+  static int warmUp(MessageMarshaller marshaller, int maxIterations, Duration maxDuration)
+      throws IOException {
+    List<Message> samples = new ArrayList<>();
+    for (Message prototype : marshaller.registeredPrototypes()) {
+      samples.add(sample(prototype));
+    }
+    // Binary formats can only be written to and read from bytes.
+    boolean textFormat = marshaller.isTextFormat();
+    long deadline = System.nanoTime() + maxDuration.toNanos();
+    int iterations = 0;
+    while (iterations < maxIterations && System.nanoTime() - deadline < 0) {
+      for (Message sample : samples) {
+        Message.Builder builder = sample.newBuilderForType();
+        // Alternate between output types so the JIT sees both byte and char generators, as in
+        // real use.
+        if (!textFormat || iterations % 2 == 0) {
+          marshaller.mergeValue(marshaller.writeValueAsBytes(sample), builder);
+        } else {
+          marshaller.mergeValue(marshaller.writeValueAsString(sample), builder);
+        }
+      }
+      iterations++;
+    }
+    return iterations;
+  }
+
+  /** Returns a message of the type of {@code prototype} with all fields set. */
+  static Message sample(Message prototype) {
+    Message.Builder builder = prototype.newBuilderForType();
+    fill(builder, 0);
+    return builder.buildPartial();
+  }
+
+  private static void fill(Message.Builder builder, int depth) {
+    Descriptor descriptor = builder.getDescriptorForType();
+    if (descriptor.getFullName().equals("google.protobuf.Any")) {
+      // Any can only be marshalled with a registered type, well-known types always are.
+      builder.setField(
+          descriptor.findFieldByName("type_url"),
+          "type.googleapis.com/" + Int32Value.getDescriptor().getFullName());
+      builder.setField(descriptor.findFieldByName("value"), Int32Value.of(1).toByteString());
+      return;
+    }
+    Set<OneofDescriptor> filledOneofs = new HashSet<>();
+    for (FieldDescriptor field : descriptor.getFields()) {
+      OneofDescriptor oneof = field.getContainingOneof();
+      if (oneof != null && !filledOneofs.add(oneof)) {
+        continue;
+      }
+      if (field.isMapField()) {
+        Message.Builder entry = builder.newBuilderForField(field);
+        Descriptor entryType = field.getMessageType();
+        FieldDescriptor keyField = entryType.findFieldByName("key");
+        FieldDescriptor valueField = entryType.findFieldByName("value");
+        Object value = sampleValue(entry, valueField, depth);
+        if (value != null) {
+          entry.setField(keyField, requireNonNull(sampleValue(entry, keyField, depth)));
+          entry.setField(valueField, value);
+          builder.addRepeatedField(field, entry.buildPartial());
+        }
+      } else if (field.isRepeated()) {
+        for (int i = 0; i < REPEATED_SAMPLE_SIZE; i++) {
+          Object value = sampleValue(builder, field, depth);
+          if (value == null) {
+            break;
+          }
+          builder.addRepeatedField(field, value);
+        }
+      } else {
+        Object value = sampleValue(builder, field, depth);
+        if (value != null) {
+          builder.setField(field, value);
+        }
+      }
+    }
+  }
+
+  /**
+   * Returns a sample value of {@code field} in {@code builder}, or {@code null} for message fields
+   * beyond the maximum depth.
+   */
+  @Nullable
+  private static Object sampleValue(Message.Builder builder, FieldDescriptor field, int depth) {
+    switch (field.getJavaType()) {
+      case INT:
+        return 1;
+      case LONG:
+        return 1L;
+      case FLOAT:
+        return 1.5f;
+      case DOUBLE:
+        return 1.5;
+      case BOOLEAN:
+        return true;
+      case STRING:
+        return "sample";
+      case BYTE_STRING:
+        return ByteString.copyFromUtf8("sample");
+      case ENUM:
+        // The last value is usually not the default.
+        EnumDescriptor enumType = field.getEnumType();
+        List<EnumValueDescriptor> values = enumType.getValues();
+        return values.get(values.size() - 1);
+      case MESSAGE:
+        if (depth >= MAX_SAMPLE_DEPTH) {
+          return null;
+        }
+        Message.Builder nested = builder.newBuilderForField(field);
+        fill(nested, depth + 1);
+        return nested.buildPartial();
+    }
+    throw new IllegalStateException("Unknown JavaType: " + field.getJavaType());
+  }
+
+  private MarshallerWarmUp() {}
+}
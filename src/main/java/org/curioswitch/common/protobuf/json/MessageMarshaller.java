@@ -13,28 +13,42 @@ import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.core.JsonParser.Feature;
 import com.fasterxml.jackson.core.PrettyPrinter;
 import com.fasterxml.jackson.core.SerializableString;
+import com.fasterxml.jackson.core.TreeNode;
+import com.fasterxml.jackson.core.async.ByteBufferFeeder;
 import com.fasterxml.jackson.core.io.CharacterEscapes;
 import com.fasterxml.jackson.core.io.SegmentedStringWriter;
 import com.fasterxml.jackson.core.io.SerializedString;
+import com.fasterxml.jackson.core.util.BufferRecycler;
 import com.fasterxml.jackson.core.util.ByteArrayBuilder;
 import com.fasterxml.jackson.core.util.DefaultIndenter;
 import com.fasterxml.jackson.core.util.DefaultPrettyPrinter;
+import com.fasterxml.jackson.core.util.RecyclerPool;
+import com.google.protobuf.Any;
 import com.google.protobuf.Descriptors.Descriptor;
 import com.google.protobuf.Descriptors.FieldDescriptor;
+import com.google.protobuf.DynamicMessage;
 import com.google.protobuf.InvalidProtocolBufferException;
 import com.google.protobuf.Message;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.lang.reflect.InvocationTargetException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 import javax.annotation.Nullable;
 import org.curioswitch.common.protobuf.json.WellKnownTypeMarshaller.AnyMarshaller;
@@ -93,38 +107,19 @@ public class MessageMarshaller {
   private static final SerializedString HTML_ESCAPED_LESS_THAN = new SerializedString("\\u003c");
   private static final SerializedString HTML_ESCAPED_GREATER_THAN = new SerializedString("\\u003e");
 
-  private final JsonFactory jsonFactory =
-      new JsonFactory()
-          .enable(Feature.ALLOW_UNQUOTED_FIELD_NAMES)
-          .enable(Feature.ALLOW_COMMENTS)
-          .setCharacterEscapes(
-              new CharacterEscapes() {
-                @Override
-                public int[] getEscapeCodesForAscii() {
-                  int[] escapes = CharacterEscapes.standardAsciiEscapesForJSON();
-                  // From
-                  // https://github.com/google/gson/blob/bac26b8e429150d4cbf807e8692f207b7ce7d40d/gson/src/main/java/com/google/gson/stream/JsonWriter.java#L158
-                  escapes['<'] = CharacterEscapes.ESCAPE_CUSTOM;
-                  escapes['>'] = CharacterEscapes.ESCAPE_CUSTOM;
-                  escapes['&'] = CharacterEscapes.ESCAPE_STANDARD;
-                  escapes['='] = CharacterEscapes.ESCAPE_STANDARD;
-                  escapes['\''] = CharacterEscapes.ESCAPE_STANDARD;
-                  return escapes;
-                }
-
-                @Override
-                @Nullable
-                public SerializableString getEscapeSequence(int ch) {
-                  switch (ch) {
-                    case '<':
-                      return HTML_ESCAPED_LESS_THAN;
-                    case '>':
-                      return HTML_ESCAPED_GREATER_THAN;
-                    default:
-                      return null;
-                  }
-                }
-              });
+  // Size of the first segment of a ByteArrayBuilder backed by a BufferRecycler. Smaller outputs
+  // are best served by the recycled segment.
+  private static final int RECYCLED_OUTPUT_BUFFER_SIZE = 2000;
+
+  // Largest output buffer presized from the estimated output size. Recyclers keep the buffer, so
+  // larger messages use growing segments instead to not keep very large buffers alive.
+  private static final int MAX_PRESIZED_OUTPUT_BUFFER_SIZE = 256 * 1024;
+
+  private final JsonFactory jsonFactory;
+
+  private final SegmentPool segmentPool = new SegmentPool();
+
+  private final JsonSizeCache sizeCache = new JsonSizeCache();
 
   @Nullable private final PrettyPrinter prettyPrinter;
 
@@ -137,6 +132,16 @@ public class MessageMarshaller {
   private final boolean ignoringUnknownFields;
   private final boolean printingEnumsAsInts;
   private final boolean sortingMapKeys;
+  @Nullable private final JsonFactory customJsonFactory;
+  private final boolean parsingStrictly;
+  private final boolean escapingHtml;
+  @Nullable private final RecyclerPool<BufferRecycler> recyclerPool;
+  private final boolean generatingLazily;
+  private final int generationThreshold;
+  @Nullable private final Executor generationExecutor;
+  private final boolean usingPrecompiledMarshallers;
+  @Nullable private final Path classCacheDirectory;
+  private final boolean usingPositionalArrays;
 
   private MessageMarshaller(
       MarshallerRegistry registry,
@@ -146,7 +151,21 @@ public class MessageMarshaller {
       boolean preservingProtoFieldNames,
       boolean ignoringUnknownFields,
       boolean printingEnumsAsInts,
-      boolean sortingMapKeys) {
+      boolean sortingMapKeys,
+      @Nullable JsonFactory customJsonFactory,
+      boolean parsingStrictly,
+      boolean escapingHtml,
+      @Nullable RecyclerPool<BufferRecycler> recyclerPool,
+      boolean generatingLazily,
+      int generationThreshold,
+      @Nullable Executor generationExecutor,
+      boolean usingPrecompiledMarshallers,
+      @Nullable Path classCacheDirectory,
+      boolean usingPositionalArrays) {
+    this.jsonFactory =
+        customJsonFactory != null
+            ? withRecyclerPool(customJsonFactory, recyclerPool)
+            : newJsonFactory(parsingStrictly, escapingHtml, recyclerPool);
     this.prettyPrinter = omittingInsignificantWhitespace ? null : new MessagePrettyPrinter();
     this.registry = registry;
     this.omittingInsignificantWhitespace = omittingInsignificantWhitespace;
@@ -156,6 +175,71 @@ public class MessageMarshaller {
     this.ignoringUnknownFields = ignoringUnknownFields;
     this.printingEnumsAsInts = printingEnumsAsInts;
     this.sortingMapKeys = sortingMapKeys;
+    this.customJsonFactory = customJsonFactory;
+    this.parsingStrictly = parsingStrictly;
+    this.escapingHtml = escapingHtml;
+    this.recyclerPool = recyclerPool;
+    this.generatingLazily = generatingLazily;
+    this.generationThreshold = generationThreshold;
+    this.generationExecutor = generationExecutor;
+    this.usingPrecompiledMarshallers = usingPrecompiledMarshallers;
+    this.classCacheDirectory = classCacheDirectory;
+    this.usingPositionalArrays = usingPositionalArrays;
+  }
+
+  private static JsonFactory withRecyclerPool(
+      JsonFactory jsonFactory, @Nullable RecyclerPool<BufferRecycler> recyclerPool) {
+    if (recyclerPool == null) {
+      return jsonFactory;
+    }
+    // Copy to not change the configuration of the factory of the caller.
+    JsonFactory copy = jsonFactory.copy();
+    copy.setRecyclerPool(recyclerPool);
+    return copy;
+  }
+
+  private static JsonFactory newJsonFactory(
+      boolean parsingStrictly,
+      boolean escapingHtml,
+      @Nullable RecyclerPool<BufferRecycler> recyclerPool) {
+    JsonFactory jsonFactory = new JsonFactory();
+    if (!parsingStrictly) {
+      jsonFactory.enable(Feature.ALLOW_UNQUOTED_FIELD_NAMES).enable(Feature.ALLOW_COMMENTS);
+    }
+    if (escapingHtml) {
+      jsonFactory.setCharacterEscapes(
+          new CharacterEscapes() {
+            @Override
+            public int[] getEscapeCodesForAscii() {
+              int[] escapes = CharacterEscapes.standardAsciiEscapesForJSON();
+              // From
+              // https://github.com/google/gson/blob/bac26b8e429150d4cbf807e8692f207b7ce7d40d/gson/src/main/java/com/google/gson/stream/JsonWriter.java#L158
+              escapes['<'] = CharacterEscapes.ESCAPE_CUSTOM;
+              escapes['>'] = CharacterEscapes.ESCAPE_CUSTOM;
+              escapes['&'] = CharacterEscapes.ESCAPE_STANDARD;
+              escapes['='] = CharacterEscapes.ESCAPE_STANDARD;
+              escapes['\''] = CharacterEscapes.ESCAPE_STANDARD;
+              return escapes;
+            }
+
+            @Override
+            @Nullable
+            public SerializableString getEscapeSequence(int ch) {
+              switch (ch) {
+                case '<':
+                  return HTML_ESCAPED_LESS_THAN;
+                case '>':
+                  return HTML_ESCAPED_GREATER_THAN;
+                default:
+                  return null;
+              }
+            }
+          });
+    }
+    if (recyclerPool != null) {
+      jsonFactory.setRecyclerPool(recyclerPool);
+    }
+    return jsonFactory;
   }
 
   /**
@@ -201,6 +285,58 @@ public class MessageMarshaller {
     }
   }
 
+  /**
+   * Merges the JSON UTF-8 bytes between the position and limit of the {@link ByteBuffer} into the
+   * provided {@link Message.Builder}. Direct buffers are read in place without copying into a heap
+   * array. The position of the {@link ByteBuffer} is not changed.
+   *
+   * @throws InvalidProtocolBufferException if the input is not valid JSON format or there are
+   *     unknown fields in the input.
+   */
+  public void mergeValue(ByteBuffer json, Message.Builder builder) throws IOException {
+    requireNonNull(json, "json");
+    requireNonNull(builder, "builder");
+    if (json.hasArray()) {
+      try (JsonParser parser =
+          jsonFactory.createParser(
+              json.array(), json.arrayOffset() + json.position(), json.remaining())) {
+        mergeValue(parser, builder);
+      }
+      return;
+    }
+    if (!jsonFactory.getFormatName().equals(JsonFactory.FORMAT_NAME_JSON)) {
+      // Only the JSON factory has a ByteBuffer parser, others would silently parse as JSON.
+      byte[] bytes = new byte[json.remaining()];
+      json.duplicate().get(bytes);
+      mergeValue(bytes, builder);
+      return;
+    }
+    // The non-blocking parser is the only one that can read a ByteBuffer without copying. Since we
+    // feed it the entire input at once, it behaves the same as a blocking parser.
+    try (JsonParser parser = jsonFactory.createNonBlockingByteBufferParser()) {
+      ByteBufferFeeder feeder = (ByteBufferFeeder) parser.getNonBlockingInputFeeder();
+      feeder.feedInput(json.duplicate());
+      feeder.endOfInput();
+      mergeValue(parser, builder);
+    }
+  }
+
+  /**
+   * Merges the JSON tree into the provided {@link Message.Builder}, reading the nodes of the tree
+   * directly without writing it to text first. For example, this can be used to merge a Jackson
+   * {@code JsonNode} or the result of {@code ObjectMapper.valueToTree} of a POJO.
+   *
+   * @throws InvalidProtocolBufferException if the input is not valid JSON format or there are
+   *     unknown fields in the input.
+   */
+  public void mergeValue(TreeNode json, Message.Builder builder) throws IOException {
+    requireNonNull(json, "json");
+    requireNonNull(builder, "builder");
+    try (JsonParser parser = json.traverse()) {
+      mergeValue(parser, builder);
+    }
+  }
+
   /**
    * Merges the content inside the {@link JsonParser} into the provided {@link Message.Builder}.
    *
@@ -221,6 +357,105 @@ public class MessageMarshaller {
     }
   }
 
+  /**
+   * Merges the JSON UTF-8 bytes into the provided {@link Message.Builder}, except for the elements
+   * of {@code streamedField}, which are each passed to {@code elementConsumer} as soon as they are
+   * parsed instead of being added to the builder. {@code streamedField} must be a repeated message
+   * field of the builder's type and {@code T} must be its message type. This allows processing
+   * requests with a very large number of elements without holding all of them in memory.
+   *
+   * @throws InvalidProtocolBufferException if the input is not valid JSON format or there are
+   *     unknown fields in the input.
+   */
+  public <T extends Message> void mergeValue(
+      byte[] json,
+      Message.Builder builder,
+      FieldDescriptor streamedField,
+      Consumer<? super T> elementConsumer)
+      throws IOException {
+    requireNonNull(json, "json");
+    requireNonNull(builder, "builder");
+    try (JsonParser parser = jsonFactory.createParser(json)) {
+      mergeValue(parser, builder, streamedField, elementConsumer);
+    }
+  }
+
+  /**
+   * Merges the JSON bytes inside the provided {@link InputStream} into the provided {@link
+   * Message.Builder}, except for the elements of {@code streamedField}, which are each passed to
+   * {@code elementConsumer} as soon as they are parsed instead of being added to the builder. Will
+   * not close the {@link InputStream}. See {@link #mergeValue(byte[], Message.Builder,
+   * FieldDescriptor, Consumer)} for details.
+   *
+   * @throws InvalidProtocolBufferException if the input is not valid JSON format or there are
+   *     unknown fields in the input.
+   */
+  public <T extends Message> void mergeValue(
+      InputStream json,
+      Message.Builder builder,
+      FieldDescriptor streamedField,
+      Consumer<? super T> elementConsumer)
+      throws IOException {
+    requireNonNull(json, "json");
+    requireNonNull(builder, "builder");
+    try (JsonParser parser = jsonFactory.createParser(json)) {
+      mergeValue(parser, builder, streamedField, elementConsumer);
+    }
+  }
+
+  /**
+   * Merges the content inside the {@link JsonParser} into the provided {@link Message.Builder},
+   * except for the elements of {@code streamedField}, which are each passed to {@code
+   * elementConsumer} as soon as they are parsed instead of being added to the builder. See {@link
+   * #mergeValue(byte[], Message.Builder, FieldDescriptor, Consumer)} for details.
+   *
+   * @throws InvalidProtocolBufferException if the input is not valid JSON format or there are
+   *     unknown fields in the input.
+   */
+  public <T extends Message> void mergeValue(
+      JsonParser jsonParser,
+      Message.Builder builder,
+      FieldDescriptor streamedField,
+      Consumer<? super T> elementConsumer)
+      throws IOException {
+    requireNonNull(jsonParser, "jsonParser");
+    requireNonNull(builder, "builder");
+    requireNonNull(streamedField, "streamedField");
+    requireNonNull(elementConsumer, "elementConsumer");
+    checkNotUsingPositionalArrays("Streaming fields");
+    if (streamedField.getContainingType() != builder.getDescriptorForType()
+        || !streamedField.isRepeated()
+        || streamedField.isMapField()
+        || streamedField.getJavaType() != FieldDescriptor.JavaType.MESSAGE) {
+      throw new IllegalArgumentException(
+          "Streamed field must be a repeated message field of "
+              + builder.getDescriptorForType().getFullName()
+              + ", got: "
+              + streamedField.getFullName());
+    }
+    // The registered marshaller for the field's message type is TypeSpecificMarshaller<T>.
+    @SuppressWarnings("unchecked")
+    TypeSpecificMarshaller<T> elementMarshaller =
+        (TypeSpecificMarshaller<T>)
+            registry.findForPrototype(
+                builder.newBuilderForField(streamedField).getDefaultInstanceForType());
+    mergeValue(
+        new StreamingFieldParser<>(jsonParser, streamedField, elementMarshaller, elementConsumer),
+        builder);
+  }
+
+  /**
+   * Returns a new {@link IncrementalMerger} which merges JSON UTF-8 bytes into the provided {@link
+   * Message.Builder} as they are fed in chunks, without blocking to wait for the rest of the input.
+   * This is useful for servers that receive request bodies in chunks on an event loop.
+   */
+  public IncrementalMerger newIncrementalMerger(Message.Builder builder) throws IOException {
+    requireNonNull(builder, "builder");
+    checkNotUsingPositionalArrays("Incremental merging");
+    return new IncrementalMerger(
+        jsonFactory, registry.findForPrototype(builder.getDefaultInstanceForType()), builder);
+  }
+
   /**
    * Converts a {@link Message} into JSON as UTF-8 encoded bytes.
    *
@@ -228,11 +463,125 @@ public class MessageMarshaller {
    */
   public <T extends Message> byte[] writeValueAsBytes(T message) throws IOException {
     requireNonNull(message, "message");
-    ByteArrayBuilder builder = new ByteArrayBuilder(jsonFactory._getBufferRecycler());
-    try (JsonGenerator gen = jsonFactory.createGenerator(builder)) {
-      writeValue(message, gen);
+    OutputSizeEstimate sizeEstimate = registry.findOutputSizeEstimate(message);
+    int estimate = sizeEstimate != null ? sizeEstimate.get() : 0;
+    BufferRecycler recycler = jsonFactory._getBufferRecycler();
+    byte[] result;
+    try {
+      if (estimate > RECYCLED_OUTPUT_BUFFER_SIZE && estimate <= MAX_PRESIZED_OUTPUT_BUFFER_SIZE) {
+        result = writeValueAsBytesPresized(message, recycler, estimate + (estimate >> 3));
+      } else {
+        ByteArrayBuilder builder = new ByteArrayBuilder(recycler);
+        try (JsonGenerator gen = jsonFactory.createGenerator(builder)) {
+          writeValue(message, gen);
+        }
+        result = builder.toByteArray();
+        builder.release();
+      }
+    } finally {
+      recycler.releaseToPool();
+    }
+    if (sizeEstimate != null) {
+      sizeEstimate.maybeRecord(result.length);
+    }
+    return result;
+  }
+
+  /**
+   * Converts a {@link Message} into JSON as UTF-8 encoded bytes, given the number of bytes as
+   * returned by {@link #computeJsonSize(Message)}. The output is written directly into an array of
+   * exactly that size, so the result is allocated once without any copying.
+   *
+   * @throws IllegalArgumentException if {@code jsonSize} is not the size of the JSON of the
+   *     message.
+   * @throws InvalidProtocolBufferException if there are unknown Any types in the message.
+   */
+  public <T extends Message> byte[] writeValueAsBytes(T message, int jsonSize) throws IOException {
+    requireNonNull(message, "message");
+    if (jsonSize < 0) {
+      throw new IllegalArgumentException("jsonSize must be non-negative: " + jsonSize);
+    }
+    byte[] result = new byte[jsonSize];
+    ByteBuffer buffer = ByteBuffer.wrap(result);
+    try {
+      writeValue(message, new ByteBufferOutputStream(buffer, false));
+    } catch (BufferOverflowException e) {
+      throw new IllegalArgumentException(
+          "jsonSize is smaller than the size of the JSON of the message: " + jsonSize, e);
+    }
+    if (buffer.hasRemaining()) {
+      throw new IllegalArgumentException(
+          "jsonSize is larger than the size of the JSON of the message: "
+              + jsonSize
+              + ", actual: "
+              + buffer.position());
+    }
+    return result;
+  }
+
+  /**
+   * Writes a message known to be large into a single buffer of the {@link BufferRecycler} that will
+   * usually fit all of the output, instead of growing segment by segment. The recycler keeps the
+   * buffer, including when it has to be grown, so later writes of the type don't allocate it again.
+   */
+  private <T extends Message> byte[] writeValueAsBytesPresized(
+      T message, BufferRecycler recycler, int bufferSize) throws IOException {
+    ByteBufferOutputStream out =
+        new ByteBufferOutputStream(
+            ByteBuffer.wrap(
+                recycler.allocByteBuffer(BufferRecycler.BYTE_WRITE_CONCAT_BUFFER, bufferSize)));
+    try {
+      try (JsonGenerator gen = jsonFactory.createGenerator(out)) {
+        writeValue(message, gen);
+      }
+      ByteBuffer buffer = out.buffer();
+      return Arrays.copyOf(buffer.array(), buffer.position());
+    } finally {
+      recycler.releaseByteBuffer(BufferRecycler.BYTE_WRITE_CONCAT_BUFFER, out.buffer().array());
+    }
+  }
+
+  /**
+   * Returns the exact number of bytes {@link #writeValueAsBytes(Message)} would return for {@code
+   * message}, e.g. for setting a {@code Content-Length} header. The size is computed by serializing
+   * without storing the output and is remembered for the message instance, so computing it again
+   * for the same instance is cheap. Pass it to {@link #writeValueAsBytes(Message, int)} to allocate
+   * the output exactly once.
+   *
+   * @throws InvalidProtocolBufferException if there are unknown Any types in the message.
+   */
+  public <T extends Message> int computeJsonSize(T message) throws IOException {
+    requireNonNull(message, "message");
+    int size = sizeCache.get(message);
+    if (size >= 0) {
+      return size;
+    }
+    CountingOutputStream out = new CountingOutputStream();
+    writeValue(message, out);
+    size = out.count;
+    sizeCache.put(message, size);
+    return size;
+  }
+
+  /**
+   * Converts a {@link Message} into JSON as UTF-8 encoded bytes, returned as a list of segments
+   * without copying them into a single array. The returned {@link JsonSegments} must be closed
+   * after the bytes have been written to return the segments for reuse.
+   *
+   * @throws InvalidProtocolBufferException if there are unknown Any types in the message.
+   */
+  public <T extends Message> JsonSegments writeValueAsSegments(T message) throws IOException {
+    requireNonNull(message, "message");
+    JsonSegments.SegmentOutputStream out = new JsonSegments.SegmentOutputStream(segmentPool);
+    try {
+      try (JsonGenerator gen = jsonFactory.createGenerator(out)) {
+        writeValue(message, gen);
+      }
+    } catch (IOException | RuntimeException e) {
+      out.release();
+      throw e;
     }
-    return builder.toByteArray();
+    return out.toSegments();
   }
 
   /**
@@ -242,11 +591,40 @@ public class MessageMarshaller {
    */
   public <T extends Message> String writeValueAsString(T message) throws IOException {
     requireNonNull(message, "message");
-    SegmentedStringWriter sw = new SegmentedStringWriter(jsonFactory._getBufferRecycler());
-    try (JsonGenerator gen = jsonFactory.createGenerator(sw)) {
-      writeValue(message, gen);
+    BufferRecycler recycler = jsonFactory._getBufferRecycler();
+    try {
+      SegmentedStringWriter sw = new SegmentedStringWriter(recycler);
+      try (JsonGenerator gen = jsonFactory.createGenerator(sw)) {
+        writeValue(message, gen);
+      }
+      return sw.getAndClear();
+    } finally {
+      recycler.releaseToPool();
     }
-    return sw.getAndClear();
+  }
+
+  /**
+   * Converts a {@link Message} into JSON UTF-8 bytes, writing them into the provided {@link
+   * ByteBuffer} starting at its position, which is advanced past the written bytes. Returns the
+   * number of bytes written. Use {@link ByteBufferOutputStream} with {@link #writeValue(Message,
+   * OutputStream)} to write into a buffer that grows as needed instead.
+   *
+   * @throws BufferOverflowException if there is not enough space remaining in the {@link
+   *     ByteBuffer}, in which case its position is not changed.
+   * @throws InvalidProtocolBufferException if there are unknown Any types in the message.
+   */
+  public <T extends Message> int writeValue(T message, ByteBuffer out) throws IOException {
+    requireNonNull(message, "message");
+    requireNonNull(out, "out");
+    int startPosition = out.position();
+    ByteBufferOutputStream stream = new ByteBufferOutputStream(out, false);
+    try {
+      writeValue(message, stream);
+    } catch (BufferOverflowException e) {
+      out.position(startPosition);
+      throw e;
+    }
+    return stream.bytesWritten();
   }
 
   /**
@@ -262,7 +640,10 @@ public class MessageMarshaller {
   }
 
   /**
-   * Converts a {@link Message} into a JSON, writing to the provided {@link JsonGenerator}.
+   * Converts a {@link Message} into a JSON, writing to the provided {@link JsonGenerator}. The
+   * generator does not need to write text, for example a Jackson {@code TokenBuffer} can be used to
+   * embed the message in a larger tree or to convert it to a {@code JsonNode} without a text round
+   * trip.
    *
    * @throws InvalidProtocolBufferException if there are unknown Any types in the message.
    */
@@ -285,6 +666,102 @@ public class MessageMarshaller {
     }
   }
 
+  /**
+   * Returns a {@link JsonChunkSource} which converts a {@link Message} into JSON UTF-8 bytes on
+   * demand, as chunks of at most {@code maxChunkSize} bytes. Serialization only progresses as
+   * chunks are pulled, so this is useful for writing very large messages while respecting
+   * backpressure.
+   */
+  public <T extends Message> JsonChunkSource writeValueAsChunks(T message, int maxChunkSize)
+      throws IOException {
+    requireNonNull(message, "message");
+    if (maxChunkSize <= 0) {
+      throw new IllegalArgumentException("maxChunkSize must be positive, got: " + maxChunkSize);
+    }
+    checkNotUsingPositionalArrays("Writing chunks");
+    // TypeSpecificMarshaller for T.prototype is TypeSpecificMarshaller<T>
+    @SuppressWarnings("unchecked")
+    TypeSpecificMarshaller<T> serializer =
+        (TypeSpecificMarshaller<T>) registry.findForPrototype(message.getDefaultInstanceForType());
+    JsonChunkSource.ChunkOutputStream out = new JsonChunkSource.ChunkOutputStream();
+    JsonGenerator gen = jsonFactory.createGenerator(out);
+    if (prettyPrinter != null) {
+      gen.setPrettyPrinter(prettyPrinter);
+    }
+    boolean serializeAsSingleStep = includingDefaultValueFields;
+    for (FieldDescriptor field : message.getDescriptorForType().getFields()) {
+      if (fieldsToAlwaysOutput.contains(field)) {
+        serializeAsSingleStep = true;
+        break;
+      }
+    }
+    return JsonChunkSource.create(
+        message,
+        serializer,
+        registry,
+        gen,
+        out,
+        maxChunkSize,
+        serializeAsSingleStep,
+        preservingProtoFieldNames);
+  }
+
+  /**
+   * Returns the current estimate of the size in bytes of the JSON output of {@link
+   * #writeValueAsBytes(Message)} for messages of the same type as {@code message}, or {@code 0} if
+   * none have been written yet. The estimate is a running average of a sample of sizes that favors
+   * recent sizes and is used to presize the output buffer.
+   */
+  public int estimatedOutputSize(Message message) {
+    requireNonNull(message, "message");
+    OutputSizeEstimate sizeEstimate = registry.findOutputSizeEstimate(message);
+    return sizeEstimate != null ? sizeEstimate.get() : 0;
+  }
+
+  /**
+   * Warms up the marshalling code of all registered types, so it is compiled by the JIT before
+   * serving real traffic instead of running slowly for the first minutes after startup. A sample
+   * message is synthesized for each registered type, with all fields set including nested,
+   * repeated, map and well-known type fields, and all samples are written to JSON and parsed back
+   * for {@code maxIterations} rounds or until {@code maxDuration} has elapsed, whichever comes
+   * first. A few thousand rounds are usually enough for the hot methods to be fully compiled.
+   *
+   * <p>This marshals every registered type, so types not generated yet because of {@link
+   * Builder#generatingLazily(boolean)} are generated, and types count towards {@link
+   * Builder#generationThreshold(int)}.
+   *
+   * @return the number of completed rounds
+   */
+  public int warmUp(int maxIterations, Duration maxDuration) throws IOException {
+    requireNonNull(maxDuration, "maxDuration");
+    if (maxIterations < 0) {
+      throw new IllegalArgumentException("maxIterations must be non-negative: " + maxIterations);
+    }
+    if (maxDuration.isNegative()) {
+      throw new IllegalArgumentException("maxDuration must be non-negative: " + maxDuration);
+    }
+    return MarshallerWarmUp.warmUp(this, maxIterations, maxDuration);
+  }
+
+  /**
+   * Returns a new {@link MarshallerSession} for marshalling many messages from a single thread
+   * while reusing buffers between calls. The returned session is not thread-safe.
+   */
+  public MarshallerSession newSession() {
+    return new MarshallerSession(this, jsonFactory);
+  }
+
+  /**
+   * Returns statistics of the cache of generated marshallers, which is shared by all {@link
+   * MessageMarshaller}s in the JVM so that types registered with the same options in multiple
+   * marshallers only have code generated once. Marshallers generated because of {@link
+   * Builder#generatingLazily(boolean)} or {@link Builder#generationThreshold(int)} refer to the
+   * marshallers of their own {@link MessageMarshaller} and are not cached.
+   */
+  public static MarshallerCacheStats cacheStats() {
+    return TypeSpecificMarshaller.cacheStats();
+  }
+
   /**
    * Returns a new {@link Builder} prepopulated with the messages that have been registered in this
    * {@link MessageMarshaller}. This can be useful to incrementally add more messages to an already
@@ -300,7 +777,41 @@ public class MessageMarshaller {
         preservingProtoFieldNames,
         ignoringUnknownFields,
         printingEnumsAsInts,
-        sortingMapKeys);
+        sortingMapKeys,
+        customJsonFactory,
+        parsingStrictly,
+        escapingHtml,
+        recyclerPool,
+        generatingLazily,
+        generationThreshold,
+        generationExecutor,
+        usingPrecompiledMarshallers,
+        classCacheDirectory,
+        usingPositionalArrays);
+  }
+
+  private void checkNotUsingPositionalArrays(String operation) {
+    if (usingPositionalArrays) {
+      throw new IllegalStateException(operation + " is not supported with positional arrays.");
+    }
+  }
+
+  /** Returns whether a marshaller for the type of {@code prototype} has been registered. */
+  boolean isRegistered(Message prototype) {
+    return registry.getBuiltParsers().containsKey(prototype.getDescriptorForType());
+  }
+
+  /** Returns the marshallers of all registered types, including well-known types. */
+  Collection<TypeSpecificMarshaller<?>> registeredMarshallers() {
+    return registry.getBuiltParsers().values();
+  }
+
+  /**
+   * Returns whether this marshaller reads and writes JSON text, rather than a binary format of a
+   * custom {@link JsonFactory} that can't be used with {@link String}s.
+   */
+  boolean isTextFormat() {
+    return jsonFactory.getFormatName().equals(JsonFactory.FORMAT_NAME_JSON);
   }
 
   List<? extends Message> registeredPrototypes() {
@@ -322,10 +833,21 @@ public class MessageMarshaller {
     private boolean ignoringUnknownFields;
     private boolean printingEnumsAsInts;
     private boolean sortingMapKeys;
+    @Nullable private JsonFactory customJsonFactory;
+    private boolean parsingStrictly;
+    private boolean escapingHtml = true;
+    @Nullable private RecyclerPool<BufferRecycler> recyclerPool;
+    private boolean generatingLazily;
+    private int generationThreshold;
+    @Nullable private Executor generationExecutor;
+    private boolean usingPrecompiledMarshallers;
+    @Nullable private Path classCacheDirectory;
+    private boolean usingPositionalArrays;
+    private boolean reusingAnyMarshaller;
 
     private final List<Message> prototypes = new ArrayList<>();
 
-    private final Map<Descriptor, TypeSpecificMarshaller<?>> preBuiltParsers;
+    private Map<Descriptor, TypeSpecificMarshaller<?>> preBuiltParsers;
 
     /**
      * Registers the type of the provided {@link Message} for use with the created {@link
@@ -364,6 +886,24 @@ public class MessageMarshaller {
       }
     }
 
+    /**
+     * Registers the type described by {@code descriptor}, which is marshalled as {@link
+     * DynamicMessage}, for example when the type is only known at runtime from a {@code
+     * FileDescriptorSet}. All nested {@link Message} types reachable from this one will be
+     * registered as {@link DynamicMessage} as well, except for well-known types, and {@link
+     * DynamicMessage}s of the types can then be passed to methods of {@link MessageMarshaller} like
+     * any other message.
+     *
+     * <p>No code is generated for {@link DynamicMessage}, its fields are accessed through a table
+     * built when registering, so marshalling is slower than for generated classes. Types with a
+     * generated class should be registered with {@link #register(Message)} instead, and registering
+     * both the generated class and the descriptor of a type is not supported.
+     */
+    public Builder register(Descriptor descriptor) {
+      requireNonNull(descriptor, "descriptor");
+      return register(DynamicMessage.getDefaultInstance(descriptor));
+    }
+
     /**
      * Set whether unset fields will be serialized with their default values. Empty repeated fields
      * and map fields will be printed as well.
@@ -457,12 +997,185 @@ public class MessageMarshaller {
       return this;
     }
 
+    /**
+     * Sets whether parsing only accepts standard JSON. By default, like upstream, unquoted field
+     * names and comments are accepted in the input. Rejecting them lets Jackson skip checking for
+     * them when reading field names and whitespace. Ignored when {@link #jsonFactory} is set.
+     */
+    public Builder parsingStrictly(boolean parsingStrictly) {
+      this.parsingStrictly = parsingStrictly;
+      return this;
+    }
+
+    /**
+     * Sets whether the HTML characters {@code <}, {@code >}, {@code &}, {@code =} and {@code '} are
+     * escaped in JSON string values. By default they are, like upstream, so the output can be
+     * embedded in HTML. When the output is never embedded in HTML, disabling escaping lets Jackson
+     * use its standard escape table without a lookup of custom escape sequences. Ignored when
+     * {@link #jsonFactory} is set.
+     */
+    public Builder escapingHtml(boolean escapingHtml) {
+      this.escapingHtml = escapingHtml;
+      return this;
+    }
+
+    /**
+     * Sets the {@link JsonFactory} used to create parsers and generators, instead of the default
+     * one for JSON text. Any Jackson format that maps to the JSON data model can be used, for
+     * example {@code SmileFactory} or {@code CBORFactory} for smaller and faster binary payloads
+     * between services, with the same mapping of proto3 fields to JSON values. Methods reading or
+     * writing {@link String} are only supported by factories for text formats.
+     *
+     * <p>The factory is used as is, so the escaping of HTML characters and leniency for unquoted
+     * field names and comments of the default factory are not applied.
+     */
+    public Builder jsonFactory(JsonFactory jsonFactory) {
+      this.customJsonFactory = requireNonNull(jsonFactory, "jsonFactory");
+      return this;
+    }
+
+    /**
+     * Sets the {@link RecyclerPool} used to reuse the buffers Jackson needs for parsing and
+     * serializing. By default, Jackson keeps buffers in a {@link ThreadLocal}, which works well for
+     * pools of long-lived platform threads but provides no reuse when each request runs on a new
+     * thread, as is common with virtual threads. In that case, a shared pool such as {@link
+     * com.fasterxml.jackson.core.util.JsonRecyclerPools#sharedLockFreePool()} or {@link
+     * com.fasterxml.jackson.core.util.JsonRecyclerPools#newBoundedPool(int)} should be used
+     * instead.
+     */
+    public Builder recyclerPool(RecyclerPool<BufferRecycler> recyclerPool) {
+      this.recyclerPool = requireNonNull(recyclerPool, "recyclerPool");
+      return this;
+    }
+
+    /**
+     * Sets whether marshallers should only be generated when a type is first used instead of when
+     * building the {@link MessageMarshaller}. This reduces startup time and memory usage when
+     * registering many types which may not all be used, at the cost of the first use of each type
+     * being slow. Registered types and their nested types are still determined when building.
+     * Lazily generated marshallers are specific to the built {@link MessageMarshaller}, so they are
+     * not shared with other {@link MessageMarshaller}s or loaded from precompiled marshallers.
+     */
+    public Builder generatingLazily(boolean generatingLazily) {
+      this.generatingLazily = generatingLazily;
+      return this;
+    }
+
+    /**
+     * Sets the number of times a type is marshalled before its marshaller is generated. Until then,
+     * the type is marshalled by interpreting a table of its fields, which is much cheaper to set up
+     * than generating code but slower to run. Once a type reaches the threshold, its marshaller is
+     * generated in the background on the {@link #generationExecutor(Executor)}, or {@link
+     * ForkJoinPool#commonPool()} if not set, and used for all later marshalling of the type, so
+     * startup is fast while frequently used types still get the throughput of generated code.
+     * Output is the same either way. Defaults to {@code 0}, which generates marshallers for all
+     * types when building. Takes precedence over {@link #generatingLazily(boolean)}. As with {@link
+     * #generatingLazily(boolean)}, marshallers generated after reaching the threshold are not
+     * shared or precompiled.
+     *
+     * <p>An executor should be set when using a threshold, so that generation doesn't compete with
+     * other users of the common pool. It should run tasks on other threads than the caller, since
+     * otherwise the request that reaches the threshold waits for generation. If generation fails,
+     * the failure is logged and the type keeps being interpreted.
+     */
+    public Builder generationThreshold(int generationThreshold) {
+      if (generationThreshold < 0) {
+        throw new IllegalArgumentException(
+            "generationThreshold must be non-negative: " + generationThreshold);
+      }
+      this.generationThreshold = generationThreshold;
+      return this;
+    }
+
+    /**
+     * Sets the {@link Executor} used to generate marshallers for registered types. By default,
+     * marshallers are generated on the thread calling {@link #build()}. Since the marshallers of
+     * different types are independent of each other, they can be generated in parallel when
+     * registering many types by setting an executor with multiple threads. {@link #build()} waits
+     * for generation to complete, so the executor must not depend on the calling thread to make
+     * progress, e.g., by being the pool the calling thread belongs to.
+     */
+    public Builder generationExecutor(Executor generationExecutor) {
+      this.generationExecutor = requireNonNull(generationExecutor, "generationExecutor");
+      return this;
+    }
+
+    /**
+     * Sets whether marshallers precompiled by {@link MarshallerPrecompiler} should be used instead
+     * of generating them at runtime when they are found. Precompiled marshallers are loaded from
+     * the {@link ClassLoader} of each message class, so they are generally packaged together with
+     * the message classes. Types without a precompiled marshaller for the options of this builder
+     * are generated as usual, so if all registered types have been precompiled, no code is
+     * generated at runtime. Precompiled marshallers must be written by the same version of this
+     * library as the one used at runtime.
+     */
+    public Builder usingPrecompiledMarshallers(boolean usingPrecompiledMarshallers) {
+      this.usingPrecompiledMarshallers = usingPrecompiledMarshallers;
+      return this;
+    }
+
+    /**
+     * Sets a directory to cache the bytecode of generated marshallers in. Later processes using the
+     * same directory, such as restarts of the same application, define the cached classes instead
+     * of generating them again, which reduces startup time when registering many types. Entries are
+     * keyed by the proto definitions of the types, the options and the version of this library, so
+     * the directory can be shared by different applications and versions. The cache is
+     * best-effort: if the directory is not writable or an entry cannot be read, marshallers are
+     * generated as usual.
+     */
+    public Builder classCacheDirectory(Path classCacheDirectory) {
+      this.classCacheDirectory = requireNonNull(classCacheDirectory, "classCacheDirectory");
+      return this;
+    }
+
+    /**
+     * Sets whether messages are marshalled in the positional array format of JSPB instead of
+     * proto3 JSON. A message is a JSON array with the value of the field numbered {@code n} at
+     * index {@code n - 1}, which omits field names from the payload and lets parsing look up fields
+     * by their position instead of matching names. Unset fields are {@code null} and trailing
+     * {@code null}s are omitted, repeated fields are arrays, maps are arrays of {@code [key,
+     * value]} arrays and enums are numbers. Well-known types are written positionally like any
+     * other message. Scalar values are encoded as in proto3 JSON, e.g., 64-bit integers are
+     * strings. Fields numbered above 1024 are written to an object keyed by field number as the
+     * last element of the array.
+     *
+     * <p>This format is only understood by clients that know the field numbers of the messages, so
+     * is intended for internal high-volume channels. The field naming and code generation options
+     * have no effect, and {@link DynamicMessage} and the streaming, incremental and chunked
+     * methods of {@link MessageMarshaller} are not supported.
+     */
+    public Builder usingPositionalArrays(boolean usingPositionalArrays) {
+      if (usingPositionalArrays != this.usingPositionalArrays && !preBuiltParsers.isEmpty()) {
+        // The marshallers of the MessageMarshaller this builder was created from are for the other
+        // format, so register their types again instead.
+        for (TypeSpecificMarshaller<?> marshaller : preBuiltParsers.values()) {
+          prototypes.add(marshaller.getMarshalledPrototype());
+        }
+        preBuiltParsers = Collections.emptyMap();
+      }
+      this.usingPositionalArrays = usingPositionalArrays;
+      return this;
+    }
+
+    /**
+     * Sets whether the {@link AnyMarshaller} of the marshaller this builder was created from should
+     * be reused and updated to resolve types registered in this builder, instead of creating a new
+     * one. Only for use by {@link MessageMarshallerHolder}, which only ever adds types.
+     */
+    Builder reusingAnyMarshaller(boolean reusingAnyMarshaller) {
+      this.reusingAnyMarshaller = reusingAnyMarshaller;
+      return this;
+    }
+
     /**
      * Returns the built {@link MessageMarshaller}, generating {@link TypeSpecificMarshaller} for
      * all registered {@link Message} types. Any {@link Message} types that have not been registered
      * will not be usable with the returned {@link MessageMarshaller}.
      */
     public MessageMarshaller build() {
+      if (usingPositionalArrays) {
+        return buildPositional();
+      }
       Map<Descriptor, TypeSpecificMarshaller<?>> builtParsers;
       if (!preBuiltParsers.isEmpty()) {
         builtParsers = new HashMap<>(preBuiltParsers);
@@ -486,12 +1199,19 @@ public class MessageMarshaller {
       }
 
       // AnyMarshaller must be re-registered even if preBuiltParsers are used
-      // to be able to reference the newly registered ones.
-      AnyMarshaller anyParser = new AnyMarshaller();
+      // to be able to reference the newly registered ones. When rebuilding for a
+      // MessageMarshallerHolder, the existing one is kept and pointed at the new registry instead,
+      // since the nested marshaller fields of already generated marshallers refer to it.
+      TypeSpecificMarshaller<?> previousAnyParser = builtParsers.get(Any.getDescriptor());
+      boolean reuseAnyParser = reusingAnyMarshaller && previousAnyParser instanceof AnyMarshaller;
+      AnyMarshaller anyParser =
+          reuseAnyParser ? (AnyMarshaller) previousAnyParser : new AnyMarshaller();
       addStandardParser(anyParser, builtParsers);
 
+      List<MarshallerOptions> options = new ArrayList<>();
+      List<MarshallerOptions> dynamicOptions = new ArrayList<>();
       for (Message prototype : prototypes) {
-        TypeSpecificMarshaller.buildAndAdd(
+        MarshallerOptions typeOptions =
             new MarshallerOptions(
                 prototype,
                 includingDefaultValueFields,
@@ -499,12 +1219,47 @@ public class MessageMarshaller {
                 preservingProtoFieldNames,
                 ignoringUnknownFields,
                 printingEnumsAsInts,
-                sortingMapKeys),
-            builtParsers);
+                sortingMapKeys,
+                usingPrecompiledMarshallers,
+                classCacheDirectory);
+        // DynamicMessage has no generated code to call, so is never generated or interpreted.
+        if (prototype instanceof DynamicMessage) {
+          dynamicOptions.add(typeOptions);
+        } else {
+          options.add(typeOptions);
+        }
+      }
+      if (generationThreshold > 0) {
+        GeneratedClassLoader classLoader = TypeSpecificMarshaller.newClassLoader();
+        for (MarshallerOptions typeOptions : options) {
+          TieredMarshaller.addTiered(
+              typeOptions,
+              builtParsers,
+              classLoader,
+              generationThreshold,
+              // Nothing waits for tiered generation, so it can always be done in the background.
+              generationExecutor != null ? generationExecutor : ForkJoinPool.commonPool());
+        }
+      } else if (generatingLazily) {
+        // Lazily generated marshallers are also defined in a single class loader.
+        GeneratedClassLoader classLoader = TypeSpecificMarshaller.newClassLoader();
+        for (MarshallerOptions typeOptions : options) {
+          LazyMarshaller.addLazy(typeOptions, builtParsers, classLoader);
+        }
+      } else {
+        TypeSpecificMarshaller.buildAllAndAdd(
+            options, builtParsers, generationExecutor != null ? generationExecutor : Runnable::run);
+      }
+      for (MarshallerOptions typeOptions : dynamicOptions) {
+        InterpretedMarshaller.addDynamic(typeOptions, builtParsers);
       }
 
       MarshallerRegistry registry = new MarshallerRegistry(builtParsers);
-      anyParser.setMarshallerRegistry(registry);
+      if (reuseAnyParser) {
+        anyParser.replaceMarshallerRegistry(registry);
+      } else {
+        anyParser.setMarshallerRegistry(registry);
+      }
 
       return new MessageMarshaller(
           registry,
@@ -514,7 +1269,54 @@ public class MessageMarshaller {
           preservingProtoFieldNames,
           ignoringUnknownFields,
           printingEnumsAsInts,
-          sortingMapKeys);
+          sortingMapKeys,
+          customJsonFactory,
+          parsingStrictly,
+          escapingHtml,
+          recyclerPool,
+          generatingLazily,
+          generationThreshold,
+          generationExecutor,
+          usingPrecompiledMarshallers,
+          classCacheDirectory,
+          usingPositionalArrays);
+    }
+
+    private MessageMarshaller buildPositional() {
+      // Well-known types and Any have no special representation, so they get positional
+      // marshallers like other types when reachable from registered ones.
+      Map<Descriptor, TypeSpecificMarshaller<?>> builtParsers = new HashMap<>(preBuiltParsers);
+      for (Message prototype : prototypes) {
+        PositionalMarshaller.addPositional(
+            new MarshallerOptions(
+                prototype,
+                includingDefaultValueFields,
+                fieldsToAlwaysOutput,
+                preservingProtoFieldNames,
+                ignoringUnknownFields,
+                printingEnumsAsInts,
+                sortingMapKeys),
+            builtParsers);
+      }
+      return new MessageMarshaller(
+          new MarshallerRegistry(builtParsers),
+          omittingInsignificantWhitespace,
+          includingDefaultValueFields,
+          fieldsToAlwaysOutput,
+          preservingProtoFieldNames,
+          ignoringUnknownFields,
+          printingEnumsAsInts,
+          sortingMapKeys,
+          customJsonFactory,
+          parsingStrictly,
+          escapingHtml,
+          recyclerPool,
+          generatingLazily,
+          generationThreshold,
+          generationExecutor,
+          usingPrecompiledMarshallers,
+          classCacheDirectory,
+          usingPositionalArrays);
     }
 
     private static <T extends Message> void addStandardParser(
@@ -535,7 +1337,17 @@ public class MessageMarshaller {
         boolean preservingProtoFieldNames,
         boolean ignoringUnknownFields,
         boolean printingEnumsAsInts,
-        boolean sortingMapKeys) {
+        boolean sortingMapKeys,
+        @Nullable JsonFactory customJsonFactory,
+        boolean parsingStrictly,
+        boolean escapingHtml,
+        @Nullable RecyclerPool<BufferRecycler> recyclerPool,
+        boolean generatingLazily,
+        int generationThreshold,
+        @Nullable Executor generationExecutor,
+        boolean usingPrecompiledMarshallers,
+        @Nullable Path classCacheDirectory,
+        boolean usingPositionalArrays) {
       this.preBuiltParsers = preBuiltParsers;
       this.omittingInsignificantWhitespace = omittingInsignificantWhitespace;
       this.includingDefaultValueFields = includingDefaultValueFields;
@@ -544,6 +1356,30 @@ public class MessageMarshaller {
       this.ignoringUnknownFields = ignoringUnknownFields;
       this.printingEnumsAsInts = printingEnumsAsInts;
       this.sortingMapKeys = sortingMapKeys;
+      this.customJsonFactory = customJsonFactory;
+      this.parsingStrictly = parsingStrictly;
+      this.escapingHtml = escapingHtml;
+      this.recyclerPool = recyclerPool;
+      this.generatingLazily = generatingLazily;
+      this.generationThreshold = generationThreshold;
+      this.generationExecutor = generationExecutor;
+      this.usingPrecompiledMarshallers = usingPrecompiledMarshallers;
+      this.classCacheDirectory = classCacheDirectory;
+      this.usingPositionalArrays = usingPositionalArrays;
+    }
+  }
+
+  private static final class CountingOutputStream extends OutputStream {
+    private int count;
+
+    @Override
+    public void write(int b) {
+      count++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+      count += len;
     }
   }
 
@@ -0,0 +1,119 @@
+/*
+ * Copyright (c) Choko (choko@curioswitch.org)
+ * SPDX-License-Identifier: MIT
+ */
+
+package org.curioswitch.common.protobuf.json;
+
+import static java.util.Objects.requireNonNull;
+
+import com.google.protobuf.Message;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+/**
+ * Holds the current {@link MessageMarshaller} for an application that registers more {@link
+ * Message} types at runtime, for example when loading plugins. Calling {@code
+ * toBuilder().register(...).build()} on a request thread blocks that thread while code is generated
+ * for the new types. Instead, {@link #register(Message...)} rebuilds the marshaller in the
+ * background on an {@link Executor}, reusing all marshallers that have already been generated, and
+ * atomically replaces the current one when done. Request threads always use {@link #get()}, which
+ * never waits.
+ *
+ * <p>For example:
+ *
+ * <pre>{@code
+ * MessageMarshallerHolder holder =
+ *     new MessageMarshallerHolder(
+ *         MessageMarshaller.builder().register(MyRequest.getDefaultInstance()).build(),
+ *         executor);
+ *
+ * // When loading a plugin
+ * holder.register(PluginRequest.getDefaultInstance());
+ *
+ * // When handling a request
+ * holder.get().mergeValue(json, requestBuilder);
+ * }</pre>
+ *
+ * <p>Rebuilds are done one at a time, each one adding to the result of the previous one, so no
+ * registration is lost when registering from multiple threads. The {@link
+ * com.google.protobuf.Any} marshaller is shared between all marshallers of a holder and always
+ * resolves the most recently registered types, including within messages handled by a marshaller
+ * returned by {@link #get()} before the rebuild finished.
+ */
+public final class MessageMarshallerHolder {
+
+  private final Executor executor;
+  private final Object rebuildLock = new Object();
+
+  private volatile MessageMarshaller current;
+
+  /**
+   * Creates a new {@link MessageMarshallerHolder} starting with {@code initial}. Rebuilds will be
+   * done on {@code executor}, and will use the same options as {@code initial}.
+   */
+  public MessageMarshallerHolder(MessageMarshaller initial, Executor executor) {
+    this.current = requireNonNull(initial, "initial");
+    this.executor = requireNonNull(executor, "executor");
+  }
+
+  /** Returns the current {@link MessageMarshaller}. Never blocks. */
+  public MessageMarshaller get() {
+    return current;
+  }
+
+  /**
+   * Registers the types of {@code prototypes} in the background. The returned {@link
+   * CompletableFuture} completes with the {@link MessageMarshaller} that has them registered once
+   * it has been made current, or immediately if they are already registered.
+   */
+  public CompletableFuture<MessageMarshaller> register(Message... prototypes) {
+    requireNonNull(prototypes, "prototypes");
+    return register(Arrays.asList(prototypes));
+  }
+
+  /**
+   * Registers the types of {@code prototypes} in the background. The returned {@link
+   * CompletableFuture} completes with the {@link MessageMarshaller} that has them registered once
+   * it has been made current, or immediately if they are already registered.
+   */
+  public CompletableFuture<MessageMarshaller> register(Iterable<? extends Message> prototypes) {
+    requireNonNull(prototypes, "prototypes");
+    List<Message> missing = missingPrototypes(current, prototypes);
+    if (missing.isEmpty()) {
+      return CompletableFuture.completedFuture(current);
+    }
+    return CompletableFuture.supplyAsync(() -> rebuild(missing), executor);
+  }
+
+  private MessageMarshaller rebuild(List<Message> prototypes) {
+    synchronized (rebuildLock) {
+      MessageMarshaller current = this.current;
+      // Another rebuild may have registered them in the meantime.
+      List<Message> missing = missingPrototypes(current, prototypes);
+      if (missing.isEmpty()) {
+        return current;
+      }
+      MessageMarshaller.Builder builder = current.toBuilder().reusingAnyMarshaller(true);
+      missing.forEach(builder::register);
+      MessageMarshaller rebuilt = builder.build();
+      this.current = rebuilt;
+      return rebuilt;
+    }
+  }
+
+  private static List<Message> missingPrototypes(
+      MessageMarshaller marshaller, Iterable<? extends Message> prototypes) {
+    List<Message> missing = new ArrayList<>();
+    for (Message prototype : prototypes) {
+      requireNonNull(prototype, "prototype");
+      if (!marshaller.isRegistered(prototype)) {
+        missing.add(prototype);
+      }
+    }
+    return missing;
+  }
+}
@@ -7,24 +7,39 @@ package org.curioswitch.common.protobuf.json;
 
 import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.databind.BeanProperty;
 import com.fasterxml.jackson.databind.DeserializationContext;
 import com.fasterxml.jackson.databind.JsonDeserializer;
 import com.fasterxml.jackson.databind.JsonMappingException;
 import com.fasterxml.jackson.databind.JsonSerializer;
 import com.fasterxml.jackson.databind.Module;
 import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.deser.ContextualDeserializer;
 import com.fasterxml.jackson.databind.deser.std.StdDeserializer;
 import com.fasterxml.jackson.databind.module.SimpleModule;
+import com.fasterxml.jackson.databind.ser.ContextualSerializer;
 import com.fasterxml.jackson.databind.ser.std.StdSerializer;
+import com.google.protobuf.Descriptors.Descriptor;
+import com.google.protobuf.DynamicMessage;
 import com.google.protobuf.Message;
 import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import javax.annotation.Nullable;
 
 /**
  * A {@link Module} which can be registered to an {@link
  * com.fasterxml.jackson.databind.ObjectMapper} to enable it to marshal protobuf using {@link
  * MessageMarshaller}. If any modules registered after this one handle protobuf messages, they will
  * be used even when marshalling nested messages within {@link MessageMarshaller}. This can be used
- * to customize the marshalling of certain types when needed.
+ * to customize the marshalling of certain types when needed. Such serializers and deserializers are
+ * resolved once when the {@link com.fasterxml.jackson.databind.ObjectMapper} first handles a type,
+ * and if there are none, messages are marshalled with no overhead compared to calling {@link
+ * MessageMarshaller} directly.
  *
  * <p>For example:
  *
@@ -36,6 +51,10 @@ import java.io.IOException;
  * mapper.registerModule(MessageMarshallerModule.of(marshaller));
  * mapper.writeValueAsString(MyMessage.newBuilder().setValue("hello!").build());
  * }</pre>
+ *
+ * <p>Conversions without text such as {@code ObjectMapper.convertValue}, {@code valueToTree} and
+ * {@code treeToValue} also go through {@link MessageMarshaller}, so messages can be converted to
+ * and from trees and POJOs directly.
  */
 public final class MessageMarshallerModule extends SimpleModule {
 
@@ -53,81 +72,220 @@ public final class MessageMarshallerModule extends SimpleModule {
   private MessageMarshallerModule(MessageMarshaller marshaller) {
     for (Message prototype : marshaller.registeredPrototypes()) {
       // Couldn't figure out how to get the generics to work properly for this without rawtypes.
-      addDeserializer(
-          (Class) prototype.getClass(), new MessageDeserializer<>(prototype, marshaller));
-      addSerializer(new MessageSerializer<>(prototype, marshaller));
+      // All DynamicMessage types share a class, so can only be deserialized by passing a builder
+      // to MessageMarshaller.
+      if (!(prototype instanceof DynamicMessage)) {
+        addDeserializer(
+            (Class) prototype.getClass(), new MessageDeserializer<>(prototype, marshaller, null));
+      }
+      addSerializer(new MessageSerializer<>(prototype, marshaller, null));
+    }
+  }
+
+  /**
+   * Returns the classes of all message types reachable from {@code prototype}, which may have a
+   * serializer or deserializer registered by another module. {@link DynamicMessage} is skipped
+   * since it can't be handled per type.
+   */
+  private static Set<Class<?>> nestedMessageClasses(Message prototype) {
+    Set<Class<?>> classes = new HashSet<>();
+    Set<Descriptor> visited = new HashSet<>();
+    Deque<Message> pending = new ArrayDeque<>();
+    pending.add(prototype);
+    while (!pending.isEmpty()) {
+      Message current = pending.remove();
+      if (!visited.add(current.getDescriptorForType())) {
+        continue;
+      }
+      for (Message nested : TypeSpecificMarshaller.nestedMessagePrototypes(current)) {
+        if (!(nested instanceof DynamicMessage)) {
+          classes.add(nested.getClass());
+        }
+        pending.add(nested);
+      }
     }
+    return classes;
   }
 
-  private static class MessageDeserializer<T extends Message> extends StdDeserializer<T> {
+  private static class MessageDeserializer<T extends Message> extends StdDeserializer<T>
+      implements ContextualDeserializer {
 
     private static final long serialVersionUID = 2347902651812283460L;
 
     private final transient T prototype;
     private final transient MessageMarshaller marshaller;
 
-    MessageDeserializer(T prototype, MessageMarshaller marshaller) {
+    // Deserializers of other modules for nested types, resolved when contextualizing. null if not
+    // contextualized, in which case they are looked up for every nested message.
+    @Nullable private final transient Map<Class<?>, JsonDeserializer<?>> nestedDeserializers;
+
+    MessageDeserializer(
+        T prototype,
+        MessageMarshaller marshaller,
+        @Nullable Map<Class<?>, JsonDeserializer<?>> nestedDeserializers) {
       super(prototype.getClass());
       this.prototype = prototype;
       this.marshaller = marshaller;
+      this.nestedDeserializers = nestedDeserializers;
+    }
+
+    @Override
+    public JsonDeserializer<?> createContextual(
+        DeserializationContext ctxt, @Nullable BeanProperty property) {
+      if (nestedDeserializers != null) {
+        return this;
+      }
+      Map<Class<?>, JsonDeserializer<?>> resolved = new HashMap<>();
+      for (Class<?> clz : nestedMessageClasses(prototype)) {
+        JsonDeserializer<?> deserializer;
+        try {
+          deserializer = ctxt.findNonContextualValueDeserializer(ctxt.constructType(clz));
+        } catch (JsonMappingException e) {
+          continue;
+        }
+        if (deserializer != null && !isOwn(deserializer)) {
+          resolved.put(clz, deserializer);
+        }
+      }
+      return new MessageDeserializer<>(prototype, marshaller, resolved);
     }
 
     @Override
     public T deserialize(JsonParser parser, DeserializationContext ctxt) throws IOException {
-      JsonParser wrapped =
-          new JsonParserWrapper(
-              parser,
-              (p, clz) -> {
-                JsonDeserializer<?> deserializer;
-                try {
-                  deserializer = ctxt.findNonContextualValueDeserializer(ctxt.constructType(clz));
-                } catch (JsonMappingException e) {
-                  return JsonParserWrapper.NOT_DESERIALIZED;
-                }
-                if (deserializer == null) {
-                  return JsonParserWrapper.NOT_DESERIALIZED;
-                }
-                return deserializer.deserialize(p, ctxt);
-              });
+      Map<Class<?>, JsonDeserializer<?>> nestedDeserializers = this.nestedDeserializers;
+      JsonParser wrapped;
+      if (nestedDeserializers == null) {
+        wrapped =
+            new JsonParserWrapper(
+                parser,
+                (p, clz) -> {
+                  JsonDeserializer<?> deserializer;
+                  try {
+                    deserializer =
+                        ctxt.findNonContextualValueDeserializer(ctxt.constructType(clz));
+                  } catch (JsonMappingException e) {
+                    return JsonParserWrapper.NOT_DESERIALIZED;
+                  }
+                  if (deserializer == null) {
+                    return JsonParserWrapper.NOT_DESERIALIZED;
+                  }
+                  return deserializer.deserialize(p, ctxt);
+                });
+      } else if (nestedDeserializers.isEmpty()) {
+        // No other module handles nested types, so the marshaller can parse everything itself.
+        wrapped = parser;
+      } else {
+        wrapped =
+            new JsonParserWrapper(
+                parser,
+                (p, clz) -> {
+                  JsonDeserializer<?> deserializer = nestedDeserializers.get(clz);
+                  if (deserializer == null) {
+                    return JsonParserWrapper.NOT_DESERIALIZED;
+                  }
+                  return deserializer.deserialize(p, ctxt);
+                });
+      }
       Message.Builder builder = prototype.newBuilderForType();
       marshaller.mergeValue(wrapped, builder);
       @SuppressWarnings("unchecked") // newBuilderForType().build() always returns T.
       T message = (T) builder.build();
       return message;
     }
+
+    private boolean isOwn(JsonDeserializer<?> deserializer) {
+      return deserializer instanceof MessageDeserializer
+          && ((MessageDeserializer<?>) deserializer).marshaller == marshaller;
+    }
   }
 
-  private static class MessageSerializer<T extends Message> extends StdSerializer<T> {
+  private static class MessageSerializer<T extends Message> extends StdSerializer<T>
+      implements ContextualSerializer {
 
     private static final long serialVersionUID = 7592254532224523930L;
 
+    private final transient T prototype;
     private final MessageMarshaller marshaller;
 
-    MessageSerializer(T prototype, MessageMarshaller marshaller) {
+    // Serializers of other modules for nested types, resolved when contextualizing. null if not
+    // contextualized, in which case they are looked up for every nested message.
+    @Nullable private final transient Map<Class<?>, JsonSerializer<Object>> nestedSerializers;
+
+    MessageSerializer(
+        T prototype,
+        MessageMarshaller marshaller,
+        @Nullable Map<Class<?>, JsonSerializer<Object>> nestedSerializers) {
       super(prototype.getClass(), true);
+      this.prototype = prototype;
       this.marshaller = marshaller;
+      this.nestedSerializers = nestedSerializers;
+    }
+
+    @Override
+    public JsonSerializer<?> createContextual(
+        SerializerProvider provider, @Nullable BeanProperty property) {
+      if (nestedSerializers != null) {
+        return this;
+      }
+      Map<Class<?>, JsonSerializer<Object>> resolved = new HashMap<>();
+      for (Class<?> clz : nestedMessageClasses(prototype)) {
+        JsonSerializer<Object> serializer;
+        try {
+          serializer = provider.findValueSerializer(clz);
+        } catch (JsonMappingException e) {
+          continue;
+        }
+        if (serializer != null && !isOwn(serializer)) {
+          resolved.put(clz, serializer);
+        }
+      }
+      return new MessageSerializer<>(prototype, marshaller, resolved);
     }
 
     @Override
     public void serialize(T value, JsonGenerator gen, SerializerProvider provider)
         throws IOException {
-      JsonGenerator wrapped =
-          new JsonGeneratorWrapper(
-              gen,
-              (obj, g) -> {
-                JsonSerializer<Object> serializer;
-                try {
-                  serializer = provider.findValueSerializer(obj.getClass());
-                } catch (JsonMappingException e) {
-                  return false;
-                }
-                if (serializer == null) {
-                  return false;
-                }
-                serializer.serialize(obj, g, provider);
-                return true;
-              });
-      marshaller.writeValue(value, wrapped);
+      Map<Class<?>, JsonSerializer<Object>> nestedSerializers = this.nestedSerializers;
+      if (nestedSerializers == null) {
+        JsonGenerator wrapped =
+            new JsonGeneratorWrapper(
+                gen,
+                (obj, g) -> {
+                  JsonSerializer<Object> serializer;
+                  try {
+                    serializer = provider.findValueSerializer(obj.getClass());
+                  } catch (JsonMappingException e) {
+                    return false;
+                  }
+                  if (serializer == null) {
+                    return false;
+                  }
+                  serializer.serialize(obj, g, provider);
+                  return true;
+                });
+        marshaller.writeValue(value, wrapped);
+      } else if (nestedSerializers.isEmpty()) {
+        // No other module handles nested types, so the marshaller can write everything itself.
+        marshaller.writeValue(value, gen);
+      } else {
+        JsonGenerator wrapped =
+            new JsonGeneratorWrapper(
+                gen,
+                (obj, g) -> {
+                  JsonSerializer<Object> serializer = nestedSerializers.get(obj.getClass());
+                  if (serializer == null) {
+                    return false;
+                  }
+                  serializer.serialize(obj, g, provider);
+                  return true;
+                });
+        marshaller.writeValue(value, wrapped);
+      }
+    }
+
+    private boolean isOwn(JsonSerializer<?> serializer) {
+      return serializer instanceof MessageSerializer
+          && ((MessageSerializer<?>) serializer).marshaller == marshaller;
     }
   }
 }
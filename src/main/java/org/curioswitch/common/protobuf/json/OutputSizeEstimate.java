@@ -0,0 +1,42 @@
+/*
+ * Copyright (c) Choko (choko@curioswitch.org)
+ * SPDX-License-Identifier: MIT
+ */
+
+package org.curioswitch.common.protobuf.json;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * A running estimate of the size of the JSON output for a type in bytes, decaying older sizes. Each
+ * {@link MessageMarshaller} has its own estimates since its options, such as whitespace, change the
+ * size of the output.
+ */
+final class OutputSizeEstimate {
+
+  // Each recorded size moves the estimate 1/8 of the way towards it.
+  private static final int DECAY_SHIFT = 3;
+
+  // Only about one in this many sizes is recorded, so threads writing the same type don't keep
+  // invalidating each other's cached copy of the estimate.
+  private static final int SAMPLE_INTERVAL = 16;
+
+  // Updated without synchronization. Concurrent updates may drop a sample, which is fine for an
+  // estimate.
+  private int estimate;
+
+  /** Returns the current estimate, or {@code 0} if no size has been recorded yet. */
+  int get() {
+    return estimate;
+  }
+
+  /** Records {@code size} if it is picked as a sample, or if no size has been recorded yet. */
+  void maybeRecord(int size) {
+    int estimate = this.estimate;
+    if (estimate == 0) {
+      this.estimate = size;
+    } else if (ThreadLocalRandom.current().nextInt(SAMPLE_INTERVAL) == 0) {
+      this.estimate = estimate + ((size - estimate) >> DECAY_SHIFT);
+    }
+  }
+}
@@ -7,7 +7,9 @@ package org.curioswitch.common.protobuf.json;
 
 import com.fasterxml.jackson.core.JsonParseException;
 import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonParser.NumberType;
 import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.StreamReadCapability;
 import com.fasterxml.jackson.core.base.ParserBase;
 import com.fasterxml.jackson.core.exc.InputCoercionException;
 import com.fasterxml.jackson.core.io.NumberInput;
@@ -226,6 +228,16 @@ public final class ParseSupport {
   /** Parsers a float value out of the input. */
   public static float parseFloat(JsonParser parser) throws IOException {
     JsonToken current = parser.currentToken();
+    if (isExactFloat(parser, current)) {
+      if (parser.getNumberType() == NumberType.FLOAT) {
+        return parser.getFloatValue();
+      }
+      double value = parser.getDoubleValue();
+      if (value > Float.MAX_VALUE * (1.0 + EPSILON) || value < -Float.MAX_VALUE * (1.0 + EPSILON)) {
+        throw new InvalidProtocolBufferException("Out of range float value: " + value);
+      }
+      return (float) value;
+    }
     if (!current.isNumeric()) {
       String json = parser.getText();
       if (json.equals("NaN")) {
@@ -266,6 +278,9 @@ public final class ParseSupport {
   /** Parsers a double value out of the input. */
   public static double parseDouble(JsonParser parser) throws IOException {
     JsonToken current = parser.currentToken();
+    if (isExactFloat(parser, current)) {
+      return parser.getDoubleValue();
+    }
     if (!current.isNumeric()) {
       String json = parser.getText();
       if (json.equals("NaN")) {
@@ -311,6 +326,10 @@ public final class ParseSupport {
   /** Parsers a bytes value out of the input. */
   public static ByteString parseBytes(JsonParser parser) throws IOException {
     JsonToken json = parser.currentToken();
+    if (json == JsonToken.VALUE_EMBEDDED_OBJECT) {
+      // Binary formats like Smile and CBOR write bytes natively instead of as base64 text.
+      return ByteString.copyFrom(parser.getBinaryValue());
+    }
     byte[] result = null;
     try {
       // Use JDK to decode base64, which can handle more variants than Jackson.
@@ -463,6 +482,24 @@ public final class ParseSupport {
     return name1.equals(name2);
   }
 
+  /**
+   * Returns whether the current token is a floating point number read exactly from a binary format
+   * like Smile or CBOR, in which case it can be used without parsing its text, which may not even
+   * be a valid JSON number for non-finite values.
+   */
+  private static boolean isExactFloat(JsonParser parser, JsonToken token) {
+    if (token != JsonToken.VALUE_NUMBER_FLOAT
+        || !parser.getReadCapabilities().isEnabled(StreamReadCapability.EXACT_FLOATS)) {
+      return false;
+    }
+    try {
+      NumberType type = parser.getNumberType();
+      return type == NumberType.FLOAT || type == NumberType.DOUBLE;
+    } catch (IOException e) {
+      return false;
+    }
+  }
+
   /** Parses a long out of the input, using the optimized path when the value is not quoted. */
   private static long parseLong(JsonParser parser) throws IOException {
     if (parser.currentToken() == JsonToken.VALUE_NUMBER_INT) {
@@ -0,0 +1,334 @@
+/*
+ * Copyright (c) Choko (choko@curioswitch.org)
+ * SPDX-License-Identifier: MIT
+ */
+
+package org.curioswitch.common.protobuf.json;
+
+import static java.util.Objects.requireNonNull;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.google.protobuf.Descriptors.Descriptor;
+import com.google.protobuf.Descriptors.FieldDescriptor;
+import com.google.protobuf.DynamicMessage;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.Message;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import org.curioswitch.common.protobuf.json.InterpretedMarshaller.FieldEntry;
+
+/**
+ * A {@link TypeSpecificMarshaller} for the positional array format of JSPB, where a message is a
+ * JSON array with the value of the field numbered {@code n} at index {@code n - 1}, instead of an
+ * object keyed by field name. Field names usually make up most of the size of proto3 JSON, and
+ * parsing dispatches on the array index with a table lookup instead of matching names.
+ *
+ * <p>Unset fields are {@code null} and trailing {@code null}s are omitted. Fields numbered above
+ * {@link #MAX_POSITIONAL_FIELD_NUMBER} are written to an object keyed by field number as the last
+ * element of the array, so that sparse large field numbers don't need long runs of {@code null}s.
+ * Repeated fields are arrays, maps are arrays of {@code [key, value]} arrays and enums are always
+ * written as numbers. Other values, including 64-bit integers and bytes, use the same encoding as
+ * proto3 JSON. Well-known types have no special representation and are written positionally like
+ * any other message, e.g., {@code Timestamp} is {@code [seconds, nanos]}.
+ *
+ * <p>Fields are accessed through the table of {@link InterpretedMarshaller}.
+ */
+final class PositionalMarshaller<T extends Message> extends TypeSpecificMarshaller<T> {
+
+  // Large enough for any reasonably dense message.
+  static final int MAX_POSITIONAL_FIELD_NUMBER = 1024;
+
+  /**
+   * Adds a {@link PositionalMarshaller} for the type of {@code options} and all message types
+   * reachable from it, including well-known types, to {@code marshallers}, skipping types that are
+   * already present.
+   *
+   * @throws IllegalArgumentException if the type is a {@link DynamicMessage}
+   */
+  static void addPositional(
+      MarshallerOptions options, Map<Descriptor, TypeSpecificMarshaller<?>> marshallers) {
+    if (options.getPrototype() instanceof DynamicMessage) {
+      throw new IllegalArgumentException(
+          "DynamicMessage is not supported with positional arrays: "
+              + options.getPrototype().getDescriptorForType().getFullName());
+    }
+    Deque<MarshallerOptions> pending = new ArrayDeque<>();
+    pending.add(options);
+    while (!pending.isEmpty()) {
+      MarshallerOptions typeOptions = pending.removeFirst();
+      Descriptor descriptor = typeOptions.getPrototype().getDescriptorForType();
+      if (marshallers.containsKey(descriptor)) {
+        continue;
+      }
+      marshallers.put(descriptor, new PositionalMarshaller<>(typeOptions, marshallers));
+      for (Message nestedPrototype : nestedMessagePrototypes(typeOptions.getPrototype())) {
+        pending.addLast(typeOptions.forPrototype(nestedPrototype));
+      }
+    }
+  }
+
+  private final String fullName;
+  private final boolean ignoringUnknownFields;
+  private final boolean sortingMapKeys;
+
+  // In field number order, the order of the output.
+  private final FieldEntry[] fields;
+  // Indexed by field number - 1, null where there is no field with the number.
+  private final FieldEntry[] fieldsByPosition;
+  // Fields numbered above MAX_POSITIONAL_FIELD_NUMBER, keyed by their number.
+  private final Map<String, FieldEntry> fieldsByNumberName;
+
+  // The prototype of the options is always of type T.
+  @SuppressWarnings("unchecked")
+  private PositionalMarshaller(
+      MarshallerOptions options, Map<Descriptor, TypeSpecificMarshaller<?>> marshallers) {
+    super((T) options.getPrototype());
+    Message prototype = options.getPrototype();
+    Descriptor descriptor = prototype.getDescriptorForType();
+    fullName = descriptor.getFullName();
+    ignoringUnknownFields = options.isIgnoringUnknownFields();
+    sortingMapKeys = options.isSortingMapKeys();
+
+    List<FieldDescriptor> sortedFields = CodeGenUtil.sorted(descriptor.getFields());
+    fields = new FieldEntry[sortedFields.size()];
+    int maxPosition = 0;
+    for (int i = 0; i < fields.length; i++) {
+      FieldDescriptor f = sortedFields.get(i);
+      fields[i] = new FieldEntry(i, new ProtoFieldInfo(f, prototype), options, marshallers);
+      if (f.getNumber() <= MAX_POSITIONAL_FIELD_NUMBER) {
+        maxPosition = f.getNumber();
+      }
+    }
+    fieldsByPosition = new FieldEntry[maxPosition];
+    fieldsByNumberName = new HashMap<>();
+    for (FieldEntry field : fields) {
+      if (field.number <= MAX_POSITIONAL_FIELD_NUMBER) {
+        fieldsByPosition[field.number - 1] = field;
+      } else {
+        fieldsByNumberName.put(Integer.toString(field.number), field);
+      }
+    }
+  }
+
+  @Override
+  void writeValue(T message, JsonGenerator gen) throws IOException {
+    gen.writeStartArray();
+    int position = 0;
+    boolean writingByNumber = false;
+    for (FieldEntry field : fields) {
+      Object value = field.accessor.get(message);
+      if (field.skipDefault && field.isDefault(message, value)) {
+        continue;
+      }
+      if (field.number <= MAX_POSITIONAL_FIELD_NUMBER) {
+        for (; position < field.number - 1; position++) {
+          gen.writeNull();
+        }
+        position++;
+      } else {
+        // Fields are in number order, so all positional fields have been written.
+        if (!writingByNumber) {
+          gen.writeStartObject();
+          writingByNumber = true;
+        }
+        gen.writeFieldName(Integer.toString(field.number));
+      }
+      writeField(field, value, gen);
+    }
+    if (writingByNumber) {
+      gen.writeEndObject();
+    }
+    gen.writeEndArray();
+  }
+
+  @Override
+  void mergeValue(JsonParser parser, int currentDepth, Message.Builder builder) throws IOException {
+    ParseSupport.checkRecursionLimit(currentDepth);
+    JsonToken json = parser.currentToken();
+    if (json == null) {
+      // Nested messages will already have current token set, but top-level ones will not.
+      json = parser.nextToken();
+    }
+    if (json != JsonToken.START_ARRAY) {
+      throw new InvalidProtocolBufferException(
+          "Expected start of array, got: " + parser.getText());
+    }
+    int position = 0;
+    while (true) {
+      json = parser.nextToken();
+      if (json == JsonToken.END_ARRAY) {
+        return;
+      }
+      if (json == JsonToken.START_OBJECT) {
+        mergeFieldsByNumber(parser, currentDepth, builder);
+        if (parser.nextToken() != JsonToken.END_ARRAY) {
+          throw new InvalidProtocolBufferException(
+              "Expected end of array after fields by number in message " + fullName);
+        }
+        return;
+      }
+      position++;
+      if (json == JsonToken.VALUE_NULL) {
+        continue;
+      }
+      FieldEntry field =
+          position <= fieldsByPosition.length ? fieldsByPosition[position - 1] : null;
+      if (field == null) {
+        if (!ignoringUnknownFields) {
+          ParseSupport.throwIfUnknownField(Integer.toString(position), fullName);
+        }
+        parser.skipChildren();
+        continue;
+      }
+      mergeField(field, parser, currentDepth, builder);
+    }
+  }
+
+  private void mergeFieldsByNumber(JsonParser parser, int currentDepth, Message.Builder builder)
+      throws IOException {
+    while (!ParseSupport.checkObjectEnd(parser.nextValue())) {
+      String number = parser.currentName();
+      FieldEntry field = fieldsByNumberName.get(number);
+      if (field == null) {
+        if (!ignoringUnknownFields) {
+          ParseSupport.throwIfUnknownField(number, fullName);
+        }
+        parser.skipChildren();
+        continue;
+      }
+      if (ParseSupport.checkNull(parser)) {
+        continue;
+      }
+      mergeField(field, parser, currentDepth, builder);
+    }
+  }
+
+  private void writeField(FieldEntry field, Object value, JsonGenerator gen) throws IOException {
+    FieldDescriptor.Type mapKeyType = field.mapKeyType;
+    if (mapKeyType != null) {
+      gen.writeStartArray();
+      Iterator<? extends Entry<?, ?>> entries =
+          SerializeSupport.mapIterator(
+              (Map<?, ?>) value, sortingMapKeys, mapKeyType == FieldDescriptor.Type.STRING);
+      while (entries.hasNext()) {
+        Entry<?, ?> entry = entries.next();
+        gen.writeStartArray();
+        InterpretedMarshaller.writeScalar(mapKeyType, entry.getKey(), gen);
+        writeSingle(field, entry.getValue(), gen);
+        gen.writeEndArray();
+      }
+      gen.writeEndArray();
+    } else if (field.repeated) {
+      List<?> values = (List<?>) value;
+      int numElements = values.size();
+      gen.writeStartArray();
+      for (int i = 0; i < numElements; i++) {
+        writeSingle(field, values.get(i), gen);
+      }
+      gen.writeEndArray();
+    } else {
+      writeSingle(field, value, gen);
+    }
+  }
+
+  private static void writeSingle(FieldEntry field, Object value, JsonGenerator gen)
+      throws IOException {
+    switch (field.valueType) {
+      case ENUM:
+        SerializeSupport.printSignedInt32((int) value, gen);
+        return;
+      case MESSAGE:
+      case GROUP:
+        SerializeSupport.printMessage((Message) value, gen, field.nestedMarshaller());
+        return;
+      default:
+        InterpretedMarshaller.writeScalar(field.valueType, value, gen);
+    }
+  }
+
+  private void mergeField(
+      FieldEntry field, JsonParser parser, int currentDepth, Message.Builder builder)
+      throws IOException {
+    if (field.inOneof) {
+      field.accessor.throwIfOneofAlreadyWritten(parser, builder, true);
+    }
+    FieldDescriptor.Type mapKeyType = field.mapKeyType;
+    if (mapKeyType != null) {
+      mergeMap(field, mapKeyType, parser, currentDepth, builder);
+    } else if (field.repeated) {
+      mergeRepeated(field, parser, currentDepth, builder);
+    } else {
+      Object value = readSingle(field, parser, currentDepth);
+      if (field.valueType == FieldDescriptor.Type.ENUM) {
+        // For non-repeated enums, we treat unknown as the default value.
+        value = ParseSupport.mapUnknownEnumValue((int) value);
+      }
+      field.accessor.set(builder, value);
+    }
+  }
+
+  private void mergeRepeated(
+      FieldEntry field, JsonParser parser, int currentDepth, Message.Builder builder)
+      throws IOException {
+    ParseSupport.parseArrayStart(parser);
+    while (true) {
+      ParseSupport.throwIfRepeatedValueNull(parser);
+      if (ParseSupport.checkArrayEnd(parser)) {
+        return;
+      }
+      Object value = readSingle(field, parser, currentDepth);
+      // Unknown enum values are skipped.
+      if (field.valueType != FieldDescriptor.Type.ENUM || (int) value != -1) {
+        field.accessor.set(builder, value);
+      }
+      parser.nextToken();
+    }
+  }
+
+  private void mergeMap(
+      FieldEntry field,
+      FieldDescriptor.Type keyType,
+      JsonParser parser,
+      int currentDepth,
+      Message.Builder builder)
+      throws IOException {
+    ParseSupport.parseArrayStart(parser);
+    while (!ParseSupport.checkArrayEnd(parser)) {
+      ParseSupport.parseArrayStart(parser);
+      Object key = InterpretedMarshaller.readScalar(keyType, parser);
+      parser.nextToken();
+      Object value = readSingle(field, parser, currentDepth);
+      if (parser.nextToken() != JsonToken.END_ARRAY) {
+        throw new InvalidProtocolBufferException(
+            "Expected map entry of [key, value] for field " + field.fullName);
+      }
+      // Unknown enum values and nulls are skipped.
+      if (field.valueType != FieldDescriptor.Type.ENUM || (int) value != -1) {
+        field.accessor.put(builder, key, value);
+      }
+      parser.nextToken();
+    }
+  }
+
+  private Object readSingle(FieldEntry field, JsonParser parser, int currentDepth)
+      throws IOException {
+    switch (field.valueType) {
+      case ENUM:
+        return ParseSupport.parseEnum(
+            parser, requireNonNull(field.enumType), ignoringUnknownFields);
+      case MESSAGE:
+      case GROUP:
+        return ParseSupport.parseMessage(parser, field.nestedMarshaller(), currentDepth);
+      default:
+        return InterpretedMarshaller.readScalar(field.valueType, parser);
+    }
+  }
+}
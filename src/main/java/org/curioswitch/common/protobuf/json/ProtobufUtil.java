@@ -44,16 +44,12 @@ import com.google.protobuf.FieldMask;
 import com.google.protobuf.Timestamp;
 import java.lang.reflect.Method;
 import java.text.ParseException;
-import java.text.SimpleDateFormat;
-import java.util.Date;
-import java.util.GregorianCalendar;
+import java.time.DateTimeException;
+import java.time.LocalDate;
 import java.util.Locale;
-import java.util.TimeZone;
 import java.util.concurrent.TimeUnit;
 
 /** Utilities extracted from protobuf-java-util module. */
-// TODO(chokoswitch): Switch to java.time
-@SuppressWarnings("JavaUtilDate")
 final class ProtobufUtil {
 
   // Visible for testing
@@ -81,22 +77,11 @@ final class ProtobufUtil {
   private static final long NANOS_PER_MILLISECOND = TimeUnit.MILLISECONDS.toNanos(1);
   private static final long NANOS_PER_MICROSECOND = TimeUnit.MICROSECONDS.toNanos(1);
 
-  private static final long MILLIS_PER_SECOND = TimeUnit.SECONDS.toMillis(1);
-
   private static final String FIELD_PATH_SEPARATOR = ",";
 
-  private static final ThreadLocal<SimpleDateFormat> timestampFormat =
-      ThreadLocal.withInitial(ProtobufUtil::createTimestampFormat);
-
-  private static SimpleDateFormat createTimestampFormat() {
-    SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss", Locale.ENGLISH);
-    GregorianCalendar calendar = new GregorianCalendar(TimeZone.getTimeZone("UTC"));
-    // We use Proleptic Gregorian Calendar (i.e., Gregorian calendar extends
-    // backwards to year one) for timestamp formatting.
-    calendar.setGregorianChange(new Date(Long.MIN_VALUE));
-    sdf.setCalendar(calendar);
-    return sdf;
-  }
+  private static final long SECONDS_PER_DAY = TimeUnit.DAYS.toSeconds(1);
+
+  private static final char[] DATE_TIME_SEPARATORS = {'-', '-', 'T', ':', ':'};
 
   static String formatTimestamp(Timestamp timestamp) {
     checkValid(timestamp);
@@ -105,9 +90,21 @@ final class ProtobufUtil {
     int nanos = timestamp.getNanos();
 
     StringBuilder result = new StringBuilder();
-    // Format the seconds part.
-    Date date = new Date(seconds * MILLIS_PER_SECOND);
-    result.append(timestampFormat.get().format(date));
+    // Format the seconds part. java.time uses the proleptic Gregorian calendar (i.e., Gregorian
+    // calendar extends backwards to year one), which is what we need for timestamps.
+    LocalDate date = LocalDate.ofEpochDay(Math.floorDiv(seconds, SECONDS_PER_DAY));
+    int secondOfDay = (int) Math.floorMod(seconds, SECONDS_PER_DAY);
+    appendPadded(result, date.getYear(), 4);
+    result.append('-');
+    appendPadded(result, date.getMonthValue(), 2);
+    result.append('-');
+    appendPadded(result, date.getDayOfMonth(), 2);
+    result.append('T');
+    appendPadded(result, secondOfDay / 3600, 2);
+    result.append(':');
+    appendPadded(result, secondOfDay / 60 % 60, 2);
+    result.append(':');
+    appendPadded(result, secondOfDay % 60, 2);
     // Format the nanos part.
     if (nanos != 0) {
       result.append(".");
@@ -141,8 +138,7 @@ final class ProtobufUtil {
       secondValue = timeValue.substring(0, pointPosition);
       nanoValue = timeValue.substring(pointPosition + 1);
     }
-    Date date = timestampFormat.get().parse(secondValue);
-    long seconds = date.getTime() / MILLIS_PER_SECOND;
+    long seconds = parseDateTimeSeconds(secondValue);
     int nanos = nanoValue.isEmpty() ? 0 : parseNanos(nanoValue);
     // Parse timezone offsets.
     if (value.charAt(timezoneOffsetPosition) == 'Z') {
@@ -169,6 +165,66 @@ final class ProtobufUtil {
     }
   }
 
+  /**
+   * Parses a date and time in the format {@code yyyy-MM-dd'T'HH:mm:ss} in UTC into seconds since
+   * the epoch. Like {@link java.text.SimpleDateFormat}, which was used previously, out of range
+   * values for a field are leniently rolled over into the next field.
+   */
+  private static long parseDateTimeSeconds(String value) throws ParseException {
+    int[] fields = new int[DATE_TIME_SEPARATORS.length + 1];
+    int pos = 0;
+    for (int i = 0; i < fields.length; i++) {
+      int start = pos;
+      int field = 0;
+      while (pos < value.length() && pos - start < 9) {
+        char c = value.charAt(pos);
+        if (c < '0' || c > '9') {
+          break;
+        }
+        field = field * 10 + (c - '0');
+        pos++;
+      }
+      if (pos == start) {
+        throw invalidTimestamp(value, pos);
+      }
+      fields[i] = field;
+      if (i < DATE_TIME_SEPARATORS.length) {
+        if (pos == value.length() || value.charAt(pos) != DATE_TIME_SEPARATORS[i]) {
+          throw invalidTimestamp(value, pos);
+        }
+        pos++;
+      }
+    }
+    if (pos != value.length()) {
+      throw invalidTimestamp(value, pos);
+    }
+    long epochDay;
+    try {
+      epochDay =
+          LocalDate.of(fields[0], 1, 1)
+              .plusMonths(fields[1] - 1L)
+              .plusDays(fields[2] - 1L)
+              .toEpochDay();
+    } catch (DateTimeException e) {
+      // Rolling over fields went past the supported range of dates.
+      throw invalidTimestamp(value, 0);
+    }
+    return epochDay * SECONDS_PER_DAY + fields[3] * 3600L + fields[4] * 60L + fields[5];
+  }
+
+  private static ParseException invalidTimestamp(String value, int position) {
+    return new ParseException(
+        "Failed to parse timestamp: invalid timestamp \"" + value + "\"", position);
+  }
+
+  private static void appendPadded(StringBuilder sb, int value, int width) {
+    String digits = Integer.toString(value);
+    for (int i = digits.length(); i < width; i++) {
+      sb.append('0');
+    }
+    sb.append(digits);
+  }
+
   static String formatDuration(Duration duration) {
     checkValid(duration);
 
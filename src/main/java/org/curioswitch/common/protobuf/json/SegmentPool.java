@@ -0,0 +1,53 @@
+/*
+ * Copyright (c) Choko (choko@curioswitch.org)
+ * SPDX-License-Identifier: MIT
+ */
+
+package org.curioswitch.common.protobuf.json;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A bounded, lock-free pool of fixed-size byte segments. Segments are kept in a small array of
+ * slots, acquiring takes any filled slot and releasing fills any empty one, dropping the segment if
+ * the pool is full. Threads start scanning from different slots to reduce contention.
+ */
+final class SegmentPool {
+
+  static final int SEGMENT_SIZE = 16 * 1024;
+
+  private static final int NUM_SLOTS = 64;
+
+  private final AtomicReferenceArray<byte[]> slots = new AtomicReferenceArray<>(NUM_SLOTS);
+
+  /** Returns a segment of {@link #SEGMENT_SIZE} bytes, reusing a pooled one if available. */
+  byte[] acquire() {
+    int start = startSlot();
+    for (int i = 0; i < NUM_SLOTS; i++) {
+      int slot = (start + i) & (NUM_SLOTS - 1);
+      byte[] segment = slots.get(slot);
+      if (segment != null && slots.compareAndSet(slot, segment, null)) {
+        return segment;
+      }
+    }
+    return new byte[SEGMENT_SIZE];
+  }
+
+  /** Returns a segment acquired from this pool to it. */
+  void release(byte[] segment) {
+    int start = startSlot();
+    for (int i = 0; i < NUM_SLOTS; i++) {
+      int slot = (start + i) & (NUM_SLOTS - 1);
+      if (slots.get(slot) == null && slots.compareAndSet(slot, null, segment)) {
+        return;
+      }
+    }
+    // Pool is full, let the segment be garbage collected.
+  }
+
+  private static int startSlot() {
+    // Spread the hash bits since thread IDs are sequential.
+    long id = Thread.currentThread().getId();
+    return (int) (id * 0x9E3779B97F4A7C15L >>> 58);
+  }
+}
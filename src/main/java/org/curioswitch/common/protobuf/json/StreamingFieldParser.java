@@ -0,0 +1,76 @@
+/*
+ * Copyright (c) Choko (choko@curioswitch.org)
+ * SPDX-License-Identifier: MIT
+ */
+
+package org.curioswitch.common.protobuf.json;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonStreamContext;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.util.JsonParserDelegate;
+import com.google.protobuf.Descriptors.FieldDescriptor;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.Message;
+import java.io.IOException;
+import java.util.function.Consumer;
+import javax.annotation.Nullable;
+
+/**
+ * A {@link JsonParser} that hands elements of one repeated message field of the top-level object to
+ * a {@link Consumer} as soon as each is parsed, instead of returning them to the generated parsing
+ * code to be added to the builder. The generated code only ever advances between fields with {@link
+ * JsonParser#nextValue()}, so when it would land on the streamed field we drain the array ourselves
+ * and continue with the next field, making the field invisible to the builder.
+ */
+final class StreamingFieldParser<T extends Message> extends JsonParserDelegate {
+
+  private final String jsonName;
+  private final String protoName;
+  private final String fullName;
+  private final TypeSpecificMarshaller<T> elementMarshaller;
+  private final Consumer<? super T> elementConsumer;
+
+  private boolean streamed;
+
+  StreamingFieldParser(
+      JsonParser delegate,
+      FieldDescriptor field,
+      TypeSpecificMarshaller<T> elementMarshaller,
+      Consumer<? super T> elementConsumer) {
+    super(delegate);
+    jsonName = field.getJsonName();
+    protoName = field.getName();
+    fullName = field.getFullName();
+    this.elementMarshaller = elementMarshaller;
+    this.elementConsumer = elementConsumer;
+  }
+
+  @Override
+  @Nullable
+  public JsonToken nextValue() throws IOException {
+    JsonToken token = delegate.nextValue();
+    while (token == JsonToken.START_ARRAY && isStreamedField()) {
+      if (streamed) {
+        throw new InvalidProtocolBufferException("Field " + fullName + " has already been set.");
+      }
+      streamed = true;
+      while (delegate.nextToken() != JsonToken.END_ARRAY) {
+        ParseSupport.throwIfRepeatedValueNull(delegate);
+        elementConsumer.accept(ParseSupport.parseMessage(delegate, elementMarshaller, 0));
+      }
+      token = delegate.nextValue();
+    }
+    return token;
+  }
+
+  private boolean isStreamedField() {
+    // The array's parent is the object containing the field, which must be the top-level one.
+    JsonStreamContext object = delegate.getParsingContext().getParent();
+    if (object == null || object.getParent() == null || !object.getParent().inRoot()) {
+      return false;
+    }
+    String name = object.getCurrentName();
+    return jsonName.equals(name) || protoName.equals(name);
+  }
+}
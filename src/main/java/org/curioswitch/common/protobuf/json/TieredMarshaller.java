@@ -0,0 +1,219 @@
+/*
+ * Copyright (c) Choko (choko@curioswitch.org)
+ * SPDX-License-Identifier: MIT
+ */
+
+package org.curioswitch.common.protobuf.json;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.Descriptors.Descriptor;
+import com.google.protobuf.Message;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.Nullable;
+
+/**
+ * A {@link TypeSpecificMarshaller} which marshals its type with an {@link InterpretedMarshaller}
+ * until it has been used a number of times, and then generates the marshaller for the type in the
+ * background and delegates to it once it's ready. Used when a {@link MessageMarshaller} is built
+ * with {@link MessageMarshaller.Builder#generationThreshold(int)}, in which case the registry and
+ * the nested marshaller fields of generated marshallers all refer to {@link TieredMarshaller}s, so
+ * switching the delegate switches all uses of the type at once.
+ *
+ * <p>Uses are counted without synchronization, so concurrent uses may be dropped from the count,
+ * which only delays generation slightly. If generation fails, the failure is logged and the type
+ * keeps being interpreted.
+ */
+final class TieredMarshaller<T extends Message> extends TypeSpecificMarshaller<T> {
+
+  private static final Logger logger = Logger.getLogger(TieredMarshaller.class.getName());
+
+  /**
+   * Adds a {@link TieredMarshaller} for the type of {@code options} and all message types
+   * reachable from it to {@code marshallers}, skipping types that are already present. No code is
+   * generated and interpreters are only created on first use.
+   */
+  static void addTiered(
+      MarshallerOptions options,
+      Map<Descriptor, TypeSpecificMarshaller<?>> marshallers,
+      GeneratedClassLoader classLoader,
+      int generationThreshold,
+      Executor generationExecutor) {
+    Descriptor descriptor = options.getPrototype().getDescriptorForType();
+    if (marshallers.containsKey(descriptor)) {
+      return;
+    }
+    marshallers.put(
+        descriptor,
+        new TieredMarshaller<>(
+            options, marshallers, classLoader, generationThreshold, generationExecutor));
+    for (Message nestedPrototype :
+        TypeSpecificMarshaller.nestedMessagePrototypes(options.getPrototype())) {
+      addTiered(
+          options.forPrototype(nestedPrototype),
+          marshallers,
+          classLoader,
+          generationThreshold,
+          generationExecutor);
+    }
+  }
+
+  private final MarshallerOptions options;
+  private final Map<Descriptor, TypeSpecificMarshaller<?>> marshallers;
+  private final GeneratedClassLoader classLoader;
+  private final int generationThreshold;
+  private final Executor generationExecutor;
+
+  // The interpreter until the generated marshaller is ready, null before first use.
+  private final AtomicReference<TypeSpecificMarshaller<T>> delegate = new AtomicReference<>();
+  private final AtomicBoolean generationStarted = new AtomicBoolean();
+  @Nullable private volatile CompletableFuture<Void> generation;
+  @Nullable private volatile Throwable generationFailure;
+
+  private int uses;
+
+  // The prototype of the options is always of type T.
+  @SuppressWarnings("unchecked")
+  private TieredMarshaller(
+      MarshallerOptions options,
+      Map<Descriptor, TypeSpecificMarshaller<?>> marshallers,
+      GeneratedClassLoader classLoader,
+      int generationThreshold,
+      Executor generationExecutor) {
+    super((T) options.getPrototype());
+    this.options = options;
+    this.marshallers = marshallers;
+    this.classLoader = classLoader;
+    this.generationThreshold = generationThreshold;
+    this.generationExecutor = generationExecutor;
+  }
+
+  /** Returns whether the marshaller in use is generated rather than interpreted. */
+  boolean isGenerated() {
+    TypeSpecificMarshaller<T> current = delegate.get();
+    return current != null && !(current instanceof InterpretedMarshaller);
+  }
+
+  @Override
+  TypeSpecificMarshaller<T> resolve() {
+    if (!generationStarted.get() && ++uses >= generationThreshold) {
+      startGeneration();
+    }
+    return current();
+  }
+
+  private TypeSpecificMarshaller<T> current() {
+    TypeSpecificMarshaller<T> current = delegate.get();
+    if (current == null) {
+      // Racing threads may create more than one interpreter, but all of them use the first one.
+      delegate.compareAndSet(null, new InterpretedMarshaller<>(options, marshallers));
+      current = delegate.get();
+    }
+    return current;
+  }
+
+  /** Returns the generation of the marshaller, or {@code null} if it hasn't been started. */
+  @Nullable
+  CompletableFuture<Void> generation() {
+    return generation;
+  }
+
+  /**
+   * Returns the failure generating the marshaller, or {@code null} if generation hasn't failed.
+   * After a failure the type keeps being interpreted.
+   */
+  @Nullable
+  Throwable generationFailure() {
+    return generationFailure;
+  }
+
+  private void startGeneration() {
+    if (!generationStarted.compareAndSet(false, true)) {
+      return;
+    }
+    try {
+      generation =
+          CompletableFuture.runAsync(
+                  () -> {
+                    // Marshaller for options of T is TypeSpecificMarshaller<T>
+                    @SuppressWarnings("unchecked")
+                    TypeSpecificMarshaller<T> generated =
+                        (TypeSpecificMarshaller<T>)
+                            TypeSpecificMarshaller.buildSingle(options, marshallers, classLoader);
+                    delegate.set(generated);
+                  },
+                  generationExecutor)
+              .whenComplete(
+                  (unused, t) -> {
+                    if (t != null) {
+                      reportGenerationFailure(t);
+                    }
+                  });
+    } catch (RejectedExecutionException e) {
+      reportGenerationFailure(e);
+    }
+  }
+
+  private void reportGenerationFailure(Throwable t) {
+    Throwable cause = t;
+    if (t instanceof CompletionException) {
+      Throwable wrapped = t.getCause();
+      if (wrapped != null) {
+        cause = wrapped;
+      }
+    }
+    generationFailure = cause;
+    logger.log(
+        Level.WARNING,
+        "Could not generate marshaller for "
+            + getDescriptorForMarshalledType().getFullName()
+            + ", it will keep being interpreted.",
+        cause);
+  }
+
+  @Override
+  T readValue(JsonParser parser, int currentDepth) throws IOException {
+    return resolve().readValue(parser, currentDepth);
+  }
+
+  @Override
+  void mergeValue(JsonParser parser, int currentDepth, Message.Builder builder) throws IOException {
+    resolve().mergeValue(parser, currentDepth, builder);
+  }
+
+  @Override
+  void writeValue(T message, JsonGenerator gen) throws IOException {
+    resolve().writeValue(message, gen);
+  }
+
+  @Override
+  void writeValue(ByteString encodedMessage, JsonGenerator gen) throws IOException {
+    resolve().writeValue(encodedMessage, gen);
+  }
+
+  @Override
+  void doWrite(ByteString encodedMessage, JsonGenerator gen) throws IOException {
+    resolve().doWrite(encodedMessage, gen);
+  }
+
+  @Override
+  protected void doWrite(T message, JsonGenerator gen) throws IOException {
+    resolve().doWrite(message, gen);
+  }
+
+  @Override
+  protected void doMerge(JsonParser parser, int currentDepth, Message.Builder messageBuilder)
+      throws IOException {
+    resolve().doMerge(parser, currentDepth, messageBuilder);
+  }
+}
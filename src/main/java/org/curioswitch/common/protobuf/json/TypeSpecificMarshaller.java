@@ -13,23 +13,32 @@ import com.google.protobuf.ByteString;
 import com.google.protobuf.Descriptors.Descriptor;
 import com.google.protobuf.Descriptors.FieldDescriptor;
 import com.google.protobuf.Descriptors.FieldDescriptor.JavaType;
+import com.google.protobuf.DynamicMessage;
 import com.google.protobuf.InvalidProtocolBufferException;
 import com.google.protobuf.Message;
 import com.google.protobuf.Parser;
 import java.io.IOException;
-import java.lang.reflect.Field;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Modifier;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Deque;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import javax.annotation.Nullable;
 import net.bytebuddy.ByteBuddy;
+import net.bytebuddy.ClassFileVersion;
 import net.bytebuddy.asm.AsmVisitorWrapper.ForDeclaredMethods;
 import net.bytebuddy.description.type.TypeDefinition;
 import net.bytebuddy.description.type.TypeDescription;
 import net.bytebuddy.dynamic.DynamicType;
 import net.bytebuddy.jar.asm.ClassWriter;
+import org.curioswitch.common.protobuf.json.MarshallerClassFileCache.CachedClass;
 
 /**
  * Abstract class for protobuf marshallers. Subclasses implement serialization and parsing logic
@@ -124,6 +133,14 @@ public abstract class TypeSpecificMarshaller<T extends Message> {
     throw new UnsupportedOperationException();
   }
 
+  /**
+   * Returns the marshaller that does the actual work. This is the marshaller itself except for a
+   * {@link LazyMarshaller}, which resolves to its generated marshaller.
+   */
+  TypeSpecificMarshaller<T> resolve() {
+    return this;
+  }
+
   Descriptor getDescriptorForMarshalledType() {
     return prototype.getDescriptorForType();
   }
@@ -132,45 +149,240 @@ public abstract class TypeSpecificMarshaller<T extends Message> {
     return prototype;
   }
 
-  static void buildAndAdd(
-      MarshallerOptions options, Map<Descriptor, TypeSpecificMarshaller<?>> builtMarshallers) {
-    if (builtMarshallers.containsKey(options.getPrototype().getDescriptorForType())) {
-      return;
+  /**
+   * Builds marshallers for the types of {@code options} and all message types reachable from them
+   * and adds them to {@code builtMarshallers}, skipping types that are already present. This is
+   * done in phases: first all types that need a marshaller are collected, then their marshallers
+   * are generated on {@code executor}, in parallel if it has multiple threads since they don't
+   * depend on each other, and finally the nested marshaller fields of the new marshallers are wired
+   * in a single pass. All generated classes are defined in one shared {@link GeneratedClassLoader}.
+   */
+  static void buildAllAndAdd(
+      List<MarshallerOptions> options,
+      Map<Descriptor, TypeSpecificMarshaller<?>> builtMarshallers,
+      Executor executor) {
+    buildAllAndAdd(options, builtMarshallers, executor, MARSHALLER_CACHE);
+  }
+
+  // Visible for testing
+  static void buildAllAndAdd(
+      List<MarshallerOptions> options,
+      Map<Descriptor, TypeSpecificMarshaller<?>> builtMarshallers,
+      Executor executor,
+      MarshallerCache cache) {
+    Map<Descriptor, MarshallerOptions> toBuild = new LinkedHashMap<>();
+    Map<Descriptor, List<Message>> nestedPrototypesByType = new HashMap<>();
+    Deque<MarshallerOptions> pending = new ArrayDeque<>(options);
+    while (!pending.isEmpty()) {
+      MarshallerOptions typeOptions = pending.removeFirst();
+      Descriptor descriptor = typeOptions.getPrototype().getDescriptorForType();
+      if (builtMarshallers.containsKey(descriptor) || toBuild.containsKey(descriptor)) {
+        continue;
+      }
+      toBuild.put(descriptor, typeOptions);
+      List<Message> nestedMessagePrototypes = nestedMessagePrototypes(typeOptions.getPrototype());
+      nestedPrototypesByType.put(descriptor, nestedMessagePrototypes);
+      for (Message nestedPrototype : nestedMessagePrototypes) {
+        pending.addLast(typeOptions.forPrototype(nestedPrototype));
+      }
+    }
+
+    GeneratedClassLoader classLoader = newClassLoader();
+    Map<Descriptor, CompletableFuture<TypeSpecificMarshaller<?>>> generated =
+        new LinkedHashMap<>();
+    for (Map.Entry<Descriptor, MarshallerOptions> entry : toBuild.entrySet()) {
+      MarshallerOptions typeOptions = entry.getValue();
+      List<Message> nestedMessagePrototypes = nestedPrototypesByType.get(entry.getKey());
+      generated.put(
+          entry.getKey(),
+          CompletableFuture.supplyAsync(
+              () ->
+                  cache.getOrCreate(
+                      typeOptions,
+                      () ->
+                          findPrecompiledOrGenerate(
+                              typeOptions, nestedMessagePrototypes, classLoader)),
+              executor));
     }
-    buildOrFindMarshaller(options, builtMarshallers);
-    Map<String, TypeSpecificMarshaller<?>> builtMarshallersByFieldName = new HashMap<>();
-    for (Map.Entry<Descriptor, TypeSpecificMarshaller<?>> entry : builtMarshallers.entrySet()) {
-      builtMarshallersByFieldName.put(
-          CodeGenUtil.fieldNameForNestedMarshaller(entry.getKey()), entry.getValue());
+    for (Map.Entry<Descriptor, CompletableFuture<TypeSpecificMarshaller<?>>> entry :
+        generated.entrySet()) {
+      builtMarshallers.put(entry.getKey(), MarshallerCache.join(entry.getValue()));
     }
+
     // Wire up nested serializers.
-    for (TypeSpecificMarshaller<?> m : builtMarshallers.values()) {
-      for (Field field : m.getClass().getDeclaredFields()) {
-        if (field.getName().startsWith("MARSHALLER_")) {
-          try {
-            TypeSpecificMarshaller<?> nested = builtMarshallersByFieldName.get(field.getName());
-            if (nested == null) {
-              throw new IllegalStateException(
-                  "nested marshaller could not be found for field: + field.getName()");
-            }
-            field.set(m, nested);
-          } catch (IllegalAccessException e) {
-            throw new IllegalStateException(
-                "Could not set marshaller field, which we know is accessible.", e);
-          }
+    for (Descriptor descriptor : toBuild.keySet()) {
+      TypeSpecificMarshaller<?> marshaller = builtMarshallers.get(descriptor);
+      for (Message nestedPrototype : nestedPrototypesByType.get(descriptor)) {
+        Descriptor nestedDescriptor = nestedPrototype.getDescriptorForType();
+        setNestedMarshaller(
+            marshaller,
+            CodeGenUtil.fieldNameForNestedMarshaller(nestedDescriptor),
+            builtMarshallers.get(nestedDescriptor));
+      }
+    }
+  }
+
+  /**
+   * Generates the marshaller for the type of {@code options} in {@code classLoader}, with its
+   * nested marshallers wired to the ones in {@code marshallers}, which must contain all of them.
+   * Used for lazy and tiered generation, where {@code marshallers} contains the {@link
+   * LazyMarshaller}s or {@link TieredMarshaller}s of a single {@link MessageMarshaller}. Since
+   * nested marshallers are wired into static fields, the class is never shared through the
+   * marshaller cache or loaded from precompiled marshallers, which would rewire the nested
+   * marshallers of other {@link MessageMarshaller}s using the same class.
+   */
+  static TypeSpecificMarshaller<?> buildSingle(
+      MarshallerOptions options,
+      Map<Descriptor, TypeSpecificMarshaller<?>> marshallers,
+      GeneratedClassLoader classLoader) {
+    List<Message> nestedMessagePrototypes = nestedMessagePrototypes(options.getPrototype());
+    TypeSpecificMarshaller<?> marshaller =
+        generateMarshaller(options, nestedMessagePrototypes, classLoader);
+    for (Message nestedPrototype : nestedMessagePrototypes) {
+      Descriptor nestedDescriptor = nestedPrototype.getDescriptorForType();
+      setNestedMarshaller(
+          marshaller,
+          CodeGenUtil.fieldNameForNestedMarshaller(nestedDescriptor),
+          marshallers.get(nestedDescriptor));
+    }
+    return marshaller;
+  }
+
+  /**
+   * Returns the prototypes of the message types of the fields of {@code prototype}, including map
+   * values, in field order without duplicates.
+   */
+  static List<Message> nestedMessagePrototypes(Message prototype) {
+    List<Message> nestedMessagePrototypes = new ArrayList<>();
+    for (FieldDescriptor f : prototype.getDescriptorForType().getFields()) {
+      ProtoFieldInfo field = new ProtoFieldInfo(f, prototype);
+      if (field.valueJavaType() != JavaType.MESSAGE) {
+        continue;
+      }
+      Message nestedPrototype = field.valuePrototype();
+      if (!nestedMessagePrototypes.contains(nestedPrototype)) {
+        nestedMessagePrototypes.add(nestedPrototype);
+      }
+    }
+    return nestedMessagePrototypes;
+  }
+
+  private static void setNestedMarshaller(
+      TypeSpecificMarshaller<?> marshaller,
+      String fieldName,
+      @Nullable TypeSpecificMarshaller<?> nested) {
+    if (nested == null) {
+      throw new IllegalStateException(
+          "nested marshaller could not be found for field: " + fieldName);
+    }
+    try {
+      marshaller.getClass().getField(fieldName).set(null, nested);
+    } catch (NoSuchFieldException | IllegalAccessException e) {
+      throw new IllegalStateException(
+          "Could not set marshaller field, which we know is accessible.", e);
+    }
+  }
+
+  /** Returns a new {@link GeneratedClassLoader} for defining generated marshallers. */
+  static GeneratedClassLoader newClassLoader() {
+    return new GeneratedClassLoader(TypeSpecificMarshaller.class.getClassLoader());
+  }
+
+  private static TypeSpecificMarshaller<?> findPrecompiledOrGenerate(
+      MarshallerOptions options,
+      List<Message> nestedMessagePrototypes,
+      GeneratedClassLoader classLoader) {
+    if (options.isUsingPrecompiledMarshallers()) {
+      ClassLoader messageClassLoader = options.getPrototype().getClass().getClassLoader();
+      if (messageClassLoader != null) {
+        TypeSpecificMarshaller<?> precompiled = findPrecompiled(options, messageClassLoader);
+        if (precompiled != null) {
+          return precompiled;
         }
       }
     }
+    return generateMarshaller(options, nestedMessagePrototypes, classLoader);
+  }
+
+  /**
+   * Returns the precompiled marshaller for the type of {@code options} if one has been written by
+   * {@link MarshallerPrecompiler} and can be loaded and linked from {@code classLoader}, or {@code
+   * null} otherwise.
+   */
+  @Nullable
+  static TypeSpecificMarshaller<?> findPrecompiled(
+      MarshallerOptions options, ClassLoader classLoader) {
+    // Precompiled marshallers are compiled against the message class, but DynamicMessage is the
+    // class of messages of any type.
+    if (options.getPrototype() instanceof DynamicMessage) {
+      return null;
+    }
+    try {
+      Class<?> precompiledClass =
+          Class.forName(CodeGenUtil.precompiledClassName(options), true, classLoader);
+      return newInstance(precompiledClass, options.getPrototype());
+    } catch (ClassNotFoundException | LinkageError e) {
+      // Not precompiled, or precompiled against different versions of the message class or this
+      // library, so the marshaller will be generated instead.
+      return null;
+    }
+  }
+
+  /**
+   * Returns the class of the marshaller for the type of {@code options} to write to a class file,
+   * named by {@link CodeGenUtil#precompiledClassName(MarshallerOptions)}. The class file targets
+   * Java 8, the minimum version supported by this library, regardless of the running version.
+   */
+  static DynamicType.Unloaded<?> makePrecompiledMarshaller(MarshallerOptions options) {
+    return defineMarshaller(
+            new ByteBuddy(ClassFileVersion.JAVA_V8),
+            options,
+            nestedMessagePrototypes(options.getPrototype()))
+        .name(CodeGenUtil.precompiledClassName(options))
+        .make();
   }
 
-  private static <T extends Message> void buildOrFindMarshaller(
+  private static TypeSpecificMarshaller<?> generateMarshaller(
       MarshallerOptions options,
-      Map<Descriptor, TypeSpecificMarshaller<?>> alreadyBuiltMarshallers) {
-    Descriptor descriptor = options.getPrototype().getDescriptorForType();
-    if (alreadyBuiltMarshallers.containsKey(descriptor)) {
-      return;
+      List<Message> nestedMessagePrototypes,
+      GeneratedClassLoader classLoader) {
+    Path classCacheDirectory = options.getClassCacheDirectory();
+    String cacheFileName = null;
+    if (classCacheDirectory != null) {
+      cacheFileName = MarshallerClassFileCache.fileName(options);
+      CachedClass cached = MarshallerClassFileCache.read(classCacheDirectory, cacheFileName);
+      if (cached != null) {
+        try {
+          return newInstance(
+              classLoader.define(cached.getClassName(), cached.getBytes()),
+              options.getPrototype());
+        } catch (LinkageError e) {
+          // The cached class file is corrupt or doesn't match the classes it refers to, generate
+          // it again.
+          MarshallerClassFileCache.delete(classCacheDirectory, cacheFileName);
+        }
+      }
     }
 
+    DynamicType.Unloaded<?> generated =
+        defineMarshaller(new ByteBuddy(), options, nestedMessagePrototypes).make();
+    if (classCacheDirectory != null
+        && cacheFileName != null
+        && generated.getAuxiliaryTypes().isEmpty()) {
+      MarshallerClassFileCache.write(classCacheDirectory, cacheFileName, generated.getBytes());
+    }
+    Class<?> generatedClass =
+        generated.load(classLoader, GeneratedClassLoader.STRATEGY).getLoaded();
+    return newInstance(generatedClass, options.getPrototype());
+  }
+
+  private static <T extends Message>
+      DynamicType.Builder<TypeSpecificMarshaller<T>> defineMarshaller(
+          ByteBuddy byteBuddy,
+          MarshallerOptions options,
+          List<Message> nestedMessagePrototypes) {
+    Descriptor descriptor = options.getPrototype().getDescriptorForType();
+
     TypeDefinition superType =
         TypeDescription.Generic.Builder.parameterizedType(
                 TypeSpecificMarshaller.class, options.getPrototype().getClass())
@@ -181,12 +393,11 @@ public abstract class TypeSpecificMarshaller<T extends Message> {
     @SuppressWarnings("unchecked")
     DynamicType.Builder<TypeSpecificMarshaller<T>> buddy =
         (DynamicType.Builder<TypeSpecificMarshaller<T>>)
-            new ByteBuddy()
+            byteBuddy
                 .subclass(superType)
                 .modifiers(Modifier.PUBLIC | Modifier.FINAL)
                 .visit(new ForDeclaredMethods().writerFlags(ClassWriter.COMPUTE_FRAMES));
 
-    List<Message> nestedMessagePrototypes = new ArrayList<>();
     for (FieldDescriptor f : descriptor.getFields()) {
       ProtoFieldInfo field = new ProtoFieldInfo(f, options.getPrototype());
 
@@ -202,17 +413,9 @@ public abstract class TypeSpecificMarshaller<T extends Message> {
                   new SetSerializedFieldName(
                       fieldName,
                       options.isPreservingProtoFieldNames() ? f.getName() : f.getJsonName()));
-      if (field.valueJavaType() != JavaType.MESSAGE) {
-        continue;
-      }
-      Message nestedPrototype = field.valuePrototype();
-      if (nestedMessagePrototypes.contains(nestedPrototype)) {
-        continue;
-      }
-      // We delay building the nested serializers until after this one in case a descendant
-      // references the current type, allowing us to avoid infinite recursion.
-      nestedMessagePrototypes.add(nestedPrototype);
+    }
 
+    for (Message nestedPrototype : nestedMessagePrototypes) {
       TypeDefinition nestedMarshallerType =
           TypeDescription.Generic.Builder.parameterizedType(
                   TypeSpecificMarshaller.class, nestedPrototype.getClass())
@@ -224,62 +427,46 @@ public abstract class TypeSpecificMarshaller<T extends Message> {
               Modifier.PUBLIC | Modifier.STATIC);
     }
 
-    TypeSpecificMarshaller<?> marshaller;
-    TypeSpecificMarshaller<?> cached = MARSHALLER_CACHE.get(options);
-    if (cached != null) {
-      marshaller = cached;
-    } else {
-      buddy =
-          buddy
-              .defineMethod("doMerge", void.class, Modifier.FINAL | Modifier.PROTECTED)
-              .withParameter(JsonParser.class, "parser")
-              .withParameter(int.class, "currentDepth")
-              .withParameter(Message.Builder.class, "messageBuilder")
-              .throwing(IOException.class)
-              .intercept(new DoParse(options.getPrototype(), options.isIgnoringUnknownFields()))
-              .defineMethod("doWrite", void.class, Modifier.FINAL | Modifier.PROTECTED)
-              .withParameter(options.getPrototype().getClass(), "message")
-              .withParameter(JsonGenerator.class, "gen")
-              .throwing(IOException.class)
-              .intercept(
-                  new DoWrite(
-                      options.getPrototype(),
-                      options.isIncludingDefaultValueFields(),
-                      options.getFieldsToAlwaysOutput(),
-                      options.isPrintingEnumsAsInts(),
-                      options.isSortingMapKeys()));
-      try {
-        marshaller =
-            buddy
-                .make()
-                .load(TypeSpecificMarshaller.class.getClassLoader())
-                .getLoaded()
-                .getConstructor(options.getPrototype().getClass())
-                .newInstance(options.getPrototype());
-        MARSHALLER_CACHE.put(options, marshaller);
-      } catch (InstantiationException
-          | NoSuchMethodException
-          | InvocationTargetException
-          | IllegalAccessException e) {
-        throw new IllegalStateException(
-            "Could not generate marshaller, this is generally a bug in this library. "
-                + "Please file a report at https://github.com/curioswitch/curiostack with this stack "
-                + "trace and an example proto to reproduce.",
-            e);
-      }
-    }
-    alreadyBuiltMarshallers.put(descriptor, marshaller);
-    for (Message nestedPrototype : nestedMessagePrototypes) {
-      buildOrFindMarshaller(
-          new MarshallerOptions(
-              nestedPrototype,
-              options.isIncludingDefaultValueFields(),
-              options.getFieldsToAlwaysOutput(),
-              options.isPreservingProtoFieldNames(),
-              options.isIgnoringUnknownFields(),
-              options.isPrintingEnumsAsInts(),
-              options.isSortingMapKeys()),
-          alreadyBuiltMarshallers);
+    buddy =
+        buddy
+            .defineMethod("doMerge", void.class, Modifier.FINAL | Modifier.PROTECTED)
+            .withParameter(JsonParser.class, "parser")
+            .withParameter(int.class, "currentDepth")
+            .withParameter(Message.Builder.class, "messageBuilder")
+            .throwing(IOException.class)
+            .intercept(new DoParse(options.getPrototype(), options.isIgnoringUnknownFields()))
+            .defineMethod("doWrite", void.class, Modifier.FINAL | Modifier.PROTECTED)
+            .withParameter(options.getPrototype().getClass(), "message")
+            .withParameter(JsonGenerator.class, "gen")
+            .throwing(IOException.class)
+            .intercept(
+                new DoWrite(
+                    options.getPrototype(),
+                    options.isIncludingDefaultValueFields(),
+                    options.getFieldsToAlwaysOutput(),
+                    options.isPrintingEnumsAsInts(),
+                    options.isSortingMapKeys()));
+    return buddy;
+  }
+
+  private static TypeSpecificMarshaller<?> newInstance(
+      Class<?> marshallerClass, Message prototype) {
+    try {
+      return (TypeSpecificMarshaller<?>)
+          marshallerClass.getConstructor(prototype.getClass()).newInstance(prototype);
+    } catch (InstantiationException
+        | NoSuchMethodException
+        | InvocationTargetException
+        | IllegalAccessException e) {
+      throw new IllegalStateException(
+          "Could not generate marshaller, this is generally a bug in this library. "
+              + "Please file a report at https://github.com/curioswitch/curiostack with this stack "
+              + "trace and an example proto to reproduce.",
+          e);
     }
   }
+
+  static MarshallerCacheStats cacheStats() {
+    return MARSHALLER_CACHE.stats();
+  }
 }
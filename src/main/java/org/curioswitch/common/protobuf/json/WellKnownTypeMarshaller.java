@@ -10,6 +10,8 @@ import static java.util.Objects.requireNonNull;
 import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.json.JsonGeneratorImpl;
+import com.fasterxml.jackson.core.util.JsonGeneratorDelegate;
 import com.google.protobuf.Any;
 import com.google.protobuf.BoolValue;
 import com.google.protobuf.BytesValue;
@@ -451,8 +453,9 @@ abstract class WellKnownTypeMarshaller<T extends Message> extends TypeSpecificMa
   static final class AnyMarshaller extends WellKnownTypeMarshaller<Any> {
 
     // As Any needs to be created before other marshallers, but needs the definition of other
-    // marshallers to unpack, this is set lazily.
-    @Nullable private MarshallerRegistry marshallerRegistry;
+    // marshallers to unpack, this is set lazily. It is replaced with a registry containing more
+    // types when a MessageMarshallerHolder registers types at runtime.
+    @Nullable private volatile MarshallerRegistry marshallerRegistry;
 
     AnyMarshaller() {
       super(Any.getDefaultInstance());
@@ -466,6 +469,15 @@ abstract class WellKnownTypeMarshaller<T extends Message> extends TypeSpecificMa
       this.marshallerRegistry = marshallerRegistry;
     }
 
+    /**
+     * Replaces the registry used to resolve types of packed messages. The new registry must contain
+     * all the types of the current one, so readers see either of them without changes in behavior
+     * for types that could already be resolved.
+     */
+    void replaceMarshallerRegistry(MarshallerRegistry marshallerRegistry) {
+      this.marshallerRegistry = requireNonNull(marshallerRegistry, "marshallerRegistry");
+    }
+
     @Override
     public void doMerge(JsonParser parser, int currentDepth, Message.Builder messageBuilder)
         throws IOException {
@@ -513,7 +525,13 @@ abstract class WellKnownTypeMarshaller<T extends Message> extends TypeSpecificMa
       if (message.equals(Any.getDefaultInstance())) {
         // Note: empty Any is not indented the same way as an empty message, this is likely an
         // upstream bug.
-        gen.writeRaw(": {}");
+        if (writesJsonText(gen)) {
+          gen.writeRaw(": {}");
+        } else {
+          // Generators that don't write text, e.g., a TokenBuffer, don't support raw output.
+          gen.writeStartObject();
+          gen.writeEndObject();
+        }
         return;
       }
       gen.writeStartObject();
@@ -529,6 +547,18 @@ abstract class WellKnownTypeMarshaller<T extends Message> extends TypeSpecificMa
       }
       gen.writeEndObject();
     }
+
+    /**
+     * Returns whether {@code gen} writes JSON text, unwrapping delegating generators, as opposed to
+     * tokens or a binary format like Smile.
+     */
+    private static boolean writesJsonText(JsonGenerator gen) {
+      JsonGenerator delegate = gen;
+      while (delegate instanceof JsonGeneratorDelegate) {
+        delegate = ((JsonGeneratorDelegate) delegate).delegate();
+      }
+      return delegate instanceof JsonGeneratorImpl;
+    }
   }
 
   private WellKnownTypeMarshaller(T prototype) {
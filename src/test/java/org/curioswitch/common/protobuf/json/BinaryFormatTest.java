@@ -0,0 +1,106 @@
+/*
+ * Copyright (c) Choko (choko@curioswitch.org)
+ * SPDX-License-Identifier: MIT
+ */
+
+package org.curioswitch.common.protobuf.json;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import com.google.protobuf.Any;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.Message;
+import com.google.protobuf.Timestamp;
+import com.google.protobuf.Value;
+import com.google.protobuf.util.JsonTestProto.TestAllTypes;
+import com.google.protobuf.util.JsonTestProto.TestAny;
+import com.google.protobuf.util.JsonTestProto.TestMap;
+import com.google.protobuf.util.JsonTestProto.TestStruct;
+import com.google.protobuf.util.JsonTestProto.TestTimestamp;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+class BinaryFormatTest {
+
+  private static final Message[] MESSAGES = {
+    JsonTestUtil.testAllTypesAllFields(),
+    TestAllTypes.newBuilder()
+        .setOptionalFloat(Float.NaN)
+        .setOptionalDouble(Double.NEGATIVE_INFINITY)
+        .addRepeatedDouble(Double.MAX_VALUE)
+        .addRepeatedFloat(-Float.MAX_VALUE)
+        .setOptionalBytes(ByteString.copyFrom(new byte[] {0, -1, 2}))
+        .build(),
+    JsonTestUtil.testMapAllTypes(),
+    TestTimestamp.newBuilder()
+        .setTimestampValue(Timestamp.newBuilder().setSeconds(1).setNanos(100))
+        .build(),
+    TestStruct.newBuilder().setValue(Value.newBuilder().setNumberValue(1.5)).build(),
+    TestAny.newBuilder()
+        .setAnyValue(Any.pack(JsonTestUtil.testAllTypesAllFields()))
+        .putAnyMap("empty", Any.getDefaultInstance())
+        .build(),
+  };
+
+  @ParameterizedTest
+  @ValueSource(strings = {"smile", "cbor"})
+  void roundTrip(String format) throws Exception {
+    JsonFactory factory = format.equals("smile") ? new SmileFactory() : new CBORFactory();
+    MessageMarshaller marshaller = builder().jsonFactory(factory).build();
+    MessageMarshaller textMarshaller = builder().omittingInsignificantWhitespace(true).build();
+    for (Message message : MESSAGES) {
+      byte[] encoded = marshaller.writeValueAsBytes(message);
+      Message.Builder builder = message.newBuilderForType();
+      marshaller.mergeValue(encoded, builder);
+      assertThat(builder.build()).isEqualTo(message);
+
+      builder = message.newBuilderForType();
+      ByteBuffer direct = ByteBuffer.allocateDirect(encoded.length);
+      direct.put(encoded).flip();
+      marshaller.mergeValue(direct, builder);
+      assertThat(builder.build()).isEqualTo(message);
+    }
+
+    Message allTypes = JsonTestUtil.testAllTypesAllFields();
+    assertThat(marshaller.writeValueAsBytes(allTypes).length)
+        .isLessThan(textMarshaller.writeValueAsBytes(allTypes).length);
+  }
+
+  @ParameterizedTest
+  @ValueSource(strings = {"smile", "cbor"})
+  void session(String format) throws Exception {
+    JsonFactory factory = format.equals("smile") ? new SmileFactory() : new CBORFactory();
+    MessageMarshaller marshaller = builder().jsonFactory(factory).build();
+    MarshallerSession session = marshaller.newSession();
+    for (Message message : MESSAGES) {
+      byte[] encoded = session.writeValueAsBytes(message);
+      assertThat(encoded).isEqualTo(marshaller.writeValueAsBytes(message));
+      Message.Builder builder = message.newBuilderForType();
+      session.mergeValue(encoded, builder);
+      assertThat(builder.build()).isEqualTo(message);
+    }
+  }
+
+  @ParameterizedTest
+  @ValueSource(strings = {"smile", "cbor"})
+  void warmUp(String format) throws Exception {
+    JsonFactory factory = format.equals("smile") ? new SmileFactory() : new CBORFactory();
+    MessageMarshaller marshaller = builder().jsonFactory(factory).build();
+    // Odd rounds would use Strings for JSON, which binary formats can't write.
+    assertThat(marshaller.warmUp(4, Duration.ofMinutes(1))).isEqualTo(4);
+  }
+
+  private static MessageMarshaller.Builder builder() {
+    return MessageMarshaller.builder()
+        .register(TestAllTypes.getDefaultInstance())
+        .register(TestMap.getDefaultInstance())
+        .register(TestTimestamp.getDefaultInstance())
+        .register(TestStruct.getDefaultInstance())
+        .register(TestAny.getDefaultInstance());
+  }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright (c) Choko (choko@curioswitch.org)
+ * SPDX-License-Identifier: MIT
+ */
+
+package org.curioswitch.common.protobuf.json;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import com.google.protobuf.util.JsonTestProto.TestAllTypes;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import org.junit.jupiter.api.Test;
+
+class ByteBufferTest {
+
+  private static final MessageMarshaller MARSHALLER =
+      MessageMarshaller.builder().register(TestAllTypes.getDefaultInstance()).build();
+
+  private static final TestAllTypes MESSAGE = JsonTestUtil.testAllTypesAllFields();
+
+  @Test
+  void mergeHeapBuffer() throws Exception {
+    byte[] json = MARSHALLER.writeValueAsBytes(MESSAGE);
+    ByteBuffer buffer = ByteBuffer.allocate(json.length + 10);
+    buffer.position(5);
+    buffer.put(json);
+    buffer.flip();
+    buffer.position(5);
+
+    TestAllTypes.Builder builder = TestAllTypes.newBuilder();
+    MARSHALLER.mergeValue(buffer.slice(), builder);
+    assertThat(builder.build()).isEqualTo(MESSAGE);
+
+    builder = TestAllTypes.newBuilder();
+    MARSHALLER.mergeValue(buffer, builder);
+    assertThat(builder.build()).isEqualTo(MESSAGE);
+    assertThat(buffer.position()).isEqualTo(5);
+  }
+
+  @Test
+  void mergeDirectBuffer() throws Exception {
+    byte[] json = MARSHALLER.writeValueAsBytes(MESSAGE);
+    ByteBuffer buffer = ByteBuffer.allocateDirect(json.length);
+    buffer.put(json);
+    buffer.flip();
+
+    TestAllTypes.Builder builder = TestAllTypes.newBuilder();
+    MARSHALLER.mergeValue(buffer, builder);
+    assertThat(builder.build()).isEqualTo(MESSAGE);
+    assertThat(buffer.position()).isZero();
+  }
+
+  @Test
+  void writeHeapAndDirectBuffers() throws Exception {
+    byte[] expected = MARSHALLER.writeValueAsBytes(MESSAGE);
+    for (ByteBuffer buffer :
+        new ByteBuffer[] {ByteBuffer.allocate(10000), ByteBuffer.allocateDirect(10000)}) {
+      buffer.position(3);
+      assertThat(MARSHALLER.writeValue(MESSAGE, buffer)).isEqualTo(expected.length);
+      assertThat(buffer.position()).isEqualTo(3 + expected.length);
+
+      buffer.flip();
+      buffer.position(3);
+      byte[] written = new byte[buffer.remaining()];
+      buffer.get(written);
+      assertThat(written).isEqualTo(expected);
+    }
+  }
+
+  @Test
+  void writeOverflow() {
+    ByteBuffer buffer = ByteBuffer.allocateDirect(10);
+    buffer.position(1);
+    assertThatThrownBy(() -> MARSHALLER.writeValue(MESSAGE, buffer))
+        .isInstanceOf(BufferOverflowException.class);
+    assertThat(buffer.position()).isEqualTo(1);
+  }
+
+  @Test
+  void growableOutputStream() throws Exception {
+    byte[] expected = MARSHALLER.writeValueAsBytes(MESSAGE);
+    ByteBufferOutputStream out = new ByteBufferOutputStream(ByteBuffer.allocateDirect(16));
+    MARSHALLER.writeValue(MESSAGE, out);
+    assertThat(out.bytesWritten()).isEqualTo(expected.length);
+
+    ByteBuffer buffer = out.buffer();
+    assertThat(buffer.isDirect()).isTrue();
+    buffer.flip();
+    byte[] written = new byte[buffer.remaining()];
+    buffer.get(written);
+    assertThat(written).isEqualTo(expected);
+  }
+}
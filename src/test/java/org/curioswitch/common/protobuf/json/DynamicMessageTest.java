@@ -0,0 +1,114 @@
+/*
+ * Copyright (c) Choko (choko@curioswitch.org)
+ * SPDX-License-Identifier: MIT
+ */
+
+package org.curioswitch.common.protobuf.json;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import com.google.protobuf.Descriptors.Descriptor;
+import com.google.protobuf.Descriptors.DescriptorValidationException;
+import com.google.protobuf.Descriptors.FileDescriptor;
+import com.google.protobuf.DynamicMessage;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.Message;
+import com.google.protobuf.util.JsonTestProto;
+import com.google.protobuf.util.JsonTestProto.TestAllTypes;
+import com.google.protobuf.util.JsonTestProto.TestOneof;
+import org.junit.jupiter.api.Test;
+
+class DynamicMessageTest {
+
+  // Built from the proto of the file like a descriptor only known at runtime, so the types are
+  // different from the generated ones.
+  private static final FileDescriptor RUNTIME_FILE = buildRuntimeFile();
+
+  @Test
+  void sameAsGenerated() throws Exception {
+    for (boolean option : new boolean[] {false, true}) {
+      MessageMarshaller.Builder generatedBuilder = MessageMarshaller.builder();
+      MessageMarshaller.Builder dynamicBuilder = MessageMarshaller.builder();
+      for (Message prototype : JsonTestUtil.samplePrototypes()) {
+        generatedBuilder.register(prototype);
+        dynamicBuilder.register(runtimeType(prototype));
+      }
+      MessageMarshaller generated = configure(generatedBuilder, option).build();
+      MessageMarshaller dynamic = configure(dynamicBuilder, option).build();
+      for (Message message : JsonTestUtil.sampleMessages()) {
+        Descriptor type = runtimeType(message);
+        String json = generated.writeValueAsString(message);
+        DynamicMessage dynamicMessage = DynamicMessage.parseFrom(type, message.toByteString());
+        assertThat(dynamic.writeValueAsString(dynamicMessage)).isEqualTo(json);
+
+        DynamicMessage.Builder builder = DynamicMessage.newBuilder(type);
+        dynamic.mergeValue(json, builder);
+        assertThat(message.getParserForType().parseFrom(builder.build().toByteString()))
+            .isEqualTo(message);
+      }
+    }
+  }
+
+  @Test
+  void rejectsSameInputAsGenerated() throws Exception {
+    MessageMarshaller dynamic =
+        MessageMarshaller.builder()
+            .register(runtimeType(TestAllTypes.getDefaultInstance()))
+            .register(runtimeType(TestOneof.getDefaultInstance()))
+            .build();
+    DynamicMessage.Builder allTypes =
+        DynamicMessage.newBuilder(runtimeType(TestAllTypes.getDefaultInstance()));
+    assertThatThrownBy(
+            () -> dynamic.mergeValue("{\"optionalInt32\": 1, \"optional_int32\": 2}", allTypes))
+        .isInstanceOf(InvalidProtocolBufferException.class)
+        .hasMessageContaining("has already been set");
+    assertThatThrownBy(() -> dynamic.mergeValue("{\"unknownField\": 1}", allTypes))
+        .isInstanceOf(InvalidProtocolBufferException.class)
+        .hasMessageContaining("Cannot find field");
+    assertThatThrownBy(
+            () ->
+                dynamic.mergeValue(
+                    "{\"oneofInt32\": 1, \"oneofNestedMessage\": {}}",
+                    DynamicMessage.newBuilder(runtimeType(TestOneof.getDefaultInstance()))))
+        .isInstanceOf(InvalidProtocolBufferException.class)
+        .hasMessageContaining("belonging to the same oneof");
+    assertThatThrownBy(() -> dynamic.mergeValue("{\"repeatedInt32\": [1, null]}", allTypes))
+        .isInstanceOf(InvalidProtocolBufferException.class);
+  }
+
+  @Test
+  void cannotRegisterGeneratedTypeAsDynamic() {
+    assertThatThrownBy(
+            () ->
+                MessageMarshaller.builder()
+                    .register(TestAllTypes.getDefaultInstance())
+                    .register(TestAllTypes.getDescriptor())
+                    .build())
+        .isInstanceOf(IllegalArgumentException.class)
+        .hasMessageContaining("already registered as a generated class");
+  }
+
+  private static MessageMarshaller.Builder configure(
+      MessageMarshaller.Builder builder, boolean option) {
+    return builder
+        .includingDefaultValueFields(option)
+        .preservingProtoFieldNames(option)
+        .printingEnumsAsInts(option)
+        .sortingMapKeys(option);
+  }
+
+  private static Descriptor runtimeType(Message prototype) {
+    return RUNTIME_FILE.findMessageTypeByName(prototype.getDescriptorForType().getName());
+  }
+
+  private static FileDescriptor buildRuntimeFile() {
+    FileDescriptor file = JsonTestProto.getDescriptor();
+    try {
+      return FileDescriptor.buildFrom(
+          file.toProto(), file.getDependencies().toArray(new FileDescriptor[0]));
+    } catch (DescriptorValidationException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+}
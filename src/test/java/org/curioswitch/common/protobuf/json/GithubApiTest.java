@@ -39,4 +39,49 @@ class GithubApiTest {
   void parse() {
     assertThat(SEARCH_RESPONSE).isNotNull();
   }
+
+  @Test
+  void presizedOutput() throws Exception {
+    MessageMarshaller marshaller =
+        MessageMarshaller.builder().register(SearchResponse.getDefaultInstance()).build();
+    assertThat(marshaller.estimatedOutputSize(SEARCH_RESPONSE)).isZero();
+
+    byte[] first = marshaller.writeValueAsBytes(SEARCH_RESPONSE);
+    assertThat(marshaller.estimatedOutputSize(SEARCH_RESPONSE)).isEqualTo(first.length);
+
+    // Later writes use a buffer presized from the estimate.
+    for (int i = 0; i < 3; i++) {
+      assertThat(marshaller.writeValueAsBytes(SEARCH_RESPONSE)).isEqualTo(first);
+    }
+    assertThat(marshaller.estimatedOutputSize(SEARCH_RESPONSE)).isEqualTo(first.length);
+
+    // Only a sample of sizes is recorded, so write many times to move the estimate.
+    SearchResponse small = SearchResponse.newBuilder().setTotalCount(1).build();
+    byte[] smallJson = marshaller.writeValueAsBytes(small);
+    for (int i = 0; i < 1000; i++) {
+      marshaller.writeValueAsBytes(small);
+    }
+    assertThat(marshaller.estimatedOutputSize(SEARCH_RESPONSE))
+        .isLessThan(first.length)
+        .isGreaterThanOrEqualTo(smallJson.length);
+    SearchResponse.Builder builder = SearchResponse.newBuilder();
+    marshaller.mergeValue(marshaller.writeValueAsBytes(small), builder);
+    assertThat(builder.build()).isEqualTo(small);
+  }
+
+  @Test
+  void outputSizeEstimatePerMarshaller() throws Exception {
+    MessageMarshaller compact =
+        MessageMarshaller.builder()
+            .register(SearchResponse.getDefaultInstance())
+            .omittingInsignificantWhitespace(true)
+            .build();
+    MessageMarshaller pretty = compact.toBuilder().omittingInsignificantWhitespace(false).build();
+
+    byte[] compactJson = compact.writeValueAsBytes(SEARCH_RESPONSE);
+    assertThat(pretty.estimatedOutputSize(SEARCH_RESPONSE)).isZero();
+    byte[] prettyJson = pretty.writeValueAsBytes(SEARCH_RESPONSE);
+    assertThat(compact.estimatedOutputSize(SEARCH_RESPONSE)).isEqualTo(compactJson.length);
+    assertThat(pretty.estimatedOutputSize(SEARCH_RESPONSE)).isEqualTo(prettyJson.length);
+  }
 }
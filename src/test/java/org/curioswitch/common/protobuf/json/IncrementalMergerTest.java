@@ -0,0 +1,115 @@
+/*
+ * Copyright (c) Choko (choko@curioswitch.org)
+ * SPDX-License-Identifier: MIT
+ */
+
+package org.curioswitch.common.protobuf.json;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import com.google.common.io.Resources;
+import com.google.protobuf.Int32Value;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.ListValue;
+import com.google.protobuf.Message;
+import com.google.protobuf.Value;
+import com.google.protobuf.util.JsonTestProto.TestAllTypes;
+import com.google.protobuf.util.JsonTestProto.TestStruct;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import org.curioswitch.common.protobuf.json.test.GithubApi.SearchResponse;
+import org.junit.jupiter.api.Test;
+
+class IncrementalMergerTest {
+
+  private static final MessageMarshaller MARSHALLER =
+      MessageMarshaller.builder()
+          .register(TestAllTypes.getDefaultInstance())
+          .register(SearchResponse.getDefaultInstance())
+          .register(TestStruct.getDefaultInstance())
+          .build();
+
+  @Test
+  void allFieldsOneByteAtATime() throws Exception {
+    TestAllTypes message = JsonTestUtil.testAllTypesAllFields();
+    byte[] json = MARSHALLER.writeValueAsBytes(message);
+
+    TestAllTypes.Builder builder = TestAllTypes.newBuilder();
+    feed(builder, json, 1);
+    assertThat(builder.build()).isEqualTo(message);
+  }
+
+  @Test
+  void largeRepeatedField() throws Exception {
+    byte[] json = Resources.toByteArray(Resources.getResource("github_search_response.json"));
+    SearchResponse.Builder expected = SearchResponse.newBuilder();
+    MARSHALLER.mergeValue(json, expected);
+
+    SearchResponse.Builder builder = SearchResponse.newBuilder();
+    feed(builder, json, 100);
+    assertThat(builder.build()).isEqualTo(expected.build());
+  }
+
+  @Test
+  void largeListValueField() throws Exception {
+    // Larger than the threshold for merging segments, which must not split the array of a
+    // singular field.
+    ListValue.Builder list = ListValue.newBuilder();
+    for (int i = 0; i < 2000; i++) {
+      list.addValues(Value.newBuilder().setStringValue("value" + i));
+    }
+    TestStruct message = TestStruct.newBuilder().setListValue(list).build();
+    byte[] json = MARSHALLER.writeValueAsBytes(message);
+    assertThat(json.length).isGreaterThan(8 * 1024);
+
+    TestStruct.Builder builder = TestStruct.newBuilder();
+    feed(builder, json, 100);
+    assertThat(builder.build()).isEqualTo(message);
+  }
+
+  @Test
+  void wellKnownType() throws Exception {
+    Int32Value.Builder builder = Int32Value.newBuilder();
+    IncrementalMerger merger = MARSHALLER.newIncrementalMerger(builder);
+    assertThat(merger.feed("12".getBytes(StandardCharsets.UTF_8))).isFalse();
+    assertThat(merger.feed("34".getBytes(StandardCharsets.UTF_8))).isFalse();
+    merger.endOfInput();
+    assertThat(merger.isDone()).isTrue();
+    assertThat(builder.getValue()).isEqualTo(1234);
+  }
+
+  @Test
+  void duplicateField() throws Exception {
+    IncrementalMerger merger = MARSHALLER.newIncrementalMerger(TestAllTypes.newBuilder());
+    assertThatThrownBy(
+            () ->
+                merger.feed(
+                    "{\"optionalInt32\": 1, \"optional_int32\": 2}"
+                        .getBytes(StandardCharsets.UTF_8)))
+        .isInstanceOf(InvalidProtocolBufferException.class);
+  }
+
+  @Test
+  void truncated() throws Exception {
+    IncrementalMerger merger = MARSHALLER.newIncrementalMerger(TestAllTypes.newBuilder());
+    assertThat(merger.feed("{\"optionalInt32\": 1".getBytes(StandardCharsets.UTF_8))).isFalse();
+    assertThatThrownBy(merger::endOfInput).isInstanceOf(InvalidProtocolBufferException.class);
+  }
+
+  @Test
+  void notObject() throws Exception {
+    IncrementalMerger merger = MARSHALLER.newIncrementalMerger(TestAllTypes.newBuilder());
+    assertThatThrownBy(() -> merger.feed("[]".getBytes(StandardCharsets.UTF_8)))
+        .isInstanceOf(InvalidProtocolBufferException.class);
+  }
+
+  private static void feed(Message.Builder builder, byte[] json, int chunkSize) throws Exception {
+    IncrementalMerger merger = MARSHALLER.newIncrementalMerger(builder);
+    for (int i = 0; i < json.length && !merger.isDone(); i += chunkSize) {
+      merger.feed(Arrays.copyOfRange(json, i, Math.min(i + chunkSize, json.length)));
+    }
+    merger.endOfInput();
+    assertThat(merger.isDone()).isTrue();
+  }
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright (c) Choko (choko@curioswitch.org)
+ * SPDX-License-Identifier: MIT
+ */
+
+package org.curioswitch.common.protobuf.json;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import com.google.common.io.Resources;
+import com.google.protobuf.Message;
+import com.google.protobuf.Timestamp;
+import com.google.protobuf.util.JsonTestProto.TestAllTypes;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import org.curioswitch.common.protobuf.json.test.GithubApi.SearchResponse;
+import org.junit.jupiter.api.Test;
+
+class JsonChunkSourceTest {
+
+  private static final MessageMarshaller MARSHALLER =
+      MessageMarshaller.builder()
+          .register(TestAllTypes.getDefaultInstance())
+          .register(SearchResponse.getDefaultInstance())
+          .build();
+
+  @Test
+  void allFields() throws Exception {
+    assertChunksMatch(MARSHALLER, JsonTestUtil.testAllTypesAllFields(), 16);
+    assertChunksMatch(
+        MARSHALLER.toBuilder().omittingInsignificantWhitespace(true).build(),
+        JsonTestUtil.testAllTypesAllFields(),
+        16);
+    assertChunksMatch(
+        MARSHALLER.toBuilder().includingDefaultValueFields(true).build(),
+        JsonTestUtil.testAllTypesAllFields(),
+        16);
+  }
+
+  @Test
+  void largeRepeatedField() throws Exception {
+    SearchResponse.Builder builder = SearchResponse.newBuilder();
+    MARSHALLER.mergeValue(
+        Resources.toByteArray(Resources.getResource("github_search_response.json")), builder);
+    assertChunksMatch(MARSHALLER, builder.build(), 1024);
+  }
+
+  @Test
+  void empty() throws Exception {
+    assertChunksMatch(MARSHALLER, TestAllTypes.getDefaultInstance(), 1);
+  }
+
+  @Test
+  void wellKnownType() throws Exception {
+    assertChunksMatch(MARSHALLER, Timestamp.newBuilder().setSeconds(100).build(), 4);
+  }
+
+  @Test
+  void invalidChunkSize() {
+    assertThatThrownBy(() -> MARSHALLER.writeValueAsChunks(TestAllTypes.getDefaultInstance(), 0))
+        .isInstanceOf(IllegalArgumentException.class);
+  }
+
+  private static void assertChunksMatch(
+      MessageMarshaller marshaller, Message message, int maxChunkSize) throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try (JsonChunkSource source = marshaller.writeValueAsChunks(message, maxChunkSize)) {
+      ByteBuffer chunk;
+      while ((chunk = source.nextChunk()) != null) {
+        assertThat(chunk.remaining()).isBetween(1, maxChunkSize);
+        byte[] bytes = new byte[chunk.remaining()];
+        chunk.get(bytes);
+        out.write(bytes);
+      }
+    }
+    assertThat(out.toByteArray()).isEqualTo(marshaller.writeValueAsBytes(message));
+  }
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright (c) Choko (choko@curioswitch.org)
+ * SPDX-License-Identifier: MIT
+ */
+
+package org.curioswitch.common.protobuf.json;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import com.google.common.io.Resources;
+import com.google.protobuf.util.JsonTestProto.TestAllTypes;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import org.curioswitch.common.protobuf.json.test.GithubApi.SearchResponse;
+import org.junit.jupiter.api.Test;
+
+class JsonSegmentsTest {
+
+  private static final MessageMarshaller MARSHALLER =
+      MessageMarshaller.builder()
+          .register(TestAllTypes.getDefaultInstance())
+          .register(SearchResponse.getDefaultInstance())
+          .build();
+
+  @Test
+  void singleSegment() throws Exception {
+    TestAllTypes message = JsonTestUtil.testAllTypesAllFields();
+    try (JsonSegments segments = MARSHALLER.writeValueAsSegments(message)) {
+      assertThat(segments.buffers()).hasSize(1);
+      assertThat(concat(segments)).isEqualTo(MARSHALLER.writeValueAsBytes(message));
+    }
+  }
+
+  @Test
+  void multipleSegments() throws Exception {
+    SearchResponse.Builder builder = SearchResponse.newBuilder();
+    MARSHALLER.mergeValue(
+        Resources.toByteArray(Resources.getResource("github_search_response.json")), builder);
+    SearchResponse message = builder.build();
+    byte[] expected = MARSHALLER.writeValueAsBytes(message);
+
+    try (JsonSegments segments = MARSHALLER.writeValueAsSegments(message)) {
+      assertThat(segments.buffers().length).isGreaterThan(1);
+      assertThat(segments.length()).isEqualTo(expected.length);
+      assertThat(concat(segments)).isEqualTo(expected);
+    }
+  }
+
+  @Test
+  void segmentsReused() throws Exception {
+    TestAllTypes message = JsonTestUtil.testAllTypesAllFields();
+    JsonSegments segments = MARSHALLER.writeValueAsSegments(message);
+    byte[] segment = segments.buffers()[0].array();
+    segments.close();
+    assertThatThrownBy(segments::buffers).isInstanceOf(IllegalStateException.class);
+
+    try (JsonSegments reused = MARSHALLER.writeValueAsSegments(message)) {
+      assertThat(reused.buffers()[0].array()).isSameAs(segment);
+    }
+  }
+
+  private static byte[] concat(JsonSegments segments) throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    WritableByteChannel channel = Channels.newChannel(out);
+    for (ByteBuffer buffer : segments.buffers()) {
+      while (buffer.hasRemaining()) {
+        channel.write(buffer);
+      }
+    }
+    return out.toByteArray();
+  }
+}
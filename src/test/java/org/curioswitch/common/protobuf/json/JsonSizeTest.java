@@ -0,0 +1,64 @@
+/*
+ * Copyright (c) Choko (choko@curioswitch.org)
+ * SPDX-License-Identifier: MIT
+ */
+
+package org.curioswitch.common.protobuf.json;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import com.google.common.io.Resources;
+import com.google.protobuf.Message;
+import com.google.protobuf.util.JsonTestProto.TestAllTypes;
+import org.curioswitch.common.protobuf.json.test.GithubApi.SearchResponse;
+import org.junit.jupiter.api.Test;
+
+class JsonSizeTest {
+
+  private static final MessageMarshaller MARSHALLER =
+      MessageMarshaller.builder()
+          .register(TestAllTypes.getDefaultInstance())
+          .register(SearchResponse.getDefaultInstance())
+          .build();
+
+  private static final MessageMarshaller COMPACT_MARSHALLER =
+      MARSHALLER.toBuilder().omittingInsignificantWhitespace(true).build();
+
+  @Test
+  void allTypes() throws Exception {
+    checkSize(JsonTestUtil.testAllTypesAllFields());
+    checkSize(TestAllTypes.getDefaultInstance());
+    checkSize(TestAllTypes.newBuilder().setOptionalString("<é中😀>").build());
+  }
+
+  @Test
+  void largeMessage() throws Exception {
+    SearchResponse.Builder builder = SearchResponse.newBuilder();
+    MARSHALLER.mergeValue(
+        Resources.toByteArray(Resources.getResource("github_search_response.json")), builder);
+    checkSize(builder.build());
+  }
+
+  @Test
+  void wrongSize() throws Exception {
+    TestAllTypes message = JsonTestUtil.testAllTypesAllFields();
+    int size = MARSHALLER.computeJsonSize(message);
+    assertThatThrownBy(() -> MARSHALLER.writeValueAsBytes(message, size - 1))
+        .isInstanceOf(IllegalArgumentException.class);
+    assertThatThrownBy(() -> MARSHALLER.writeValueAsBytes(message, size + 1))
+        .isInstanceOf(IllegalArgumentException.class);
+    assertThatThrownBy(() -> MARSHALLER.writeValueAsBytes(message, -1))
+        .isInstanceOf(IllegalArgumentException.class);
+  }
+
+  private static void checkSize(Message message) throws Exception {
+    for (MessageMarshaller marshaller : new MessageMarshaller[] {MARSHALLER, COMPACT_MARSHALLER}) {
+      byte[] expected = marshaller.writeValueAsBytes(message);
+      assertThat(marshaller.computeJsonSize(message)).isEqualTo(expected.length);
+      // Cached
+      assertThat(marshaller.computeJsonSize(message)).isEqualTo(expected.length);
+      assertThat(marshaller.writeValueAsBytes(message, expected.length)).isEqualTo(expected);
+    }
+  }
+}
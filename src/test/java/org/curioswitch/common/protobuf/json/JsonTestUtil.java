@@ -5,11 +5,25 @@
 
 package org.curioswitch.common.protobuf.json;
 
+import com.google.common.collect.ImmutableList;
+import com.google.protobuf.Any;
 import com.google.protobuf.ByteString;
+import com.google.protobuf.Int32Value;
+import com.google.protobuf.ListValue;
+import com.google.protobuf.Message;
+import com.google.protobuf.NullValue;
+import com.google.protobuf.StringValue;
+import com.google.protobuf.Struct;
+import com.google.protobuf.Value;
 import com.google.protobuf.util.JsonTestProto.TestAllTypes;
 import com.google.protobuf.util.JsonTestProto.TestAllTypes.NestedEnum;
 import com.google.protobuf.util.JsonTestProto.TestAllTypes.NestedMessage;
+import com.google.protobuf.util.JsonTestProto.TestAny;
 import com.google.protobuf.util.JsonTestProto.TestMap;
+import com.google.protobuf.util.JsonTestProto.TestOneof;
+import com.google.protobuf.util.JsonTestProto.TestRecursive;
+import com.google.protobuf.util.JsonTestProto.TestStruct;
+import com.google.protobuf.util.JsonTestProto.TestWrappers;
 
 final class JsonTestUtil {
 
@@ -106,5 +120,46 @@ final class JsonTestUtil {
     return builder.build();
   }
 
+  /** The prototypes of the types of {@link #sampleMessages()}, for registering them. */
+  static ImmutableList<Message> samplePrototypes() {
+    return ImmutableList.of(
+        TestAllTypes.getDefaultInstance(),
+        TestMap.getDefaultInstance(),
+        TestOneof.getDefaultInstance(),
+        TestStruct.getDefaultInstance(),
+        TestWrappers.getDefaultInstance(),
+        TestAny.getDefaultInstance(),
+        TestRecursive.getDefaultInstance());
+  }
+
+  /** Messages covering every kind of field, for comparing different ways of marshalling. */
+  static ImmutableList<Message> sampleMessages() {
+    return ImmutableList.of(
+        testAllTypesAllFields(),
+        TestAllTypes.getDefaultInstance(),
+        testMapAllTypes(),
+        TestOneof.newBuilder().setOneofNullValue(NullValue.NULL_VALUE).build(),
+        TestOneof.newBuilder()
+            .setOneofNestedMessage(NestedMessage.newBuilder().setValue(1))
+            .build(),
+        TestStruct.newBuilder()
+            .setStructValue(
+                Struct.newBuilder().putFields("foo", Value.newBuilder().setNumberValue(1).build()))
+            .setValue(Value.newBuilder().setNullValue(NullValue.NULL_VALUE))
+            .setListValue(ListValue.newBuilder().addValues(Value.newBuilder().setBoolValue(true)))
+            .build(),
+        TestWrappers.newBuilder()
+            .setInt32Value(Int32Value.of(0))
+            .setStringValue(StringValue.of("foo"))
+            .build(),
+        TestAny.newBuilder()
+            .setAnyValue(Any.pack(testAllTypesAllFields()))
+            .putAnyMap("foo", Any.pack(TestRecursive.newBuilder().setValue(1).build()))
+            .build(),
+        TestRecursive.newBuilder()
+            .setNested(TestRecursive.newBuilder().setNested(TestRecursive.newBuilder().setValue(1)))
+            .build());
+  }
+
   private JsonTestUtil() {}
 }
@@ -0,0 +1,139 @@
+/*
+ * Copyright (c) Choko (choko@curioswitch.org)
+ * SPDX-License-Identifier: MIT
+ */
+
+package org.curioswitch.common.protobuf.json;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import com.google.common.io.Resources;
+import com.google.protobuf.Any;
+import com.google.protobuf.Message;
+import com.google.protobuf.util.JsonTestProto.TestAllTypes;
+import com.google.protobuf.util.JsonTestProto.TestAny;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.curioswitch.common.protobuf.json.test.GithubApi.SearchResponse;
+import org.curioswitch.common.protobuf.json.test.GithubApi.User;
+import org.junit.jupiter.api.Test;
+
+class LazyGenerationTest {
+
+  private static final MessageMarshaller EAGER_MARSHALLER =
+      MessageMarshaller.builder()
+          .register(TestAllTypes.getDefaultInstance())
+          .register(TestAny.getDefaultInstance())
+          .build();
+
+  @Test
+  void sameOutputAsEager() throws Exception {
+    MessageMarshaller lazy = EAGER_MARSHALLER.toBuilder().generatingLazily(true).build();
+    MessageMarshaller lazyFromScratch =
+        MessageMarshaller.builder()
+            .register(TestAllTypes.getDefaultInstance())
+            .register(TestAny.getDefaultInstance())
+            .generatingLazily(true)
+            .build();
+
+    TestAllTypes message = JsonTestUtil.testAllTypesAllFields();
+    TestAny any = TestAny.newBuilder().setAnyValue(Any.pack(message)).build();
+    for (MessageMarshaller marshaller : new MessageMarshaller[] {lazy, lazyFromScratch}) {
+      byte[] json = marshaller.writeValueAsBytes(message);
+      assertThat(json).isEqualTo(EAGER_MARSHALLER.writeValueAsBytes(message));
+      TestAllTypes.Builder builder = TestAllTypes.newBuilder();
+      marshaller.mergeValue(json, builder);
+      assertThat(builder.build()).isEqualTo(message);
+
+      String anyJson = marshaller.writeValueAsString(any);
+      assertThat(anyJson).isEqualTo(EAGER_MARSHALLER.writeValueAsString(any));
+      TestAny.Builder anyBuilder = TestAny.newBuilder();
+      marshaller.mergeValue(anyJson, anyBuilder);
+      assertThat(anyBuilder.build()).isEqualTo(any);
+    }
+  }
+
+  @Test
+  void generatesOnFirstUse() throws Exception {
+    MessageMarshaller marshaller =
+        MessageMarshaller.builder()
+            .register(SearchResponse.getDefaultInstance())
+            .generatingLazily(true)
+            .build();
+    LazyMarshaller<?> searchResponse = lazy(marshaller, SearchResponse.getDefaultInstance());
+    LazyMarshaller<?> user = lazy(marshaller, User.getDefaultInstance());
+    assertThat(searchResponse.isGenerated()).isFalse();
+
+    SearchResponse.Builder builder = SearchResponse.newBuilder();
+    marshaller.mergeValue("{\"total_count\": 10}", builder);
+    // Only the top-level type is generated, not the nested Item and User.
+    assertThat(searchResponse.isGenerated()).isTrue();
+    assertThat(user.isGenerated()).isFalse();
+    assertThat(builder.getTotalCount()).isEqualTo(10);
+  }
+
+  @Test
+  void notSharedBetweenMarshallers() throws Exception {
+    MessageMarshaller.Builder builder =
+        MessageMarshaller.builder()
+            .register(SearchResponse.getDefaultInstance())
+            .generatingLazily(true);
+    MessageMarshaller first = builder.build();
+    MessageMarshaller second = builder.build();
+    SearchResponse response =
+        SearchResponse.newBuilder()
+            .addItems(SearchResponse.Item.newBuilder().setName("protobuf-jackson"))
+            .build();
+    String json = first.writeValueAsString(response);
+    assertThat(second.writeValueAsString(response)).isEqualTo(json);
+
+    // Nested marshallers are wired into static fields of the generated class, so each marshaller
+    // must have its own class referring to its own lazy marshallers.
+    assertThat(lazy(first, SearchResponse.getDefaultInstance()).resolve().getClass())
+        .isNotSameAs(lazy(second, SearchResponse.getDefaultInstance()).resolve().getClass());
+    assertThat(lazy(first, SearchResponse.Item.getDefaultInstance()).isGenerated()).isTrue();
+    assertThat(lazy(second, SearchResponse.Item.getDefaultInstance()).isGenerated()).isTrue();
+  }
+
+  @Test
+  void concurrentFirstUse() throws Exception {
+    MessageMarshaller marshaller =
+        MessageMarshaller.builder()
+            .register(SearchResponse.getDefaultInstance())
+            .generatingLazily(true)
+            .build();
+    byte[] json = Resources.toByteArray(Resources.getResource("github_search_response.json"));
+
+    ExecutorService executor = Executors.newFixedThreadPool(8);
+    try {
+      List<Future<SearchResponse>> results = new ArrayList<>();
+      for (int i = 0; i < 16; i++) {
+        results.add(
+            executor.submit(
+                () -> {
+                  SearchResponse.Builder builder = SearchResponse.newBuilder();
+                  marshaller.mergeValue(json, builder);
+                  return builder.build();
+                }));
+      }
+      SearchResponse expected = results.get(0).get();
+      assertThat(expected.getItemsCount()).isPositive();
+      for (Future<SearchResponse> result : results) {
+        assertThat(result.get()).isEqualTo(expected);
+      }
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  private static LazyMarshaller<?> lazy(MessageMarshaller marshaller, Message prototype) {
+    return marshaller.registeredMarshallers().stream()
+        .filter(m -> m.getDescriptorForMarshalledType() == prototype.getDescriptorForType())
+        .map(m -> (LazyMarshaller<?>) m)
+        .findFirst()
+        .orElseThrow(IllegalStateException::new);
+  }
+}
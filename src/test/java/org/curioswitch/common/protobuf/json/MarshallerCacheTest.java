@@ -0,0 +1,118 @@
+/*
+ * Copyright (c) Choko (choko@curioswitch.org)
+ * SPDX-License-Identifier: MIT
+ */
+
+package org.curioswitch.common.protobuf.json;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import com.google.protobuf.BoolValue;
+import com.google.protobuf.util.JsonTestProto.TestAllTypes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.curioswitch.common.protobuf.json.WellKnownTypeMarshaller.BoolValueMarshaller;
+import org.junit.jupiter.api.Test;
+
+class MarshallerCacheTest {
+
+  private static final MarshallerOptions OPTIONS =
+      new MarshallerOptions(
+          BoolValue.getDefaultInstance(),
+          false,
+          Collections.emptySet(),
+          false,
+          false,
+          false,
+          false);
+
+  @Test
+  void singleFlight() throws Exception {
+    MarshallerCache cache = new MarshallerCache();
+    AtomicInteger builds = new AtomicInteger();
+    CountDownLatch building = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      List<Future<TypeSpecificMarshaller<?>>> results = new ArrayList<>();
+      results.add(
+          executor.submit(
+              () ->
+                  cache.getOrCreate(
+                      OPTIONS,
+                      () -> {
+                        builds.incrementAndGet();
+                        building.countDown();
+                        try {
+                          release.await();
+                        } catch (InterruptedException e) {
+                          throw new IllegalStateException(e);
+                        }
+                        return BoolValueMarshaller.INSTANCE;
+                      })));
+      building.await();
+      for (int i = 0; i < 3; i++) {
+        results.add(
+            executor.submit(
+                () ->
+                    cache.getOrCreate(
+                        OPTIONS,
+                        () -> {
+                          builds.incrementAndGet();
+                          return BoolValueMarshaller.INSTANCE;
+                        })));
+      }
+      release.countDown();
+      for (Future<TypeSpecificMarshaller<?>> result : results) {
+        assertThat(result.get()).isSameAs(BoolValueMarshaller.INSTANCE);
+      }
+    } finally {
+      executor.shutdown();
+    }
+
+    assertThat(builds).hasValue(1);
+    MarshallerCacheStats stats = cache.stats();
+    assertThat(stats.missCount()).isEqualTo(1);
+    assertThat(stats.hitCount()).isEqualTo(3);
+  }
+
+  @Test
+  void failedBuildNotCached() {
+    MarshallerCache cache = new MarshallerCache();
+    assertThatThrownBy(
+            () ->
+                cache.getOrCreate(
+                    OPTIONS,
+                    () -> {
+                      throw new IllegalStateException("failed");
+                    }))
+        .isInstanceOf(IllegalStateException.class);
+    assertThat(cache.getOrCreate(OPTIONS, () -> BoolValueMarshaller.INSTANCE))
+        .isSameAs(BoolValueMarshaller.INSTANCE);
+    assertThat(cache.stats().missCount()).isEqualTo(2);
+  }
+
+  @Test
+  void sharedAcrossMarshallers() throws Exception {
+    MessageMarshaller first =
+        MessageMarshaller.builder().register(TestAllTypes.getDefaultInstance()).build();
+    long misses = MessageMarshaller.cacheStats().missCount();
+    long hits = MessageMarshaller.cacheStats().hitCount();
+    MessageMarshaller second =
+        MessageMarshaller.builder().register(TestAllTypes.getDefaultInstance()).build();
+    assertThat(MessageMarshaller.cacheStats().missCount()).isEqualTo(misses);
+    assertThat(MessageMarshaller.cacheStats().hitCount()).isGreaterThan(hits);
+
+    // Keep the first marshaller's generated code reachable until the second was built.
+    TestAllTypes message = JsonTestUtil.testAllTypesAllFields();
+    assertThat(second.writeValueAsBytes(message)).isEqualTo(first.writeValueAsBytes(message));
+  }
+}
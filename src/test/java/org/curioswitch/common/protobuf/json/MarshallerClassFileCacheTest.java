@@ -0,0 +1,120 @@
+/*
+ * Copyright (c) Choko (choko@curioswitch.org)
+ * SPDX-License-Identifier: MIT
+ */
+
+package org.curioswitch.common.protobuf.json;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.google.protobuf.Descriptors.FieldDescriptor;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import org.curioswitch.common.protobuf.json.MarshallerClassFileCache.CachedClass;
+import org.curioswitch.common.protobuf.json.test.GithubApi.SearchResponse;
+import org.curioswitch.common.protobuf.json.test.GithubApi.User;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class MarshallerClassFileCacheTest {
+
+  private static final FieldDescriptor LOGIN_FIELD = User.getDescriptor().findFieldByName("login");
+
+  @TempDir Path cacheDirectory;
+
+  @Test
+  void writesAndReadsClassFiles() throws Exception {
+    // Options not used by other tests so the types are not in the in-memory cache yet.
+    MessageMarshaller marshaller =
+        MessageMarshaller.builder()
+            .register(SearchResponse.getDefaultInstance())
+            .includingDefaultValueFields(LOGIN_FIELD)
+            .omittingInsignificantWhitespace(true)
+            .classCacheDirectory(cacheDirectory)
+            .build();
+
+    List<Path> files;
+    try (Stream<Path> stream = Files.list(cacheDirectory)) {
+      files = stream.collect(Collectors.toList());
+    }
+    // SearchResponse, Item and User.
+    assertThat(files).hasSize(3).allMatch(file -> file.toString().endsWith(".class"));
+
+    MarshallerOptions userOptions =
+        new MarshallerOptions(
+            User.getDefaultInstance(),
+            false,
+            Collections.singleton(LOGIN_FIELD),
+            false,
+            false,
+            false,
+            false);
+    CachedClass cached =
+        MarshallerClassFileCache.read(
+            cacheDirectory, MarshallerClassFileCache.fileName(userOptions));
+    assertThat(cached).isNotNull();
+
+    // Same as defining the class in a new process.
+    @SuppressWarnings("unchecked")
+    TypeSpecificMarshaller<User> userMarshaller =
+        (TypeSpecificMarshaller<User>)
+            TypeSpecificMarshaller.newClassLoader()
+                .define(cached.getClassName(), cached.getBytes())
+                .getConstructor(User.class)
+                .newInstance(User.getDefaultInstance());
+    User user = User.newBuilder().setId(10).build();
+    StringWriter json = new StringWriter();
+    try (JsonGenerator gen = new JsonFactory().createGenerator(json)) {
+      userMarshaller.writeValue(user, gen);
+    }
+    assertThat(json.toString())
+        .isEqualTo(marshaller.writeValueAsString(user))
+        .contains("\"login\"");
+  }
+
+  @Test
+  void keyDependsOnOptions() {
+    MarshallerOptions options =
+        new MarshallerOptions(
+            User.getDefaultInstance(), false, Collections.emptySet(), false, false, false, false);
+    assertThat(MarshallerClassFileCache.fileName(options))
+        .isEqualTo(MarshallerClassFileCache.fileName(options))
+        .isNotEqualTo(
+            MarshallerClassFileCache.fileName(
+                new MarshallerOptions(
+                    User.getDefaultInstance(),
+                    false,
+                    Collections.emptySet(),
+                    false,
+                    false,
+                    true,
+                    false)))
+        .isNotEqualTo(
+            MarshallerClassFileCache.fileName(
+                options.forPrototype(SearchResponse.getDefaultInstance())));
+  }
+
+  @Test
+  void ignoresCorruptEntry() throws Exception {
+    String fileName =
+        MarshallerClassFileCache.fileName(
+            new MarshallerOptions(
+                User.getDefaultInstance(),
+                false,
+                Collections.emptySet(),
+                false,
+                false,
+                false,
+                false));
+    Files.write(cacheDirectory.resolve(fileName), "not a class".getBytes(StandardCharsets.UTF_8));
+    assertThat(MarshallerClassFileCache.read(cacheDirectory, fileName)).isNull();
+  }
+}
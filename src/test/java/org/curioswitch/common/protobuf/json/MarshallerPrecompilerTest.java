@@ -0,0 +1,215 @@
+/*
+ * Copyright (c) Choko (choko@curioswitch.org)
+ * SPDX-License-Identifier: MIT
+ */
+
+package org.curioswitch.common.protobuf.json;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.google.protobuf.Descriptors.FieldDescriptor;
+import com.google.protobuf.Message;
+import java.io.StringWriter;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import org.curioswitch.common.protobuf.json.test.GithubApi.SearchResponse;
+import org.curioswitch.common.protobuf.json.test.GithubApi.User;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class MarshallerPrecompilerTest {
+
+  private static final MarshallerOptions USER_OPTIONS =
+      new MarshallerOptions(
+          User.getDefaultInstance(), false, Collections.emptySet(), false, false, true, false);
+
+  @TempDir Path outputDirectory;
+
+  @Test
+  void writesReachableTypes() throws Exception {
+    MarshallerPrecompiler.main(
+        new String[] {
+          outputDirectory.toString(), "--printingEnumsAsInts", SearchResponse.class.getName()
+        });
+
+    assertThat(classFile(USER_OPTIONS)).isRegularFile();
+    assertThat(classFile(USER_OPTIONS.forPrototype(SearchResponse.getDefaultInstance())))
+        .isRegularFile();
+    assertThat(classFile(USER_OPTIONS.forPrototype(SearchResponse.Item.getDefaultInstance())))
+        .isRegularFile();
+  }
+
+  @Test
+  void precompiledMatchesGenerated() throws Exception {
+    MarshallerPrecompiler.precompile(
+        MessageMarshaller.builder().register(User.getDefaultInstance()).printingEnumsAsInts(true),
+        outputDirectory);
+
+    try (URLClassLoader classLoader =
+        new URLClassLoader(
+            new URL[] {outputDirectory.toUri().toURL()}, getClass().getClassLoader())) {
+      // The precompiled marshaller for User is TypeSpecificMarshaller<User>
+      @SuppressWarnings("unchecked")
+      TypeSpecificMarshaller<User> precompiled =
+          (TypeSpecificMarshaller<User>)
+              TypeSpecificMarshaller.findPrecompiled(USER_OPTIONS, classLoader);
+      assertThat(precompiled).isNotNull();
+      assertThat(precompiled.getClass().getName())
+          .isEqualTo(CodeGenUtil.precompiledClassName(USER_OPTIONS));
+      // Not precompiled with other options.
+      assertThat(
+              TypeSpecificMarshaller.findPrecompiled(
+                  new MarshallerOptions(
+                      User.getDefaultInstance(),
+                      false,
+                      Collections.emptySet(),
+                      false,
+                      false,
+                      false,
+                      false),
+                  classLoader))
+          .isNull();
+
+      User user =
+          User.newBuilder()
+              .setLogin("curioswitch")
+              .setId(10)
+              .setType(User.Type.Organization)
+              .setSiteAdmin(true)
+              .build();
+      MessageMarshaller generated =
+          MessageMarshaller.builder()
+              .register(User.getDefaultInstance())
+              .printingEnumsAsInts(true)
+              .omittingInsignificantWhitespace(true)
+              .build();
+
+      JsonFactory jsonFactory = new JsonFactory();
+      StringWriter json = new StringWriter();
+      try (JsonGenerator gen = jsonFactory.createGenerator(json)) {
+        precompiled.writeValue(user, gen);
+      }
+      assertThat(json.toString()).isEqualTo(generated.writeValueAsString(user));
+
+      try (JsonParser parser = jsonFactory.createParser(json.toString())) {
+        assertThat(precompiled.readValue(parser, 0)).isEqualTo(user);
+      }
+    }
+  }
+
+  @Test
+  void fallsBackToGenerating() throws Exception {
+    // No precompiled marshallers are on the classpath of the test.
+    MessageMarshaller marshaller =
+        MessageMarshaller.builder()
+            .register(SearchResponse.getDefaultInstance())
+            .usingPrecompiledMarshallers(true)
+            .build();
+    SearchResponse response = SearchResponse.newBuilder().setTotalCount(10).build();
+    SearchResponse.Builder builder = SearchResponse.newBuilder();
+    marshaller.mergeValue(marshaller.writeValueAsBytes(response), builder);
+    assertThat(builder.build()).isEqualTo(response);
+  }
+
+  @Test
+  void unlinkablePrecompiledClass() throws Exception {
+    Path classFile = classFile(USER_OPTIONS);
+    Files.createDirectories(classFile.getParent());
+    Files.write(classFile, new byte[] {1, 2, 3});
+    try (URLClassLoader classLoader =
+        new URLClassLoader(
+            new URL[] {outputDirectory.toUri().toURL()}, getClass().getClassLoader())) {
+      assertThat(TypeSpecificMarshaller.findPrecompiled(USER_OPTIONS, classLoader)).isNull();
+    }
+  }
+
+  @Test
+  void unsupportedOptions() throws Exception {
+    assertThatThrownBy(
+            () ->
+                MarshallerPrecompiler.precompile(
+                    MessageMarshaller.builder()
+                        .register(User.getDefaultInstance())
+                        .usingPositionalArrays(true),
+                    outputDirectory))
+        .isInstanceOf(IllegalArgumentException.class);
+    assertThatThrownBy(
+            () ->
+                MarshallerPrecompiler.precompile(
+                    MessageMarshaller.builder()
+                        .register(User.getDefaultInstance())
+                        .register(SearchResponse.getDescriptor()),
+                    outputDirectory))
+        .isInstanceOf(IllegalArgumentException.class);
+    assertThat(classFile(USER_OPTIONS)).doesNotExist();
+  }
+
+  @Test
+  void classNameEncodesFieldsToAlwaysOutput() {
+    MarshallerOptions withUnreachable =
+        alwaysOutputting(
+            User.getDefaultInstance(),
+            User.getDescriptor().findFieldByName("id"),
+            User.getDescriptor().findFieldByName("login"),
+            // Fields of types not reachable from User don't affect its marshaller.
+            SearchResponse.getDescriptor().getFields().get(0));
+    MarshallerOptions withOwn =
+        alwaysOutputting(
+            User.getDefaultInstance(),
+            User.getDescriptor().findFieldByName("id"),
+            User.getDescriptor().findFieldByName("login"));
+    assertThat(CodeGenUtil.precompiledClassName(withOwn))
+        .isEqualTo(CodeGenUtil.precompiledClassName(withUnreachable))
+        .startsWith(CodeGenUtil.precompiledClassName(USER_OPTIONS) + "_")
+        .isNotEqualTo(
+            CodeGenUtil.precompiledClassName(
+                alwaysOutputting(
+                    User.getDefaultInstance(), User.getDescriptor().findFieldByName("id"))));
+  }
+
+  @Test
+  void classNameEncodesNestedFieldsToAlwaysOutput() {
+    // Two marshallers differing only in a field of a nested type must not share the precompiled
+    // class of the outer type, which is wired to the marshaller of the nested type.
+    MarshallerOptions itemName =
+        alwaysOutputting(
+            SearchResponse.getDefaultInstance(),
+            SearchResponse.Item.getDescriptor().findFieldByName("name"));
+    MarshallerOptions itemDescription =
+        alwaysOutputting(
+            SearchResponse.getDefaultInstance(),
+            SearchResponse.Item.getDescriptor().findFieldByName("description"));
+    MarshallerOptions none = USER_OPTIONS.forPrototype(SearchResponse.getDefaultInstance());
+    assertThat(CodeGenUtil.precompiledClassName(itemName))
+        .isNotEqualTo(CodeGenUtil.precompiledClassName(itemDescription))
+        .isNotEqualTo(CodeGenUtil.precompiledClassName(none));
+    assertThat(CodeGenUtil.precompiledClassName(itemName.forPrototype(User.getDefaultInstance())))
+        .isEqualTo(CodeGenUtil.precompiledClassName(USER_OPTIONS));
+  }
+
+  private static MarshallerOptions alwaysOutputting(
+      Message prototype, FieldDescriptor... fieldsToAlwaysOutput) {
+    return new MarshallerOptions(
+        prototype,
+        false,
+        new HashSet<>(Arrays.asList(fieldsToAlwaysOutput)),
+        false,
+        false,
+        true,
+        false);
+  }
+
+  private Path classFile(MarshallerOptions options) {
+    return outputDirectory.resolve(
+        CodeGenUtil.precompiledClassName(options).replace('.', '/') + ".class");
+  }
+}
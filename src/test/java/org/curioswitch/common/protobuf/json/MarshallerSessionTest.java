@@ -0,0 +1,57 @@
+/*
+ * Copyright (c) Choko (choko@curioswitch.org)
+ * SPDX-License-Identifier: MIT
+ */
+
+package org.curioswitch.common.protobuf.json;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.util.JsonTestProto.TestAllTypes;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import org.junit.jupiter.api.Test;
+
+class MarshallerSessionTest {
+
+  private static final MessageMarshaller MARSHALLER =
+      MessageMarshaller.builder().register(TestAllTypes.getDefaultInstance()).build();
+
+  @Test
+  void roundTrip() throws Exception {
+    MarshallerSession session = MARSHALLER.newSession();
+    TestAllTypes message = JsonTestUtil.testAllTypesAllFields();
+    byte[] expected = MARSHALLER.writeValueAsBytes(message);
+    for (int i = 0; i < 3; i++) {
+      byte[] json = session.writeValueAsBytes(message);
+      assertThat(json).isEqualTo(expected);
+      assertThat(session.writeValueAsString(message))
+          .isEqualTo(MARSHALLER.writeValueAsString(message));
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      session.writeValue(message, out);
+      assertThat(out.toByteArray()).isEqualTo(expected);
+
+      TestAllTypes.Builder builder = TestAllTypes.newBuilder();
+      session.mergeValue(json, builder);
+      assertThat(builder.build()).isEqualTo(message);
+      builder = TestAllTypes.newBuilder();
+      session.mergeValue(new String(json, StandardCharsets.UTF_8), builder);
+      assertThat(builder.build()).isEqualTo(message);
+    }
+  }
+
+  @Test
+  void usableAfterFailure() throws Exception {
+    MarshallerSession session = MARSHALLER.newSession();
+    assertThatThrownBy(
+            () -> session.mergeValue("{\"optionalInt32\": \"a\"}", TestAllTypes.newBuilder()))
+        .isInstanceOf(InvalidProtocolBufferException.class);
+
+    TestAllTypes message = TestAllTypes.newBuilder().setOptionalInt32(10).build();
+    TestAllTypes.Builder builder = TestAllTypes.newBuilder();
+    session.mergeValue(session.writeValueAsBytes(message), builder);
+    assertThat(builder.build()).isEqualTo(message);
+  }
+}
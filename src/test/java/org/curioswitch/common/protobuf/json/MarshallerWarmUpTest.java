@@ -0,0 +1,84 @@
+/*
+ * Copyright (c) Choko (choko@curioswitch.org)
+ * SPDX-License-Identifier: MIT
+ */
+
+package org.curioswitch.common.protobuf.json;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import com.google.protobuf.Descriptors.FieldDescriptor;
+import com.google.protobuf.Message;
+import com.google.protobuf.util.JsonTestProto.TestAllTypes;
+import com.google.protobuf.util.JsonTestProto.TestAny;
+import com.google.protobuf.util.JsonTestProto.TestMap;
+import com.google.protobuf.util.JsonTestProto.TestOneof;
+import com.google.protobuf.util.JsonTestProto.TestRecursive;
+import com.google.protobuf.util.JsonTestProto.TestStruct;
+import com.google.protobuf.util.JsonTestProto.TestWrappers;
+import java.time.Duration;
+import org.curioswitch.common.protobuf.json.test.GithubApi.SearchResponse;
+import org.junit.jupiter.api.Test;
+
+class MarshallerWarmUpTest {
+
+  @Test
+  void samplesSetAllFields() {
+    Message sample = MarshallerWarmUp.sample(TestAllTypes.getDefaultInstance());
+    for (FieldDescriptor field : TestAllTypes.getDescriptor().getFields()) {
+      if (field.isRepeated()) {
+        assertThat(sample.getRepeatedFieldCount(field)).as(field.getName()).isPositive();
+      } else {
+        assertThat(sample.hasField(field)).as(field.getName()).isTrue();
+      }
+    }
+
+    TestMap map = (TestMap) MarshallerWarmUp.sample(TestMap.getDefaultInstance());
+    assertThat(map.getInt32ToInt32MapCount()).isEqualTo(1);
+    assertThat(map.getInt32ToMessageMapCount()).isEqualTo(1);
+
+    // Only the first field of the oneof can be set.
+    TestOneof oneof = (TestOneof) MarshallerWarmUp.sample(TestOneof.getDefaultInstance());
+    assertThat(oneof.getOneofFieldCase()).isEqualTo(TestOneof.OneofFieldCase.ONEOF_INT32);
+
+    // Recursive types are bounded.
+    TestRecursive recursive =
+        (TestRecursive) MarshallerWarmUp.sample(TestRecursive.getDefaultInstance());
+    assertThat(recursive.getNested().getNested().getNested().hasNested()).isFalse();
+  }
+
+  @Test
+  void roundTripsAllRegisteredTypes() throws Exception {
+    MessageMarshaller marshaller =
+        MessageMarshaller.builder()
+            .register(TestAllTypes.getDefaultInstance())
+            .register(TestMap.getDefaultInstance())
+            .register(TestOneof.getDefaultInstance())
+            .register(TestStruct.getDefaultInstance())
+            .register(TestWrappers.getDefaultInstance())
+            .register(TestAny.getDefaultInstance())
+            .register(TestRecursive.getDefaultInstance())
+            .register(SearchResponse.getDefaultInstance())
+            .build();
+    assertThat(marshaller.warmUp(10, Duration.ofMinutes(1))).isEqualTo(10);
+
+    for (Message prototype : marshaller.registeredPrototypes()) {
+      Message sample = MarshallerWarmUp.sample(prototype);
+      Message.Builder builder = prototype.newBuilderForType();
+      marshaller.mergeValue(marshaller.writeValueAsString(sample), builder);
+      assertThat(builder.buildPartial()).isEqualTo(sample);
+    }
+  }
+
+  @Test
+  void boundedByDuration() throws Exception {
+    MessageMarshaller marshaller =
+        MessageMarshaller.builder().register(TestAllTypes.getDefaultInstance()).build();
+    assertThat(marshaller.warmUp(Integer.MAX_VALUE, Duration.ZERO)).isZero();
+    assertThatThrownBy(() -> marshaller.warmUp(-1, Duration.ZERO))
+        .isInstanceOf(IllegalArgumentException.class);
+    assertThatThrownBy(() -> marshaller.warmUp(1, Duration.ofSeconds(-1)))
+        .isInstanceOf(IllegalArgumentException.class);
+  }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright (c) Choko (choko@curioswitch.org)
+ * SPDX-License-Identifier: MIT
+ */
+
+package org.curioswitch.common.protobuf.json;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import com.google.protobuf.Any;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.util.JsonTestProto.TestAllTypes;
+import com.google.protobuf.util.JsonTestProto.TestAny;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import org.curioswitch.common.protobuf.json.test.GithubApi.SearchResponse;
+import org.curioswitch.common.protobuf.json.test.GithubApi.User;
+import org.junit.jupiter.api.Test;
+
+class MessageMarshallerHolderTest {
+
+  @Test
+  void swapsWhenRebuilt() throws Exception {
+    Queue<Runnable> tasks = new ArrayDeque<>();
+    MessageMarshaller initial =
+        MessageMarshaller.builder().register(TestAllTypes.getDefaultInstance()).build();
+    MessageMarshallerHolder holder = new MessageMarshallerHolder(initial, tasks::add);
+
+    CompletableFuture<MessageMarshaller> rebuilt =
+        holder.register(SearchResponse.getDefaultInstance());
+    // Nothing rebuilt until the executor runs.
+    assertThat(rebuilt).isNotDone();
+    assertThat(holder.get()).isSameAs(initial);
+
+    tasks.remove().run();
+    assertThat(rebuilt).isDone();
+    assertThat(holder.get()).isSameAs(rebuilt.join()).isNotSameAs(initial);
+
+    SearchResponse response =
+        SearchResponse.newBuilder()
+            .setTotalCount(1)
+            .addItems(
+                SearchResponse.Item.newBuilder()
+                    .setName("protobuf-jackson")
+                    .setOwner(User.newBuilder().setLogin("curioswitch")))
+            .build();
+    SearchResponse.Builder builder = SearchResponse.newBuilder();
+    holder.get().mergeValue(holder.get().writeValueAsBytes(response), builder);
+    assertThat(builder.build()).isEqualTo(response);
+    TestAllTypes message = JsonTestUtil.testAllTypesAllFields();
+    assertThat(holder.get().writeValueAsString(message))
+        .isEqualTo(initial.writeValueAsString(message));
+
+    // Already registered, no rebuild.
+    assertThat(holder.register(User.getDefaultInstance())).isCompletedWithValue(holder.get());
+    assertThat(tasks).isEmpty();
+  }
+
+  @Test
+  void anyResolvesNewTypes() throws Exception {
+    MessageMarshaller initial =
+        MessageMarshaller.builder().register(TestAny.getDefaultInstance()).build();
+    MessageMarshallerHolder holder = new MessageMarshallerHolder(initial, Runnable::run);
+
+    TestAny message =
+        TestAny.newBuilder()
+            .setAnyValue(Any.pack(SearchResponse.newBuilder().setTotalCount(10).build()))
+            .build();
+    assertThatThrownBy(() -> initial.writeValueAsBytes(message))
+        .isInstanceOf(InvalidProtocolBufferException.class);
+
+    MessageMarshaller rebuilt = holder.register(SearchResponse.getDefaultInstance()).join();
+    for (MessageMarshaller marshaller : new MessageMarshaller[] {rebuilt, initial}) {
+      TestAny.Builder builder = TestAny.newBuilder();
+      marshaller.mergeValue(marshaller.writeValueAsBytes(message), builder);
+      assertThat(builder.build()).isEqualTo(message);
+    }
+  }
+
+  @Test
+  void concurrentRegistrations() throws Exception {
+    MessageMarshaller initial =
+        MessageMarshaller.builder().register(TestAny.getDefaultInstance()).build();
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      MessageMarshallerHolder holder = new MessageMarshallerHolder(initial, executor);
+      List<CompletableFuture<MessageMarshaller>> futures = new ArrayList<>();
+      futures.add(holder.register(SearchResponse.getDefaultInstance()));
+      futures.add(holder.register(TestAllTypes.getDefaultInstance()));
+      futures.add(holder.register(User.getDefaultInstance()));
+      CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).join();
+
+      MessageMarshaller current = holder.get();
+      assertThat(current.isRegistered(SearchResponse.getDefaultInstance())).isTrue();
+      assertThat(current.isRegistered(TestAllTypes.getDefaultInstance())).isTrue();
+      assertThat(current.isRegistered(User.getDefaultInstance())).isTrue();
+    } finally {
+      executor.shutdown();
+    }
+  }
+}
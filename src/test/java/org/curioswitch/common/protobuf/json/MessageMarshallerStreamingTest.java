@@ -0,0 +1,99 @@
+/*
+ * Copyright (c) Choko (choko@curioswitch.org)
+ * SPDX-License-Identifier: MIT
+ */
+
+package org.curioswitch.common.protobuf.json;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import com.google.protobuf.InvalidProtocolBufferException;
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import org.curioswitch.common.protobuf.json.test.GithubApi.SearchResponse;
+import org.curioswitch.common.protobuf.json.test.GithubApi.SearchResponse.Item;
+import org.curioswitch.common.protobuf.json.test.GithubApi.User;
+import org.junit.jupiter.api.Test;
+
+class MessageMarshallerStreamingTest {
+
+  private static final MessageMarshaller MARSHALLER =
+      MessageMarshaller.builder().register(SearchResponse.getDefaultInstance()).build();
+
+  @Test
+  void streamsElements() throws Exception {
+    SearchResponse response =
+        SearchResponse.newBuilder()
+            .setTotalCount(2)
+            .addItems(Item.newBuilder().setId(1).setName("foo"))
+            .addItems(Item.newBuilder().setId(2).setOwner(User.newBuilder().setLogin("bar")))
+            .setIncompleteResults(true)
+            .build();
+    byte[] json = MARSHALLER.writeValueAsBytes(response);
+
+    List<Item> items = new ArrayList<>();
+    SearchResponse.Builder builder = SearchResponse.newBuilder();
+    MARSHALLER.<Item>mergeValue(
+        json, builder, SearchResponse.getDescriptor().findFieldByName("items"), items::add);
+
+    assertThat(builder.build()).isEqualTo(response.toBuilder().clearItems().build());
+    assertThat(items).containsExactlyElementsOf(response.getItemsList());
+  }
+
+  @Test
+  void streamsFromInputStream() throws Exception {
+    String json = "{\"items\": [{\"id\": 1}, {\"id\": 2}], \"totalCount\": 2}";
+    List<Item> items = new ArrayList<>();
+    SearchResponse.Builder builder = SearchResponse.newBuilder();
+    MARSHALLER.<Item>mergeValue(
+        new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8)),
+        builder,
+        SearchResponse.getDescriptor().findFieldByName("items"),
+        items::add);
+
+    assertThat(builder.build()).isEqualTo(SearchResponse.newBuilder().setTotalCount(2).build());
+    assertThat(items)
+        .containsExactly(Item.newBuilder().setId(1).build(), Item.newBuilder().setId(2).build());
+  }
+
+  @Test
+  void nullElement() {
+    String json = "{\"items\": [{\"id\": 1}, null]}";
+    assertThatThrownBy(
+            () ->
+                MARSHALLER.<Item>mergeValue(
+                    json.getBytes(StandardCharsets.UTF_8),
+                    SearchResponse.newBuilder(),
+                    SearchResponse.getDescriptor().findFieldByName("items"),
+                    item -> {}))
+        .isInstanceOf(InvalidProtocolBufferException.class);
+  }
+
+  @Test
+  void duplicateField() {
+    String json = "{\"items\": [], \"items\": []}";
+    assertThatThrownBy(
+            () ->
+                MARSHALLER.<Item>mergeValue(
+                    json.getBytes(StandardCharsets.UTF_8),
+                    SearchResponse.newBuilder(),
+                    SearchResponse.getDescriptor().findFieldByName("items"),
+                    item -> {}))
+        .isInstanceOf(InvalidProtocolBufferException.class);
+  }
+
+  @Test
+  void notRepeatedMessage() {
+    assertThatThrownBy(
+            () ->
+                MARSHALLER.<Item>mergeValue(
+                    "{}".getBytes(StandardCharsets.UTF_8),
+                    SearchResponse.newBuilder(),
+                    SearchResponse.getDescriptor().findFieldByName("total_count"),
+                    item -> {}))
+        .isInstanceOf(IllegalArgumentException.class);
+  }
+}
@@ -769,6 +769,39 @@ class MessageMarshallerTest {
     assertThat(builder.getOptionalString()).isEqualTo(message.getOptionalString());
   }
 
+  @Test
+  void notEscapingHtml() throws Exception {
+    TestAllTypes message = TestAllTypes.newBuilder().setOptionalString("</script>").build();
+    MessageMarshaller marshaller =
+        MessageMarshaller.builder()
+            .register(TestAllTypes.class)
+            .omittingInsignificantWhitespace(true)
+            .escapingHtml(false)
+            .build();
+
+    assertThat(marshaller.writeValueAsString(message))
+        .isEqualTo("{\"optionalString\":\"</script>\"}");
+  }
+
+  @Test
+  void parsingStrictly() throws Exception {
+    String json = "{\n  // comment\n  optionalInt32: 1\n}";
+    TestAllTypes.Builder builder = TestAllTypes.newBuilder();
+    MessageMarshaller.builder().register(TestAllTypes.class).build().mergeValue(json, builder);
+    assertThat(builder.getOptionalInt32()).isEqualTo(1);
+
+    MessageMarshaller strict =
+        MessageMarshaller.builder().register(TestAllTypes.class).parsingStrictly(true).build();
+    assertThatThrownBy(() -> strict.mergeValue(json, TestAllTypes.newBuilder()))
+        .isInstanceOf(IOException.class);
+    assertThatThrownBy(() -> strict.mergeValue("{optionalInt32: 1}", TestAllTypes.newBuilder()))
+        .isInstanceOf(IOException.class);
+
+    builder.clear();
+    strict.mergeValue("{\"optionalInt32\": 1}", builder);
+    assertThat(builder.getOptionalInt32()).isEqualTo(1);
+  }
+
   @Test
   void includingDefaultValueFields() throws Exception {
     TestAllTypes message = TestAllTypes.getDefaultInstance();
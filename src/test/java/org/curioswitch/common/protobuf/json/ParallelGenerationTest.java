@@ -0,0 +1,110 @@
+/*
+ * Copyright (c) Choko (choko@curioswitch.org)
+ * SPDX-License-Identifier: MIT
+ */
+
+package org.curioswitch.common.protobuf.json;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import com.google.common.io.Resources;
+import com.google.protobuf.Descriptors.Descriptor;
+import com.google.protobuf.Timestamp;
+import com.google.protobuf.util.JsonTestProto.TestAllTypes;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.curioswitch.common.protobuf.json.WellKnownTypeMarshaller.TimestampMarshaller;
+import org.curioswitch.common.protobuf.json.test.GithubApi.SearchResponse;
+import org.curioswitch.common.protobuf.json.test.GithubApi.SearchResponse.Item;
+import org.curioswitch.common.protobuf.json.test.GithubApi.User;
+import org.junit.jupiter.api.Test;
+
+class ParallelGenerationTest {
+
+  @Test
+  void suppliedExecutor() throws Exception {
+    AtomicInteger tasks = new AtomicInteger();
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      MessageMarshaller marshaller =
+          MessageMarshaller.builder()
+              .register(TestAllTypes.getDefaultInstance())
+              .register(SearchResponse.getDefaultInstance())
+              .generationExecutor(
+                  task -> {
+                    tasks.incrementAndGet();
+                    executor.execute(task);
+                  })
+              .build();
+      // At least TestAllTypes, its NestedMessage, SearchResponse, Item and User.
+      assertThat(tasks.get()).isGreaterThanOrEqualTo(5);
+
+      MessageMarshaller sequential =
+          MessageMarshaller.builder()
+              .register(TestAllTypes.getDefaultInstance())
+              .register(SearchResponse.getDefaultInstance())
+              .generationExecutor(Runnable::run)
+              .build();
+
+      TestAllTypes message = JsonTestUtil.testAllTypesAllFields();
+      assertThat(marshaller.writeValueAsString(message))
+          .isEqualTo(sequential.writeValueAsString(message));
+
+      SearchResponse.Builder builder = SearchResponse.newBuilder();
+      marshaller.mergeValue(
+          Resources.toByteArray(Resources.getResource("github_search_response.json")), builder);
+      SearchResponse response = builder.build();
+      assertThat(response.getItemsCount()).isPositive();
+      assertThat(marshaller.writeValueAsBytes(response))
+          .isEqualTo(sequential.writeValueAsBytes(response));
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  @Test
+  void sharedClassLoader() {
+    Map<Descriptor, TypeSpecificMarshaller<?>> marshallers = new HashMap<>();
+    marshallers.put(Timestamp.getDescriptor(), TimestampMarshaller.INSTANCE);
+    // A new cache so all types are generated regardless of what other tests have built.
+    MarshallerCache cache = new MarshallerCache();
+    AtomicInteger tasks = new AtomicInteger();
+    TypeSpecificMarshaller.buildAllAndAdd(
+        Collections.singletonList(
+            new MarshallerOptions(
+                SearchResponse.getDefaultInstance(),
+                true,
+                Collections.emptySet(),
+                true,
+                true,
+                true,
+                true)),
+        marshallers,
+        task -> {
+          tasks.incrementAndGet();
+          ForkJoinPool.commonPool().execute(task);
+        },
+        cache);
+
+    assertThat(tasks).hasValue(3);
+    assertThat(cache.stats().missCount()).isEqualTo(3);
+    assertThat(marshallers)
+        .containsKeys(SearchResponse.getDescriptor(), Item.getDescriptor(), User.getDescriptor());
+    Set<ClassLoader> classLoaders = new HashSet<>();
+    for (Descriptor descriptor :
+        new Descriptor[] {
+          SearchResponse.getDescriptor(), Item.getDescriptor(), User.getDescriptor()
+        }) {
+      classLoaders.add(marshallers.get(descriptor).getClass().getClassLoader());
+    }
+    assertThat(classLoaders).hasSize(1);
+    assertThat(classLoaders.iterator().next()).isInstanceOf(GeneratedClassLoader.class);
+  }
+}
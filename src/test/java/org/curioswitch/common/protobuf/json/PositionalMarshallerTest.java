@@ -0,0 +1,174 @@
+/*
+ * Copyright (c) Choko (choko@curioswitch.org)
+ * SPDX-License-Identifier: MIT
+ */
+
+package org.curioswitch.common.protobuf.json;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableList;
+import com.google.protobuf.Any;
+import com.google.protobuf.DynamicMessage;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.ListValue;
+import com.google.protobuf.Message;
+import com.google.protobuf.NullValue;
+import com.google.protobuf.Struct;
+import com.google.protobuf.Timestamp;
+import com.google.protobuf.Value;
+import com.google.protobuf.util.JsonTestProto.TestAllTypes;
+import com.google.protobuf.util.JsonTestProto.TestAllTypes.NestedEnum;
+import com.google.protobuf.util.JsonTestProto.TestAllTypes.NestedMessage;
+import com.google.protobuf.util.JsonTestProto.TestAny;
+import com.google.protobuf.util.JsonTestProto.TestMap;
+import com.google.protobuf.util.JsonTestProto.TestRecursive;
+import com.google.protobuf.util.JsonTestProto.TestStruct;
+import com.google.protobuf.util.JsonTestProto.TestTimestamp;
+import org.curioswitch.common.protobuf.json.test.GithubApi.SearchResponse;
+import org.junit.jupiter.api.Test;
+
+class PositionalMarshallerTest {
+
+  private static final MessageMarshaller MARSHALLER =
+      builder().omittingInsignificantWhitespace(true).build();
+
+  @Test
+  void roundTrip() throws Exception {
+    ImmutableList<Message> messages =
+        ImmutableList.<Message>builder()
+            .addAll(JsonTestUtil.sampleMessages())
+            .add(
+                TestTimestamp.newBuilder()
+                    .setTimestampValue(Timestamp.newBuilder().setSeconds(1).setNanos(100))
+                    .build(),
+                TestStruct.newBuilder()
+                    .setStructValue(
+                        Struct.newBuilder()
+                            .putFields(
+                                "null",
+                                Value.newBuilder().setNullValue(NullValue.NULL_VALUE).build())
+                            .putFields("string", Value.newBuilder().setStringValue("foo").build()))
+                    .setListValue(
+                        ListValue.newBuilder().addValues(Value.newBuilder().setNumberValue(1.5)))
+                    .build(),
+                TestAny.newBuilder().putAnyMap("empty", Any.getDefaultInstance()).build(),
+                TestRecursive.newBuilder()
+                    .setValue(1)
+                    .setNested(TestRecursive.newBuilder().setValue(2))
+                    .build(),
+                MarshallerWarmUp.sample(SearchResponse.getDefaultInstance()))
+            .build();
+    for (Message message : messages) {
+      String json = MARSHALLER.writeValueAsString(message);
+      Message.Builder builder = message.newBuilderForType();
+      MARSHALLER.mergeValue(json, builder);
+      assertThat(builder.build()).as(json).isEqualTo(message);
+    }
+
+    Message allTypes = JsonTestUtil.testAllTypesAllFields();
+    MessageMarshaller jsonMarshaller =
+        MessageMarshaller.builder()
+            .register(TestAllTypes.getDefaultInstance())
+            .omittingInsignificantWhitespace(true)
+            .build();
+    assertThat(MARSHALLER.writeValueAsString(allTypes).length())
+        .isLessThan(jsonMarshaller.writeValueAsString(allTypes).length());
+  }
+
+  @Test
+  void format() throws Exception {
+    TestAllTypes message =
+        TestAllTypes.newBuilder()
+            .setOptionalInt32(1)
+            .setOptionalInt64(2)
+            .setOptionalNestedMessage(NestedMessage.newBuilder().setValue(3))
+            .build();
+    // Fields 1, 2 and 18, with int64 as a string like proto3 JSON.
+    assertThat(MARSHALLER.writeValueAsString(message))
+        .isEqualTo("[1,\"2\"," + Strings.repeat("null,", 15) + "[3]]");
+
+    TestAllTypes enums =
+        TestAllTypes.newBuilder()
+            .setOptionalNestedEnum(NestedEnum.BAZ)
+            .addRepeatedInt32(1)
+            .addRepeatedInt32(2)
+            .build();
+    String json = MARSHALLER.writeValueAsString(enums);
+    assertThat(json).startsWith(Strings.repeat("null,", 20) + "2,").endsWith("[1,2]]");
+
+    assertThat(MARSHALLER.writeValueAsString(TestMap.newBuilder().putInt32ToInt32Map(1, 2).build()))
+        .isEqualTo("[[[1,2]]]");
+    assertThat(MARSHALLER.writeValueAsString(TestAllTypes.getDefaultInstance())).isEqualTo("[]");
+  }
+
+  @Test
+  void unknownPositions() throws Exception {
+    assertThatThrownBy(() -> MARSHALLER.mergeValue("[[1],5]", TestTimestamp.newBuilder()))
+        .isInstanceOf(InvalidProtocolBufferException.class);
+    assertThatThrownBy(
+            () -> MARSHALLER.mergeValue("[[1],{\"2000\":[1]}]", TestTimestamp.newBuilder()))
+        .isInstanceOf(InvalidProtocolBufferException.class);
+
+    MessageMarshaller ignoring = builder().ignoringUnknownFields(true).build();
+    TestTimestamp.Builder builder = TestTimestamp.newBuilder();
+    ignoring.mergeValue("[[1],[5,6],{\"2000\":{\"a\":1}}]", builder);
+    assertThat(builder.getTimestampValue().getSeconds()).isEqualTo(1);
+  }
+
+  @Test
+  void rejectsObjects() {
+    assertThatThrownBy(
+            () ->
+                MARSHALLER.mergeValue(
+                    "{\"timestampValue\":\"1970-01-01T00:00:01Z\"}", TestTimestamp.newBuilder()))
+        .isInstanceOf(InvalidProtocolBufferException.class);
+    assertThatThrownBy(() -> MARSHALLER.mergeValue("[[1,2,3]]", TestMap.newBuilder()))
+        .isInstanceOf(InvalidProtocolBufferException.class);
+  }
+
+  @Test
+  void switchingFormatWithToBuilder() throws Exception {
+    MessageMarshaller jsonMarshaller =
+        MessageMarshaller.builder()
+            .register(TestTimestamp.getDefaultInstance())
+            .omittingInsignificantWhitespace(true)
+            .build();
+    MessageMarshaller positional = jsonMarshaller.toBuilder().usingPositionalArrays(true).build();
+    TestTimestamp message =
+        TestTimestamp.newBuilder().setTimestampValue(Timestamp.newBuilder().setSeconds(1)).build();
+    assertThat(positional.writeValueAsString(message)).isEqualTo("[[\"1\"]]");
+    MessageMarshaller json = positional.toBuilder().usingPositionalArrays(false).build();
+    assertThat(json.writeValueAsString(message))
+        .isEqualTo(jsonMarshaller.writeValueAsString(message));
+  }
+
+  @Test
+  void unsupported() throws Exception {
+    assertThatThrownBy(
+            () ->
+                MessageMarshaller.builder()
+                    .register(DynamicMessage.getDefaultInstance(TestAllTypes.getDescriptor()))
+                    .usingPositionalArrays(true)
+                    .build())
+        .isInstanceOf(IllegalArgumentException.class);
+    assertThatThrownBy(
+            () -> MARSHALLER.writeValueAsChunks(JsonTestUtil.testAllTypesAllFields(), 100))
+        .isInstanceOf(IllegalStateException.class);
+    assertThatThrownBy(() -> MARSHALLER.newIncrementalMerger(TestAllTypes.newBuilder()))
+        .isInstanceOf(IllegalStateException.class);
+  }
+
+  private static MessageMarshaller.Builder builder() {
+    MessageMarshaller.Builder builder = MessageMarshaller.builder();
+    for (Message prototype : JsonTestUtil.samplePrototypes()) {
+      builder.register(prototype);
+    }
+    return builder
+        .register(TestTimestamp.getDefaultInstance())
+        .register(SearchResponse.getDefaultInstance())
+        .usingPositionalArrays(true);
+  }
+}
@@ -129,6 +129,13 @@ class ProtobufUtilTest {
     assertThat(ProtobufUtil.formatTimestamp(value)).isEqualTo("1970-01-01T00:00:00.000010Z");
     value = Timestamp.newBuilder().setNanos(10000000).build();
     assertThat(ProtobufUtil.formatTimestamp(value)).isEqualTo("1970-01-01T00:00:00.010Z");
+
+    // Times before the epoch.
+    value = Timestamp.newBuilder().setSeconds(-1).build();
+    assertThat(ProtobufUtil.formatTimestamp(value)).isEqualTo("1969-12-31T23:59:59Z");
+    assertThat(ProtobufUtil.parseTimestamp("1969-12-31T23:59:59Z")).isEqualTo(value);
+    value = ProtobufUtil.parseTimestamp("1582-10-04T12:34:56.500Z");
+    assertThat(ProtobufUtil.formatTimestamp(value)).isEqualTo("1582-10-04T12:34:56.500Z");
   }
 
   @ParameterizedTest
@@ -163,6 +170,8 @@ class ProtobufUtilTest {
         "1970-01-01T00:00:00Z0",
         // Invalid nanosecond value.
         "1970-01-01T00:00:00.ABCZ",
+        // Out of the range of dates after rolling over months.
+        "999999999-999999999-01T00:00:00Z",
       })
   void testInvalidTimestampStringParse(String value) {
     assertThatThrownBy(() -> ProtobufUtil.parseTimestamp(value)).isInstanceOf(ParseException.class);
@@ -0,0 +1,127 @@
+/*
+ * Copyright (c) Choko (choko@curioswitch.org)
+ * SPDX-License-Identifier: MIT
+ */
+
+package org.curioswitch.common.protobuf.json;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import com.fasterxml.jackson.core.util.BufferRecycler;
+import com.fasterxml.jackson.core.util.JsonRecyclerPools;
+import com.fasterxml.jackson.core.util.RecyclerPool;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.util.JsonTestProto.TestAllTypes;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.Test;
+
+class RecyclerPoolTest {
+
+  private static final TestAllTypes MESSAGE = JsonTestUtil.testAllTypesAllFields();
+
+  @Test
+  void buffersReturnedToPool() throws Exception {
+    CountingPool pool = new CountingPool();
+    MessageMarshaller marshaller =
+        MessageMarshaller.builder()
+            .register(TestAllTypes.getDefaultInstance())
+            .recyclerPool(pool)
+            .build();
+    MessageMarshaller defaultMarshaller =
+        MessageMarshaller.builder().register(TestAllTypes.getDefaultInstance()).build();
+
+    // Run on a new thread so the recyclers are not already cached in a ThreadLocal by other tests.
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      executor
+          .submit(
+              () -> {
+                byte[] json = marshaller.writeValueAsBytes(MESSAGE);
+                assertThat(json).isEqualTo(defaultMarshaller.writeValueAsBytes(MESSAGE));
+                assertThat(marshaller.writeValueAsString(MESSAGE))
+                    .isEqualTo(defaultMarshaller.writeValueAsString(MESSAGE));
+
+                TestAllTypes.Builder builder = TestAllTypes.newBuilder();
+                marshaller.mergeValue(json, builder);
+                assertThat(builder.build()).isEqualTo(MESSAGE);
+                return null;
+              })
+          .get();
+    } finally {
+      executor.shutdown();
+    }
+
+    assertThat(pool.acquired.get()).isPositive();
+    assertThat(pool.released.get()).isEqualTo(pool.acquired.get());
+  }
+
+  @Test
+  void toBuilderKeepsPool() throws Exception {
+    CountingPool pool = new CountingPool();
+    MessageMarshaller marshaller =
+        MessageMarshaller.builder()
+            .register(TestAllTypes.getDefaultInstance())
+            .recyclerPool(pool)
+            .build()
+            .toBuilder()
+            .build();
+
+    marshaller.writeValueAsBytes(MESSAGE);
+    assertThat(pool.acquired.get()).isPositive();
+    assertThat(pool.released.get()).isEqualTo(pool.acquired.get());
+  }
+
+  @Test
+  void incrementalMergerReturnsBuffers() throws Exception {
+    CountingPool pool = new CountingPool();
+    MessageMarshaller marshaller =
+        MessageMarshaller.builder()
+            .register(TestAllTypes.getDefaultInstance())
+            .recyclerPool(pool)
+            .build();
+    byte[] json = marshaller.writeValueAsBytes(MESSAGE);
+
+    IncrementalMerger completed = marshaller.newIncrementalMerger(TestAllTypes.newBuilder());
+    assertThat(completed.feed(json)).isTrue();
+    assertThat(pool.released.get()).isEqualTo(pool.acquired.get());
+
+    IncrementalMerger invalid = marshaller.newIncrementalMerger(TestAllTypes.newBuilder());
+    assertThatThrownBy(() -> invalid.feed("[]".getBytes(StandardCharsets.UTF_8)))
+        .isInstanceOf(InvalidProtocolBufferException.class);
+    assertThat(pool.released.get()).isEqualTo(pool.acquired.get());
+
+    IncrementalMerger abandoned = marshaller.newIncrementalMerger(TestAllTypes.newBuilder());
+    assertThat(abandoned.feed(Arrays.copyOf(json, json.length / 2))).isFalse();
+    assertThat(pool.released.get()).isLessThan(pool.acquired.get());
+    abandoned.close();
+    assertThat(pool.released.get()).isEqualTo(pool.acquired.get());
+    assertThatThrownBy(abandoned::endOfInput).isInstanceOf(IllegalStateException.class);
+  }
+
+  private static final class CountingPool implements RecyclerPool<BufferRecycler> {
+
+    private static final long serialVersionUID = 1L;
+
+    private final RecyclerPool<BufferRecycler> delegate = JsonRecyclerPools.newLockFreePool();
+
+    private final AtomicInteger acquired = new AtomicInteger();
+    private final AtomicInteger released = new AtomicInteger();
+
+    @Override
+    public BufferRecycler acquirePooled() {
+      acquired.incrementAndGet();
+      return delegate.acquirePooled();
+    }
+
+    @Override
+    public void releasePooled(BufferRecycler recycler) {
+      released.incrementAndGet();
+      delegate.releasePooled(recycler);
+    }
+  }
+}
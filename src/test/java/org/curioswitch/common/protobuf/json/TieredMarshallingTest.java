@@ -0,0 +1,154 @@
+/*
+ * Copyright (c) Choko (choko@curioswitch.org)
+ * SPDX-License-Identifier: MIT
+ */
+
+package org.curioswitch.common.protobuf.json;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.Message;
+import com.google.protobuf.util.JsonTestProto.TestAllTypes;
+import com.google.protobuf.util.JsonTestProto.TestOneof;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.RejectedExecutionException;
+import org.curioswitch.common.protobuf.json.test.GithubApi.SearchResponse;
+import org.curioswitch.common.protobuf.json.test.GithubApi.User;
+import org.junit.jupiter.api.Test;
+
+class TieredMarshallingTest {
+
+  @Test
+  void interpretedSameAsGenerated() throws Exception {
+    for (boolean option : new boolean[] {false, true}) {
+      MessageMarshaller generated = builder(option).build();
+      // Never reaches the threshold, so always interpreted.
+      MessageMarshaller interpreted =
+          builder(option).generationThreshold(Integer.MAX_VALUE).build();
+      for (Message message : JsonTestUtil.sampleMessages()) {
+        String json = generated.writeValueAsString(message);
+        assertThat(interpreted.writeValueAsString(message)).isEqualTo(json);
+
+        Message.Builder builder = message.newBuilderForType();
+        interpreted.mergeValue(json, builder);
+        assertThat(builder.build()).isEqualTo(message);
+      }
+    }
+  }
+
+  @Test
+  void interpretedRejectsSameInputAsGenerated() throws Exception {
+    MessageMarshaller interpreted =
+        MessageMarshaller.builder()
+            .register(TestAllTypes.getDefaultInstance())
+            .register(TestOneof.getDefaultInstance())
+            .generationThreshold(Integer.MAX_VALUE)
+            .build();
+    assertThatThrownBy(
+            () ->
+                interpreted.mergeValue(
+                    "{\"optionalInt32\": 1, \"optional_int32\": 2}", TestAllTypes.newBuilder()))
+        .isInstanceOf(InvalidProtocolBufferException.class)
+        .hasMessageContaining("has already been set");
+    assertThatThrownBy(
+            () -> interpreted.mergeValue("{\"unknownField\": 1}", TestAllTypes.newBuilder()))
+        .isInstanceOf(InvalidProtocolBufferException.class)
+        .hasMessageContaining("Cannot find field");
+    assertThatThrownBy(
+            () ->
+                interpreted.mergeValue(
+                    "{\"oneofInt32\": 1, \"oneofNestedMessage\": {}}", TestOneof.newBuilder()))
+        .isInstanceOf(InvalidProtocolBufferException.class)
+        .hasMessageContaining("belonging to the same oneof");
+    assertThatThrownBy(
+            () ->
+                interpreted.mergeValue(
+                    "{\"repeatedInt32\": [1, null]}", TestAllTypes.newBuilder()))
+        .isInstanceOf(InvalidProtocolBufferException.class);
+  }
+
+  @Test
+  void generatesAfterThreshold() throws Exception {
+    Queue<Runnable> tasks = new ArrayDeque<>();
+    MessageMarshaller marshaller =
+        MessageMarshaller.builder()
+            .register(SearchResponse.getDefaultInstance())
+            .generationThreshold(2)
+            .generationExecutor(tasks::add)
+            .build();
+    TieredMarshaller<?> searchResponse = tiered(marshaller, SearchResponse.getDefaultInstance());
+    TieredMarshaller<?> user = tiered(marshaller, User.getDefaultInstance());
+
+    SearchResponse response =
+        SearchResponse.newBuilder()
+            .setTotalCount(1)
+            .addItems(SearchResponse.Item.newBuilder().setName("protobuf-jackson"))
+            .build();
+    String json = marshaller.writeValueAsString(response);
+    assertThat(tasks).isEmpty();
+    assertThat(searchResponse.isGenerated()).isFalse();
+
+    SearchResponse.Builder builder = SearchResponse.newBuilder();
+    marshaller.mergeValue(json, builder);
+    assertThat(builder.build()).isEqualTo(response);
+    // SearchResponse and Item have been used twice, but User not at all since the item has no
+    // owner.
+    assertThat(tasks).hasSize(2);
+    tasks.forEach(Runnable::run);
+    tasks.clear();
+    assertThat(searchResponse.isGenerated()).isTrue();
+    assertThat(user.isGenerated()).isFalse();
+
+    assertThat(marshaller.writeValueAsString(response)).isEqualTo(json);
+    assertThat(tasks).isEmpty();
+    assertThat(searchResponse.generation()).isCompleted();
+    assertThat(searchResponse.generationFailure()).isNull();
+  }
+
+  @Test
+  void keepsInterpretingAfterGenerationFailure() throws Exception {
+    MessageMarshaller marshaller =
+        MessageMarshaller.builder()
+            .register(User.getDefaultInstance())
+            .generationThreshold(1)
+            .generationExecutor(
+                task -> {
+                  throw new RejectedExecutionException("shutting down");
+                })
+            .build();
+    TieredMarshaller<?> user = tiered(marshaller, User.getDefaultInstance());
+
+    User message = User.newBuilder().setLogin("choko").build();
+    String json = marshaller.writeValueAsString(message);
+    assertThat(json).contains("choko");
+    assertThat(user.isGenerated()).isFalse();
+    assertThat(user.generationFailure()).isInstanceOf(RejectedExecutionException.class);
+
+    User.Builder builder = User.newBuilder();
+    marshaller.mergeValue(json, builder);
+    assertThat(builder.build()).isEqualTo(message);
+  }
+
+  private static MessageMarshaller.Builder builder(boolean option) {
+    MessageMarshaller.Builder builder = MessageMarshaller.builder();
+    for (Message prototype : JsonTestUtil.samplePrototypes()) {
+      builder.register(prototype);
+    }
+    return builder
+        .includingDefaultValueFields(option)
+        .preservingProtoFieldNames(option)
+        .printingEnumsAsInts(option)
+        .sortingMapKeys(option);
+  }
+
+  private static TieredMarshaller<?> tiered(MessageMarshaller marshaller, Message prototype) {
+    return marshaller.registeredMarshallers().stream()
+        .filter(m -> m.getDescriptorForMarshalledType() == prototype.getDescriptorForType())
+        .map(m -> (TieredMarshaller<?>) m)
+        .findFirst()
+        .orElseThrow(IllegalStateException::new);
+  }
+}
@@ -11,6 +11,7 @@ import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.core.JsonParseException;
 import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.databind.DeserializationContext;
+import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.JsonSerializer;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.SerializerProvider;
@@ -18,11 +19,14 @@ import com.fasterxml.jackson.databind.deser.std.StdDeserializer;
 import com.fasterxml.jackson.databind.module.SimpleModule;
 import com.fasterxml.jackson.databind.ser.std.StdSerializer;
 import com.fasterxml.jackson.databind.util.TokenBuffer;
+import com.google.protobuf.Any;
+import com.google.protobuf.ByteString;
 import com.google.protobuf.Struct;
 import com.google.protobuf.Value;
 import com.google.protobuf.util.JsonTestProto;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.util.Map;
 import org.assertj.core.api.Assertions;
 import org.junit.jupiter.api.Test;
 
@@ -96,6 +100,80 @@ class ObjectMapperTest {
     Assertions.assertThat(deserializedAllTypes).isEqualTo(allTypes);
   }
 
+  @Test
+  void sameAsMarshallerWithoutCustomSerializers() throws Exception {
+    MessageMarshaller marshaller =
+        MessageMarshaller.builder()
+            .register(JsonTestProto.TestAllTypes.getDefaultInstance())
+            .build();
+    ObjectMapper mapper = new ObjectMapper();
+    mapper.registerModule(MessageMarshallerModule.of(marshaller));
+
+    JsonTestProto.TestAllTypes message =
+        JsonTestProto.TestAllTypes.newBuilder()
+            .setOptionalInt32(1)
+            .setOptionalNestedMessage(
+                JsonTestProto.TestAllTypes.NestedMessage.newBuilder().setValue(900))
+            .addRepeatedNestedMessage(
+                JsonTestProto.TestAllTypes.NestedMessage.newBuilder().setValue(901))
+            .build();
+    String json = marshaller.writeValueAsString(message);
+    // Repeated to use the cached contextual serializer and deserializer.
+    for (int i = 0; i < 2; i++) {
+      assertThat(mapper.writeValueAsString(message)).isEqualTo(json);
+      Assertions.assertThat(mapper.readValue(json, JsonTestProto.TestAllTypes.class))
+          .isEqualTo(message);
+    }
+  }
+
+  @Test
+  void treeConversion() throws Exception {
+    MessageMarshaller marshaller =
+        MessageMarshaller.builder()
+            .register(JsonTestProto.TestAllTypes.getDefaultInstance())
+            .register(JsonTestProto.TestAny.getDefaultInstance())
+            .build();
+    ObjectMapper mapper = new ObjectMapper();
+    mapper.registerModule(MessageMarshallerModule.of(marshaller));
+
+    JsonTestProto.TestAllTypes message =
+        JsonTestProto.TestAllTypes.newBuilder()
+            .setOptionalInt64(Long.MAX_VALUE)
+            .setOptionalDouble(1.5)
+            .setOptionalBytes(ByteString.copyFromUtf8("bytes"))
+            .setOptionalNestedEnum(JsonTestProto.TestAllTypes.NestedEnum.BAZ)
+            .setOptionalNestedMessage(
+                JsonTestProto.TestAllTypes.NestedMessage.newBuilder().setValue(900))
+            .build();
+    JsonNode tree = mapper.valueToTree(message);
+    assertThat(tree).isEqualTo(mapper.readTree(marshaller.writeValueAsString(message)));
+
+    JsonTestProto.TestAllTypes.Builder builder = JsonTestProto.TestAllTypes.newBuilder();
+    marshaller.mergeValue(tree, builder);
+    Assertions.assertThat(builder.build()).isEqualTo(message);
+    Assertions.assertThat(mapper.treeToValue(tree, JsonTestProto.TestAllTypes.class))
+        .isEqualTo(message);
+
+    // Through POJOs without text.
+    @SuppressWarnings("unchecked")
+    Map<String, Object> map = mapper.convertValue(message, Map.class);
+    assertThat(map).containsEntry("optionalInt64", String.valueOf(Long.MAX_VALUE));
+    Assertions.assertThat(mapper.convertValue(map, JsonTestProto.TestAllTypes.class))
+        .isEqualTo(message);
+
+    // Empty Any is written raw to text, which a TokenBuffer does not support.
+    JsonTestProto.TestAny any =
+        JsonTestProto.TestAny.newBuilder().setAnyValue(Any.getDefaultInstance()).build();
+    TokenBuffer buffer = new TokenBuffer(mapper, false);
+    marshaller.writeValue(any, buffer);
+    JsonNode anyTree = mapper.readTree(buffer.asParser());
+    assertThat(anyTree.get("anyValue").isObject()).isTrue();
+    assertThat(anyTree.get("anyValue").size()).isZero();
+    JsonTestProto.TestAny.Builder anyBuilder = JsonTestProto.TestAny.newBuilder();
+    marshaller.mergeValue(anyTree, anyBuilder);
+    Assertions.assertThat(anyBuilder.build()).isEqualTo(any);
+  }
+
   @Test
   void doesNotCloseJsonGenerator() throws Exception {
     JsonGenerator generator =